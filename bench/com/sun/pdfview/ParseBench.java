@@ -0,0 +1,131 @@
+/*
+ * Copyright 2004 Sun Microsystems, Inc., 4150 Network Circle,
+ * Santa Clara, California 95054, U.S.A. All rights reserved.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package com.sun.pdfview;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+
+import net.sf.andpdf.nio.ByteBuffer;
+
+/**
+ * Times how long it takes to parse the content streams of every page of a
+ * document.
+ * <p>
+ * Each round opens the document again, so no page or object is served from
+ * the cache of an earlier round, and parses all of its pages with
+ * PDFFile.getPage(page, true).  Opening the file and reading its xref table
+ * isn't timed.  The first rounds warm the VM up and aren't counted either.
+ * <p>
+ * This is not part of the library and isn't built with it.  It needs the
+ * library and working android.graphics classes on its classpath, so run it
+ * on a device or an emulator, for instance by pushing a dex of it and of
+ * PdfViewer.jar and starting it with app_process.  To compare two versions
+ * of the parser, run it against a build of each on the same document and
+ * compare the best and median times; the command counts should be equal.
+ * <p>
+ * Usage: ParseBench file.pdf [rounds [warmup]]
+ */
+public class ParseBench {
+
+    /** the number of timed rounds if none is given */
+    private static final int DEFAULT_ROUNDS = 20;
+
+    /** the number of untimed rounds if none is given */
+    private static final int DEFAULT_WARMUP = 5;
+
+    public static void main(String[] args) throws IOException {
+        if (args.length < 1) {
+            System.err.println("Usage: ParseBench file.pdf [rounds [warmup]]");
+            System.exit(1);
+        }
+        File file = new File(args[0]);
+        int rounds = args.length > 1 ? Integer.parseInt(args[1]) : DEFAULT_ROUNDS;
+        int warmup = args.length > 2 ? Integer.parseInt(args[2]) : DEFAULT_WARMUP;
+
+        byte[] data = new byte[(int) file.length()];
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            raf.readFully(data);
+        } finally {
+            raf.close();
+        }
+
+        int pages = 0;
+        int commands = 0;
+        for (int i = 0; i < warmup; i++) {
+            parse(data, null);
+        }
+        long[] times = new long[rounds];
+        int[] counts = new int[2];
+        for (int i = 0; i < rounds; i++) {
+            times[i] = parse(data, counts);
+            pages = counts[0];
+            commands = counts[1];
+        }
+
+        if (rounds == 0) {
+            return;
+        }
+        Arrays.sort(times);
+        long best = times[0];
+        long median = times[rounds / 2];
+        System.out.println(file.getName() + ": " + pages + " pages, "
+                + commands + " commands, " + rounds + " rounds");
+        System.out.println("best   " + millis(best) + " ms, "
+                + millis(best / Math.max(1, pages)) + " ms/page");
+        System.out.println("median " + millis(median) + " ms, "
+                + millis(median / Math.max(1, pages)) + " ms/page");
+    }
+
+    /**
+     * Opens the document afresh and parses all of its pages.
+     *
+     * @param data the contents of the file
+     * @param counts if not null, gets the number of pages and the number
+     * of commands they parsed to
+     * @return the time it took to parse the pages, in nanoseconds
+     */
+    private static long parse(byte[] data, int[] counts) throws IOException {
+        PDFFile pdf = new PDFFile(ByteBuffer.NEW(data));
+        int pages = pdf.getNumPages();
+        int commands = 0;
+
+        long start = System.nanoTime();
+        for (int p = 1; p <= pages; p++) {
+            PDFPage page = pdf.getPage(p, true);
+            if (page != null) {
+                commands += page.getCommandCount();
+            }
+        }
+        long time = System.nanoTime() - start;
+
+        if (counts != null) {
+            counts[0] = pages;
+            counts[1] = commands;
+        }
+        return time;
+    }
+
+    /** formats a time in nanoseconds as milliseconds */
+    private static String millis(long nanos) {
+        return String.valueOf(nanos / 1000 / 1000.0);
+    }
+}
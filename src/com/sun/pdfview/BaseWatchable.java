@@ -20,14 +20,46 @@
  */
 package com.sun.pdfview;
 
+import java.lang.reflect.Method;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
 /**
  * An abstract implementation of the watchable interface, that is extended
  * by the parser and renderer to do their thing.
+ * <p>
+ * A watchable that isn't run synchronously runs on an Executor, by default
+ * one pool of threads shared by every watchable.  The pool keeps a few
+ * threads for reuse; when they are all busy, a watchable gets a thread of
+ * its own, as a renderer may be waiting for a parser that must not be
+ * left queued behind it.  A watchable whose gate closes gives its thread
+ * back, and is run again by the next go().
+ * <p>
+ * A watchable given a frame deadline iterates in slices, each sized to
+ * end by the deadline, and calls sliceEnded() between them, so a renderer
+ * can show what it has drawn so far once every frame.  How many
+ * iterations fit in a slice is learned as it goes, and the time the last
+ * sliceEnded() took is taken off the next slice.
  */
 public abstract class BaseWatchable implements Watchable, Runnable {
 
+    /** the most threads the default executor keeps for reuse */
+    private static final int POOL_SIZE =
+            Math.max(4, 2 * Runtime.getRuntime().availableProcessors());
+    /** how long an idle thread of the default executor is kept, in seconds */
+    private static final long KEEP_ALIVE = 30;
+    /** the executor watchables run on, unless they are given their own */
+    private static Executor defaultExecutor;
+    /** a frame deadline that gives 60 frames a second, in milliseconds */
+    public static final long FRAME_DEADLINE = 16;
+
     /** the current status, from the list in Watchable */
-    private int status = Watchable.UNKNOWN;
+    private volatile int status = Watchable.UNKNOWN;
     /** a lock for status-related operations */
     private Object statusLock = new Object();
     /** a lock for parsing operations */
@@ -36,8 +68,14 @@ public abstract class BaseWatchable implements Watchable, Runnable {
     private Gate gate;
     /** suppress local stack trace on setError. */
     private static boolean SuppressSetErrorStackTrace = false;
-    /** the thread we are running in */
-    private Thread thread;
+    /** whether we are running, or about to run, in some thread */
+    private boolean running;
+    /** whether setup() has been called */
+    private boolean setupDone;
+    /** the executor to run on, or null for the default executor */
+    private Executor executor;
+    /** the slices to iterate in, or null to iterate without slices */
+    private volatile Slice slice;
 
     /** 
      * Creates a new instance of BaseWatchable
@@ -76,38 +114,135 @@ public abstract class BaseWatchable implements Watchable, Runnable {
         // do nothing
     }
 
+    /**
+     * Called between two slices of iterations, on the thread that runs
+     * them, if there is a frame deadline.  Also called when the
+     * iterations stop, whether they are finished, stopped, or waiting for
+     * data.  Subclasses should extend this method to publish what they
+     * have done so far; it should be quick, since the time it takes comes
+     * out of the next slice.
+     */
+    protected void sliceEnded() {
+        // do nothing
+    }
+
+    /**
+     * Check whether data has arrived for a watchable whose iterate() just
+     * returned NEEDS_DATA.  Checked holding the status lock, after the
+     * status is set to NEEDS_DATA, so data handed over together with a
+     * call to dataAvailable() is never missed.  Subclasses that wait for
+     * data should extend this method; it must not block.
+     */
+    protected boolean hasData() {
+        return false;
+    }
+
+    /**
+     * Tell this watchable that data has arrived.  If it is waiting for
+     * data, it is woken up; otherwise nothing happens, without taking any
+     * lock.
+     */
+    public void dataAvailable() {
+        if (status != Watchable.NEEDS_DATA) {
+            return;
+        }
+
+        synchronized (statusLock) {
+            if (status == Watchable.NEEDS_DATA) {
+                status = Watchable.PAUSED;
+                statusLock.notifyAll();
+            }
+        }
+    }
+
     public void run() {
         // System.out.println(Thread.currentThread().getName() + " starting");
 
+        // stopped before we got a thread: don't start at all
+        if (getStatus() == Watchable.STOPPED && finishRun()) {
+            return;
+        }
+
         // call setup once we started
-        if (getStatus() == Watchable.NOT_STARTED) {
+        if (!setupDone) {
+            setupDone = true;
             setup();
         }
 
-        setStatus(Watchable.PAUSED);
+        setStatusUnlessStopped(Watchable.PAUSED);
+
+        do {
+            if (!iterateUntilDone()) {
+                return;
+            }
+
+            // System.out.println(Thread.currentThread().getName() + " exiting: status = " + getStatusString());
 
+            // call cleanup when we are done
+            if (getStatus() == Watchable.COMPLETED ||
+                    getStatus() == Watchable.ERROR) {
+
+                cleanup();
+            }
+        } while (!finishRun());
+    }
+
+    /**
+     * iterate until we are finished or stopped, waiting while we can't
+     * go on
+     * @return false if we gave our thread back, since the gate closed
+     */
+    private boolean iterateUntilDone() {
         synchronized (parserLock) {
             while (!isFinished() && getStatus() != Watchable.STOPPED) {
                 if (isExecutable()) {
                     // set the status to running
-                    setStatus(Watchable.RUNNING);
+                    setStatusUnlessStopped(Watchable.RUNNING);
+
+                    Slice s = slice;
+                    if (s != null) {
+                        s.begin();
+                    }
 
                     try {
                         // keep going until the status is no longer running,
                         // our gate tells us to stop, or no-one is watching
                         while ((getStatus() == Watchable.RUNNING) &&
                                 (gate == null || !gate.iterate())) {
-                            // update the status based on this iteration
-                            setStatus(iterate());
+                            // update the status based on this iteration,
+                            // unless we were stopped meanwhile
+                            setStatusUnlessStopped(iterate());
+
+                            if (s != slice) {
+                                // the deadline was changed meanwhile
+                                s = slice;
+                                if (s != null) {
+                                    s.begin();
+                                }
+                            } else if (s != null && s.iterate()) {
+                                endSlice(s);
+                                // let whatever shows the slice have a go
+                                Thread.yield();
+                            }
+                        }
+
+                        // publish the last slice, whatever stopped us
+                        if (s != null) {
+                            endSlice(s);
                         }
 
                         // make sure we are paused
-                        if (getStatus() == Watchable.RUNNING) {
-                            setStatus(Watchable.PAUSED);
+                        synchronized (statusLock) {
+                            if (getStatus() == Watchable.RUNNING) {
+                                setStatus(Watchable.PAUSED);
+                            }
                         }
                     } catch (Exception ex) {
                         setError(ex);
                     }
+                } else if (gate != null && gate.stop() && release()) {
+                    // don't hold on to the thread while the gate is closed
+                    return false;
                 } else {
                     // System.out.println(getName() + " waiting: status = " + getStatusString());
                     // wait for our status to change
@@ -123,18 +258,60 @@ public abstract class BaseWatchable implements Watchable, Runnable {
                 }
             }
         }
+        return true;
+    }
 
-        // System.out.println(Thread.currentThread().getName() + " exiting: status = " + getStatusString());
-
-        // call cleanup when we are done
-        if (getStatus() == Watchable.COMPLETED ||
-                getStatus() == Watchable.ERROR) {
+    /**
+     * end a slice, and size the next one by how long ending it took
+     */
+    private void endSlice(Slice s) {
+        long start = System.nanoTime();
+        sliceEnded();
+        s.end(System.nanoTime() - start);
+    }
 
-            cleanup();
+    /**
+     * stop running, unless a go() has started us again since we stopped.
+     * Checked holding the lock go() holds, like release().
+     * @return true if we are no longer running
+     */
+    private synchronized boolean finishRun() {
+        int s = getStatus();
+        if (s == Watchable.PAUSED || s == Watchable.RUNNING) {
+            return false;
         }
 
         // notify that we are no longer running
-        thread = null;
+        running = false;
+        return true;
+    }
+
+    /**
+     * Set the status, unless the watchable has been stopped.  A stop()
+     * that comes while iterate() is running must not be lost when its
+     * result is set, though finishing is still worth knowing.
+     */
+    private void setStatusUnlessStopped(int status) {
+        synchronized (statusLock) {
+            if (this.status != Watchable.STOPPED ||
+                    status == Watchable.COMPLETED) {
+                setStatus(status);
+            }
+        }
+    }
+
+    /**
+     * stop running if the gate is still closed.  Checked holding the lock
+     * go() holds while it sets a new gate, so a go() either opens the gate
+     * before this looks, or sees that we aren't running and runs us again.
+     * @return true if we are no longer running
+     */
+    private synchronized boolean release() {
+        if (gate == null || !gate.stop()) {
+            return false;
+        }
+        running = false;
+        return true;
     }
 
     /**
@@ -223,6 +400,31 @@ public abstract class BaseWatchable implements Watchable, Runnable {
         execute(false);
     }
 
+    /**
+     * Let this watchable run again once resume() is called, if it was
+     * stopped.  A stop() that comes after this is kept.
+     */
+    void revive() {
+        synchronized (statusLock) {
+            if (status == Watchable.STOPPED) {
+                setStatus(Watchable.PAUSED);
+            }
+        }
+    }
+
+    /**
+     * Run this watchable until it is finished or stopped, like
+     * go(boolean), but without starting it again if it has been stopped.
+     * A stop() that comes before this, but after revive(), isn't lost.
+     *
+     * @param synchronous if true, run in this thread
+     */
+    synchronized void resume(boolean synchronous) {
+        gate = null;
+
+        execute(synchronous, false);
+    }
+
     /**
      * Wait for this watchable to finish
      */
@@ -244,10 +446,24 @@ public abstract class BaseWatchable implements Watchable, Runnable {
      * @param synchronous if true, run in this thread
      */
     protected synchronized void execute(boolean synchronous) {
+        execute(synchronous, true);
+    }
+
+    /**
+     * Start executing this watchable
+     *
+     * @param synchronous if true, run in this thread
+     * @param revive whether to go on if we were stopped
+     */
+    private void execute(boolean synchronous, boolean revive) {
         // see if we're already running
-        if (thread != null) {
-            // we're already running. Make sure we wake up on any change.
+        if (running) {
+            // we're already running. Make sure we wake up on any change,
+            // and go on if we were stopped.
             synchronized (statusLock) {
+                if (revive && status == Watchable.STOPPED) {
+                    setStatus(Watchable.PAUSED);
+                }
                 statusLock.notifyAll();
             }
 
@@ -257,14 +473,123 @@ public abstract class BaseWatchable implements Watchable, Runnable {
             return;
         }
 
-        // we'return not running. Start up
+        // we'return not running. Start up, even if we were stopped, unless
+        // told not to
+        synchronized (statusLock) {
+            if (status == Watchable.STOPPED) {
+                if (!revive) {
+                    return;
+                }
+                setStatus(Watchable.PAUSED);
+            }
+        }
+        running = true;
         if (synchronous) {
-            thread = Thread.currentThread();
             run();
         } else {
-            thread = new Thread(this);
-            thread.setName(getClass().getName());
-            thread.start();
+            try {
+                getExecutor().execute(this);
+            } catch (RejectedExecutionException ree) {
+                // an executor that is shut down, or full
+                Thread thread = new Thread(this);
+                thread.setName(getClass().getName());
+                thread.start();
+            }
+        }
+    }
+
+    /**
+     * Set the frame deadline to iterate in slices for.  Takes effect from
+     * the next iteration, even if the watchable is running.
+     *
+     * @param millis how long a slice should take, sliceEnded() included,
+     * in milliseconds, or 0 to iterate without slices
+     */
+    public void setFrameDeadline(long millis) {
+        if (millis < 0) {
+            throw new IllegalArgumentException("Frame deadline must not be negative: " + millis);
+        }
+        slice = (millis == 0) ? null : new Slice(millis);
+    }
+
+    /**
+     * Get the frame deadline this watchable iterates in slices for, in
+     * milliseconds, or 0 if it iterates without slices
+     */
+    public long getFrameDeadline() {
+        Slice s = slice;
+        return (s == null) ? 0 : s.getDeadline();
+    }
+
+    /**
+     * Get the executor this watchable runs on when it isn't run
+     * synchronously
+     */
+    public synchronized Executor getExecutor() {
+        return (executor != null) ? executor : getDefaultExecutor();
+    }
+
+    /**
+     * Set the executor this watchable runs on when it isn't run
+     * synchronously.  It must not leave the watchable queued behind tasks
+     * that wait for it.
+     *
+     * @param executor the executor, or null for the default executor
+     */
+    public synchronized void setExecutor(Executor executor) {
+        this.executor = executor;
+    }
+
+    /**
+     * Get the executor watchables run on unless they are given their own.
+     * Unless another is set, it is a pool of daemon threads shared by
+     * every watchable.
+     */
+    public static synchronized Executor getDefaultExecutor() {
+        if (defaultExecutor == null) {
+            final ThreadFactory threads = new ThreadFactory() {
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "BaseWatchable");
+                    t.setDaemon(true);
+                    return t;
+                }
+            };
+            defaultExecutor = new ThreadPoolExecutor(0, POOL_SIZE,
+                    KEEP_ALIVE, TimeUnit.SECONDS, new SynchronousQueue<Runnable>(),
+                    threads, new RejectedExecutionHandler() {
+                        public void rejectedExecution(Runnable r,
+                                ThreadPoolExecutor pool) {
+                            // every thread is busy: never queue
+                            threads.newThread(r).start();
+                        }
+                    });
+        }
+        return defaultExecutor;
+    }
+
+    /**
+     * Set the executor watchables run on unless they are given their own.
+     * Watchables already running are left where they are.
+     *
+     * @param executor the executor, or null for the default pool
+     */
+    public static synchronized void setDefaultExecutor(Executor executor) {
+        defaultExecutor = executor;
+    }
+
+    /**
+     * Create an executor that runs each task in a virtual thread of its
+     * own, on a VM that has them.
+     *
+     * @return the executor, or null if the VM doesn't have virtual threads
+     */
+    public static Executor newVirtualThreadExecutor() {
+        try {
+            Method factory = java.util.concurrent.Executors.class.getMethod(
+                    "newVirtualThreadPerTaskExecutor");
+            return (Executor) factory.invoke(null);
+        } catch (Exception e) {
+            return null;
         }
     }
 
@@ -274,6 +599,9 @@ public abstract class BaseWatchable implements Watchable, Runnable {
     protected void setStatus(int status) {
         synchronized (statusLock) {
             this.status = status;
+            if (status == Watchable.NEEDS_DATA && hasData()) {
+                this.status = Watchable.PAUSED;
+            }
 
             // System.out.println(getName() + " status set to " + getStatusString());
 
@@ -375,4 +703,82 @@ public abstract class BaseWatchable implements Watchable, Runnable {
             return stop();
         }
     }
+
+    /**
+     * Slices a run of iterations by a frame deadline.  Reading the clock
+     * after every iteration would cost more than many iterations do, so it
+     * is read every so many iterations, as many as look like they take an
+     * eighth of the slice, judging by the iterations so far.
+     */
+    class Slice {
+
+        /** the most iterations between two readings of the clock */
+        private static final int MAX_STRIDE = 1024;
+
+        /** the frame deadline, in nanoseconds */
+        private final long deadline;
+        /** how long the current slice may take, in nanoseconds */
+        private long budget;
+        /** when the current slice started */
+        private long start;
+        /** the iterations done in the current slice, up to the last reading */
+        private int done;
+        /** how many iterations to do before reading the clock again */
+        private int stride;
+        /** the iterations left until the clock is read again */
+        private int countdown;
+
+        /** create slices for a frame deadline in milliseconds */
+        public Slice(long millis) {
+            deadline = millis * 1000000;
+            budget = deadline;
+        }
+
+        /** get the frame deadline in milliseconds */
+        public long getDeadline() {
+            return deadline / 1000000;
+        }
+
+        /** start a slice */
+        public void begin() {
+            start = System.nanoTime();
+            done = 0;
+            stride = 1;
+            countdown = 1;
+        }
+
+        /** Notify the slice of one iteration.  Returns true if the slice
+         * should end, because the next iterations would likely go past its
+         * deadline
+         */
+        public boolean iterate() {
+            if (--countdown > 0) {
+                return false;
+            }
+
+            long elapsed = System.nanoTime() - start;
+            done += stride;
+            long perIteration = Math.max(elapsed / done, 1);
+            long left = budget - elapsed;
+            if (left < perIteration) {
+                return true;
+            }
+
+            stride = (int) Math.min(Math.min(left, budget / 8) / perIteration,
+                    MAX_STRIDE);
+            stride = Math.max(stride, 1);
+            countdown = stride;
+            return false;
+        }
+
+        /** end the slice, and start the next one
+         * @param spent how long ending the slice took, in nanoseconds,
+         * which is taken off the next one, though it leaves it at least a
+         * quarter of the deadline
+         */
+        public void end(long spent) {
+            budget = Math.max(deadline - spent, deadline / 4);
+            begin();
+        }
+    }
 }
@@ -0,0 +1,114 @@
+/*
+ * Copyright 2004 Sun Microsystems, Inc., 4150 Network Circle,
+ * Santa Clara, California 95054, U.S.A. All rights reserved.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package com.sun.pdfview;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The batches of commands a page hands from its parser to one of its
+ * renderers, as they are parsed.
+ * <p>
+ * The commands themselves stay in the page; a batch is just the number of
+ * commands the page held when the batch was handed over, so the renderer
+ * may draw every command up to it without asking the page again.  The
+ * ring is bounded and lock-free, with one producer (the parser) and one
+ * consumer (the renderer).  If the renderer falls so far behind that the
+ * ring fills up, later batches aren't lost: the ring remembers that it
+ * overflowed, and the renderer gets the count from the page itself once
+ * it has drawn everything in the ring.
+ */
+final class PDFCommandRing {
+
+    /** the end of each batch, indexed by sequence number & mask */
+    private final int[] ends;
+    private final int mask;
+    /** the sequence number of the next batch to take.  Consumer only. */
+    private final AtomicLong head = new AtomicLong();
+    /** the sequence number of the next batch to hand over.  Producer only. */
+    private final AtomicLong tail = new AtomicLong();
+    /** whether a batch was handed over while the ring was full */
+    private volatile boolean overflowed;
+
+    /**
+     * Create an empty ring
+     *
+     * @param capacity the number of batches it holds, a power of two
+     */
+    public PDFCommandRing(int capacity) {
+        if (capacity < 1 || (capacity & (capacity - 1)) != 0) {
+            throw new IllegalArgumentException("Capacity must be a power of two: " + capacity);
+        }
+        ends = new int[capacity];
+        mask = capacity - 1;
+    }
+
+    /**
+     * Hand over a batch.  Only called by the producer.
+     *
+     * @param end the number of commands in the page at the end of the
+     * batch
+     */
+    public void offer(int end) {
+        long t = tail.get();
+        if (t - head.get() >= ends.length) {
+            overflowed = true;
+            return;
+        }
+        ends[(int) t & mask] = end;
+        // a volatile write, so a consumer that then finds the ring empty
+        // can't also be missed by the producer's wake-up
+        tail.set(t + 1);
+    }
+
+    /**
+     * Take the next batch.  Only called by the consumer.
+     *
+     * @return the number of commands in the page at the end of the batch,
+     * or -1 if no batch is waiting
+     */
+    public int poll() {
+        long h = head.get();
+        if (h == tail.get()) {
+            return -1;
+        }
+        int end = ends[(int) h & mask];
+        head.lazySet(h + 1);
+        return end;
+    }
+
+    /**
+     * Check, and forget, whether any batch was turned away because the ring
+     * was full.  Only called by the consumer, once poll() returns -1.
+     */
+    public boolean takeOverflow() {
+        if (!overflowed) {
+            return false;
+        }
+        overflowed = false;
+        return true;
+    }
+
+    /**
+     * Get whether there is anything for the consumer: a batch waiting, or
+     * an overflow.
+     */
+    public boolean hasData() {
+        return overflowed || head.get() != tail.get();
+    }
+}
@@ -0,0 +1,672 @@
+/*
+ * Copyright 2004 Sun Microsystems, Inc., 4150 Network Circle,
+ * Santa Clara, California 95054, U.S.A. All rights reserved.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package com.sun.pdfview;
+
+import android.graphics.Matrix;
+import android.graphics.Path;
+import android.graphics.RectF;
+import android.graphics.Path.FillType;
+import android.graphics.Paint.Cap;
+import android.graphics.Paint.Join;
+
+/**
+ * The commands of a page, compiled into a few flat arrays instead of one
+ * PDFCmd object (with its Path or Matrix) per command.
+ * <p>
+ * Each command is an opcode in a byte stream.  Its operands follow it in
+ * the pools: numbers in the float pool, counts and styles in the int pool,
+ * and anything that can't be flattened (paints, images, commands that
+ * have no opcode of their own) in the object pool.  The segment verbs of a
+ * path follow its opcode in the byte stream, and its coordinates are
+ * packed into the float pool.  Every command takes its operands from the
+ * pools in order, so the list is replayed by walking all four arrays from
+ * the start with a Cursor, and two lists are joined by concatenating their
+ * arrays.
+ * <p>
+ * Commands are only ever added at the end.  A renderer may replay the list
+ * while the parser is still adding to it: the arrays it reads are taken
+ * holding the lock on the list, and the part of them it reads is never
+ * changed afterwards.
+ */
+public class PDFDisplayList {
+
+    /** push the graphics state */
+    static final byte OP_PUSH = 1;
+    /** pop the graphics state */
+    static final byte OP_POP = 2;
+    /** concatenate a transform: 6 floats */
+    static final byte OP_XFORM = 3;
+    /** set the stroke width: 1 float */
+    static final byte OP_STROKE_WIDTH = 4;
+    /** set the end cap: 1 int, the Cap ordinal */
+    static final byte OP_END_CAP = 5;
+    /** set the line join: 1 int, the Join ordinal */
+    static final byte OP_LINE_JOIN = 6;
+    /** set the miter limit: 1 float */
+    static final byte OP_MITER_LIMIT = 7;
+    /**
+     * set the dash: 1 int, the length of the array or -1 for none, then
+     * that many floats and the phase
+     */
+    static final byte OP_DASH = 8;
+    /**
+     * draw a packed path: 3 ints (style, FillType ordinal, segment count),
+     * the segment verbs in the byte stream, their coordinates as floats
+     */
+    static final byte OP_PATH = 9;
+    /** draw a Path: 1 int, the style, and the Path object */
+    static final byte OP_SHAPE = 10;
+    /** set the fill paint: the PDFPaint object */
+    static final byte OP_FILL_PAINT = 11;
+    /** set the stroke paint: the PDFPaint object */
+    static final byte OP_STROKE_PAINT = 12;
+    /** set the fill alpha: 1 float */
+    static final byte OP_FILL_ALPHA = 13;
+    /** set the stroke alpha: 1 float */
+    static final byte OP_STROKE_ALPHA = 14;
+    /** draw an image: the PDFImage object */
+    static final byte OP_IMAGE = 15;
+    /** execute any other command: the PDFCmd object */
+    static final byte OP_CMD = 16;
+
+    private static final Cap[] CAPS = Cap.values();
+    private static final Join[] JOINS = Join.values();
+    private static final FillType[] FILL_TYPES = FillType.values();
+
+    /** the opcodes, with the verbs of packed paths */
+    private byte[] ops = new byte[256];
+    private int opLength;
+    /** the float pool */
+    private float[] floats = new float[256];
+    private int floatCount;
+    /** the int pool */
+    private int[] ints = new int[64];
+    private int intCount;
+    /** the object pool */
+    private Object[] objects = new Object[32];
+    private int objectCount;
+    /** the number of commands */
+    private int size;
+
+    /**
+     * Create a new, empty display list
+     */
+    public PDFDisplayList() {
+    }
+
+    /**
+     * Get the number of commands in the list
+     */
+    public synchronized int size() {
+        return size;
+    }
+
+    /////////////////////////////////////////////////////////////////
+    //  A P P E N D I N G
+    /////////////////////////////////////////////////////////////////
+
+    private void addOp(byte op) {
+        ensureOps(1);
+        ops[opLength++] = op;
+        size++;
+    }
+
+    private void ensureOps(int n) {
+        if (opLength + n > ops.length) {
+            ops = growBytes(ops, opLength, opLength + n);
+        }
+    }
+
+    private void addFloat(float f) {
+        if (floatCount == floats.length) {
+            floats = growFloats(floats, floatCount, floatCount + 1);
+        }
+        floats[floatCount++] = f;
+    }
+
+    private void addInt(int i) {
+        if (intCount == ints.length) {
+            int[] nints = new int[newLength(intCount, intCount + 1)];
+            System.arraycopy(ints, 0, nints, 0, intCount);
+            ints = nints;
+        }
+        ints[intCount++] = i;
+    }
+
+    private void addObject(Object obj) {
+        if (objectCount == objects.length) {
+            Object[] nobjects = new Object[newLength(objectCount, objectCount + 1)];
+            System.arraycopy(objects, 0, nobjects, 0, objectCount);
+            objects = nobjects;
+        }
+        objects[objectCount++] = obj;
+    }
+
+    private static int newLength(int length, int needed) {
+        int newLength = length + (length >> 1) + 16;
+        return newLength < needed ? needed : newLength;
+    }
+
+    private static byte[] growBytes(byte[] array, int length, int needed) {
+        byte[] narray = new byte[newLength(length, needed)];
+        System.arraycopy(array, 0, narray, 0, length);
+        return narray;
+    }
+
+    private static float[] growFloats(float[] array, int length, int needed) {
+        float[] narray = new float[newLength(length, needed)];
+        System.arraycopy(array, 0, narray, 0, length);
+        return narray;
+    }
+
+    /** push the graphics state */
+    public synchronized void addPush() {
+        addOp(OP_PUSH);
+    }
+
+    /** pop the graphics state */
+    public synchronized void addPop() {
+        addOp(OP_POP);
+    }
+
+    /** concatenate a transform to the graphics state */
+    public synchronized void addXform(Matrix mat) {
+        float[] values = new float[9];
+        mat.getValues(values);
+        addOp(OP_XFORM);
+        for (int i = 0; i < 6; i++) {
+            addFloat(values[i]);
+        }
+    }
+
+    /** set the stroke width */
+    public synchronized void addStrokeWidth(float w) {
+        addOp(OP_STROKE_WIDTH);
+        addFloat(w);
+    }
+
+    /** set the end cap style */
+    public synchronized void addEndCap(Cap cap) {
+        addOp(OP_END_CAP);
+        addInt(cap.ordinal());
+    }
+
+    /** set the line join style */
+    public synchronized void addLineJoin(Join join) {
+        addOp(OP_LINE_JOIN);
+        addInt(join.ordinal());
+    }
+
+    /** set the miter limit */
+    public synchronized void addMiterLimit(float limit) {
+        addOp(OP_MITER_LIMIT);
+        addFloat(limit);
+    }
+
+    /**
+     * set the dash style
+     * @param dashary the array of on-off lengths, or null
+     * @param phase offset of the array at the start of the line drawing
+     */
+    public synchronized void addDash(float[] dashary, float phase) {
+        addOp(OP_DASH);
+        if (dashary == null) {
+            addInt(-1);
+        } else {
+            addInt(dashary.length);
+            for (int i = 0; i < dashary.length; i++) {
+                addFloat(dashary[i]);
+            }
+        }
+        addFloat(phase);
+    }
+
+    /**
+     * draw a path.  A recorded PDFPath is packed into the pools; any other
+     * Path is copied and kept as it is.
+     * @param path the path
+     * @param style the style: PDFShapeCmd.STROKE, PDFShapeCmd.FILL,
+     * PDFShapeCmd.BOTH, PDFShapeCmd.CLIP, or some combination.
+     */
+    public synchronized void addPath(Path path, int style) {
+        if (!(path instanceof PDFPath) || !((PDFPath) path).isRecorded()) {
+            addOp(OP_SHAPE);
+            addInt(style);
+            addObject(new Path(path));
+            return;
+        }
+
+        PDFPath pp = (PDFPath) path;
+        int verbCount = pp.getVerbCount();
+        int coordCount = pp.getCoordCount();
+        addOp(OP_PATH);
+        addInt(style);
+        addInt(pp.getRecordedFillType().ordinal());
+        addInt(verbCount);
+        ensureOps(verbCount);
+        System.arraycopy(pp.getVerbs(), 0, ops, opLength, verbCount);
+        opLength += verbCount;
+        if (floatCount + coordCount > floats.length) {
+            floats = growFloats(floats, floatCount, floatCount + coordCount);
+        }
+        System.arraycopy(pp.getCoords(), 0, floats, floatCount, coordCount);
+        floatCount += coordCount;
+    }
+
+    /** set the fill paint */
+    public synchronized void addFillPaint(PDFPaint p) {
+        addOp(OP_FILL_PAINT);
+        addObject(p);
+    }
+
+    /** set the stroke paint */
+    public synchronized void addStrokePaint(PDFPaint p) {
+        addOp(OP_STROKE_PAINT);
+        addObject(p);
+    }
+
+    /** set the fill alpha */
+    public synchronized void addFillAlpha(float a) {
+        addOp(OP_FILL_ALPHA);
+        addFloat(a);
+    }
+
+    /** set the stroke alpha */
+    public synchronized void addStrokeAlpha(float a) {
+        addOp(OP_STROKE_ALPHA);
+        addFloat(a);
+    }
+
+    /** draw an image */
+    public synchronized void addImage(PDFImage image) {
+        addOp(OP_IMAGE);
+        addObject(image);
+    }
+
+    /** add a command that has no opcode of its own */
+    public synchronized void addCommand(PDFCmd cmd) {
+        addOp(OP_CMD);
+        addObject(cmd);
+    }
+
+    /**
+     * Add all the commands of another list at the end of this one
+     * @param list the list to add, which must be finished
+     */
+    public void addAll(PDFDisplayList list) {
+        byte[] lops;
+        float[] lfloats;
+        int[] lints;
+        Object[] lobjects;
+        int lopLength, lfloatCount, lintCount, lobjectCount, lsize;
+        synchronized (list) {
+            lops = list.ops;
+            lopLength = list.opLength;
+            lfloats = list.floats;
+            lfloatCount = list.floatCount;
+            lints = list.ints;
+            lintCount = list.intCount;
+            lobjects = list.objects;
+            lobjectCount = list.objectCount;
+            lsize = list.size;
+        }
+
+        synchronized (this) {
+            ensureOps(lopLength);
+            System.arraycopy(lops, 0, ops, opLength, lopLength);
+            opLength += lopLength;
+            if (floatCount + lfloatCount > floats.length) {
+                floats = growFloats(floats, floatCount, floatCount + lfloatCount);
+            }
+            System.arraycopy(lfloats, 0, floats, floatCount, lfloatCount);
+            floatCount += lfloatCount;
+            for (int i = 0; i < lintCount; i++) {
+                addInt(lints[i]);
+            }
+            for (int i = 0; i < lobjectCount; i++) {
+                addObject(lobjects[i]);
+            }
+            size += lsize;
+        }
+    }
+
+    /**
+     * Remove all the commands.  Only allowed while nothing is replaying
+     * the list.
+     */
+    public synchronized void clear() {
+        ops = new byte[256];
+        floats = new float[256];
+        ints = new int[64];
+        objects = new Object[32];
+        opLength = floatCount = intCount = objectCount = size = 0;
+    }
+
+    /**
+     * Shrink the arrays to what is used, once no more commands will be
+     * added.
+     */
+    public synchronized void trim() {
+        if (opLength < ops.length) {
+            byte[] nops = new byte[opLength];
+            System.arraycopy(ops, 0, nops, 0, opLength);
+            ops = nops;
+        }
+        if (floatCount < floats.length) {
+            float[] nfloats = new float[floatCount];
+            System.arraycopy(floats, 0, nfloats, 0, floatCount);
+            floats = nfloats;
+        }
+        if (intCount < ints.length) {
+            int[] nints = new int[intCount];
+            System.arraycopy(ints, 0, nints, 0, intCount);
+            ints = nints;
+        }
+        if (objectCount < objects.length) {
+            Object[] nobjects = new Object[objectCount];
+            System.arraycopy(objects, 0, nobjects, 0, objectCount);
+            objects = nobjects;
+        }
+    }
+
+    /**
+     * Replace all the commands with ones read back from a file.  The
+     * arrays are used as they are, not copied.  Only allowed while nothing
+     * is replaying the list.
+     */
+    synchronized void load(byte[] ops, float[] floats, int[] ints,
+            Object[] objects, int size) {
+        this.ops = ops;
+        this.opLength = ops.length;
+        this.floats = floats;
+        this.floatCount = floats.length;
+        this.ints = ints;
+        this.intCount = ints.length;
+        this.objects = objects;
+        this.objectCount = objects.length;
+        this.size = size;
+    }
+
+    // the raw arrays, for writing the list to a file.  Callers hold the
+    // lock on the list while they use them.
+
+    byte[] getOps() {
+        return ops;
+    }
+
+    int getOpLength() {
+        return opLength;
+    }
+
+    float[] getFloats() {
+        return floats;
+    }
+
+    int getFloatCount() {
+        return floatCount;
+    }
+
+    int[] getInts() {
+        return ints;
+    }
+
+    int getIntCount() {
+        return intCount;
+    }
+
+    Object[] getObjects() {
+        return objects;
+    }
+
+    int getObjectCount() {
+        return objectCount;
+    }
+
+    /**
+     * Get the number of bytes the arrays of this list take up, not
+     * counting the objects in the object pool.
+     */
+    public synchronized int getMemorySize() {
+        return ops.length + floats.length * 4 + ints.length * 4 +
+                objects.length * 4;
+    }
+
+    /////////////////////////////////////////////////////////////////
+    //  R E P L A Y I N G
+    /////////////////////////////////////////////////////////////////
+
+    /**
+     * A position in a display list, and the scratch objects used to replay
+     * the commands there.  One renderer, one cursor.
+     */
+    public static final class Cursor {
+
+        /** the index of the next command */
+        int command;
+        /** the next position in each array */
+        int op;
+        int f;
+        int i;
+        int o;
+        /** the path packed paths are unpacked into */
+        final Path path = new Path();
+        /** the transform of OP_XFORM */
+        final Matrix matrix = new Matrix();
+        final float[] values = new float[9];
+
+        /**
+         * Create a cursor at the start of a list
+         */
+        public Cursor() {
+            values[8] = 1;
+        }
+
+        /**
+         * Get the index of the next command to replay
+         */
+        public int getCommand() {
+            return command;
+        }
+    }
+
+    /**
+     * Replay the next command at a cursor, and move the cursor past it.
+     * The cursor is moved before the command is drawn, so a command that
+     * fails is skipped.
+     *
+     * @param c the cursor
+     * @param state the renderer to draw with
+     * @return the region of the page made dirty by the command, or null
+     * @throws PDFParseException if there is no next command
+     */
+    public RectF execute(Cursor c, PDFRenderer state) throws PDFParseException {
+        byte[] ops;
+        float[] floats;
+        int[] ints;
+        Object[] objects;
+        synchronized (this) {
+            if (c.command >= size) {
+                throw new PDFParseException("Command not found!");
+            }
+            ops = this.ops;
+            floats = this.floats;
+            ints = this.ints;
+            objects = this.objects;
+        }
+
+        c.command++;
+        byte op = ops[c.op++];
+        switch (op) {
+            case OP_PUSH:
+                state.push();
+                return null;
+            case OP_POP:
+                state.pop();
+                return null;
+            case OP_XFORM: {
+                float[] values = c.values;
+                System.arraycopy(floats, c.f, values, 0, 6);
+                c.f += 6;
+                c.matrix.setValues(values);
+                state.transform(c.matrix);
+                return null;
+            }
+            case OP_STROKE_WIDTH:
+                state.setStrokeParts(floats[c.f++], PDFRenderer.NOCAP,
+                        PDFRenderer.NOJOIN, PDFRenderer.NOLIMIT,
+                        PDFRenderer.NODASH, PDFRenderer.NOPHASE);
+                return null;
+            case OP_END_CAP:
+                state.setStrokeParts(PDFRenderer.NOWIDTH, CAPS[ints[c.i++]],
+                        PDFRenderer.NOJOIN, PDFRenderer.NOLIMIT,
+                        PDFRenderer.NODASH, PDFRenderer.NOPHASE);
+                return null;
+            case OP_LINE_JOIN:
+                state.setStrokeParts(PDFRenderer.NOWIDTH, PDFRenderer.NOCAP,
+                        JOINS[ints[c.i++]], PDFRenderer.NOLIMIT,
+                        PDFRenderer.NODASH, PDFRenderer.NOPHASE);
+                return null;
+            case OP_MITER_LIMIT:
+                state.setStrokeParts(PDFRenderer.NOWIDTH, PDFRenderer.NOCAP,
+                        PDFRenderer.NOJOIN, floats[c.f++],
+                        PDFRenderer.NODASH, PDFRenderer.NOPHASE);
+                return null;
+            case OP_DASH: {
+                int n = ints[c.i++];
+                float[] ary = null;
+                if (n >= 0) {
+                    ary = new float[n];
+                    System.arraycopy(floats, c.f, ary, 0, n);
+                    c.f += n;
+                }
+                float phase = floats[c.f++];
+                state.setStrokeParts(PDFRenderer.NOWIDTH, PDFRenderer.NOCAP,
+                        PDFRenderer.NOJOIN, PDFRenderer.NOLIMIT, ary, phase);
+                return null;
+            }
+            case OP_PATH: {
+                int style = ints[c.i++];
+                FillType fillType = FILL_TYPES[ints[c.i++]];
+                int verbCount = ints[c.i++];
+                Path path = c.path;
+                path.rewind();
+                path.setFillType(fillType);
+                int f = c.f;
+                for (int end = c.op + verbCount; c.op < end; c.op++) {
+                    switch (ops[c.op]) {
+                        case PDFPath.MOVE:
+                            path.moveTo(floats[f], floats[f + 1]);
+                            f += 2;
+                            break;
+                        case PDFPath.LINE:
+                            path.lineTo(floats[f], floats[f + 1]);
+                            f += 2;
+                            break;
+                        case PDFPath.QUAD:
+                            path.quadTo(floats[f], floats[f + 1],
+                                    floats[f + 2], floats[f + 3]);
+                            f += 4;
+                            break;
+                        case PDFPath.CUBIC:
+                            path.cubicTo(floats[f], floats[f + 1],
+                                    floats[f + 2], floats[f + 3],
+                                    floats[f + 4], floats[f + 5]);
+                            f += 6;
+                            break;
+                        default:
+                            path.close();
+                    }
+                }
+                c.f = f;
+                return drawPath(state, path, style);
+            }
+            case OP_SHAPE: {
+                int style = ints[c.i++];
+                return drawPath(state, (Path) objects[c.o++], style);
+            }
+            case OP_FILL_PAINT:
+                state.setFillPaint((PDFPaint) objects[c.o++]);
+                return null;
+            case OP_STROKE_PAINT:
+                state.setStrokePaint((PDFPaint) objects[c.o++]);
+                return null;
+            case OP_FILL_ALPHA:
+            case OP_STROKE_ALPHA:
+                // TODO [FHe]: fill and stroke alpha, as in PDFFillAlphaCmd
+                c.f++;
+                return null;
+            case OP_IMAGE:
+                return state.drawImage((PDFImage) objects[c.o++]);
+            case OP_CMD:
+                return ((PDFCmd) objects[c.o++]).execute(state);
+            default:
+                throw new PDFParseException("Bad display list opcode " + op);
+        }
+    }
+
+    /**
+     * Replay all the commands, from the first
+     *
+     * @param state the renderer to draw with
+     * @return the region of the page made dirty by the commands
+     */
+    RectF replay(PDFRenderer state) {
+        RectF rect = null;
+        Cursor cursor = new Cursor();
+        int size = size();
+        while (cursor.getCommand() < size) {
+            try {
+                RectF dirty = execute(cursor, state);
+                if (rect == null) {
+                    rect = dirty;
+                } else if (dirty != null) {
+                    rect.union(dirty);
+                }
+            } catch (PDFParseException e) {
+                break;
+            }
+        }
+        return rect;
+    }
+
+    /**
+     * draw a path the way PDFShapeCmd does
+     */
+    private static RectF drawPath(PDFRenderer state, Path path, int style) {
+        RectF rect = null;
+
+        if ((style & PDFShapeCmd.FILL) != 0) {
+            rect = state.fill(path);
+            state.setLastShape(path);
+        }
+        if ((style & PDFShapeCmd.STROKE) != 0) {
+            RectF strokeRect = state.stroke(path);
+            if (rect == null) {
+                rect = strokeRect;
+            } else {
+                rect.union(strokeRect);
+            }
+        }
+        if ((style & PDFShapeCmd.CLIP) != 0) {
+            state.clip(path);
+        }
+
+        return rect;
+    }
+}
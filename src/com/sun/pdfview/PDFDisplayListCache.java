@@ -0,0 +1,427 @@
+/*
+ * Copyright 2004 Sun Microsystems, Inc., 4150 Network Circle,
+ * Santa Clara, California 95054, U.S.A. All rights reserved.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package com.sun.pdfview;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.BufferUnderflowException;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+import android.graphics.Matrix;
+import android.graphics.Paint;
+import android.graphics.RectF;
+import android.graphics.Paint.Style;
+
+/**
+ * The display lists of parsed pages, kept in a directory of files so that
+ * a page parsed once doesn't have to be parsed again when the same PDF
+ * file is opened by a later process.
+ * <p>
+ * Each page is kept in a file of its own.  Like a PDFFileIndex, the file
+ * records the length, modification time and tail hash of the PDF file the
+ * list was made from, and is ignored if they don't match.  After the
+ * header come the float, int and opcode pools of the list, each written
+ * in one piece so each can be read back in one bulk copy, and then the
+ * object pool.
+ * <p>
+ * Only four kinds of object can be written: solid paints, images, which
+ * are written as the object number of their XObject and read again from
+ * the PDF file, native text, and forms.  The display list of a form is
+ * written, the same way, the first time the form is drawn, and later
+ * drawings of it just refer to that.  A page with any other object in its
+ * list, such as a Path that couldn't be packed, or a form that wasn't
+ * compiled, isn't cached.
+ * <p>
+ * A form is written with the object number of its XObject.  If the form
+ * has /Resources of its own, the images in its list are read again with
+ * those, as PDFForm parses it; if not, with those of what it is drawn on.
+ */
+class PDFDisplayListCache {
+
+    /** the first four bytes of a display list file, "PDLC" */
+    private static final int MAGIC = 0x50444C43;
+    /** the version of the format of display list files */
+    private static final int FORMAT = 3;
+
+    /** the tags of the objects in the object pool */
+    private static final byte FILL_PAINT = 1;
+    private static final byte STROKE_PAINT = 2;
+    private static final byte IMAGE = 3;
+    private static final byte NATIVE_TEXT = 4;
+    private static final byte FORM = 5;
+
+    /** the directory the files are kept in */
+    private final File dir;
+    /** the length, modification time and tail hash of the PDF file */
+    private final PDFFileIndex key;
+
+    /**
+     * Create a cache for a version of a PDF file
+     *
+     * @param dir the directory to keep the files in.  It is created when
+     * the first page is written.
+     * @param key an empty index holding the length, modification time and
+     * tail hash of the PDF file
+     */
+    PDFDisplayListCache(File dir, PDFFileIndex key) {
+        this.dir = dir;
+        this.key = key;
+    }
+
+    /**
+     * get the file a page is kept in
+     */
+    private File getFile(int pagenum) {
+        return new File(dir, "page" + pagenum + ".pdl");
+    }
+
+    /**
+     * Read the display list of a page, and finish the page with it.
+     *
+     * @param pagenum the number of the page, starting at 1
+     * @param page the new, empty page, with a display list
+     * @param file the PDF file, to read the images from
+     * @param resources the resources of the page
+     * @return true if the page was read, false if it isn't in the cache,
+     * or its file is for another version of the PDF file, or can't be read
+     */
+    boolean read(int pagenum, PDFPage page, PDFFile file,
+            HashMap<String, PDFObject> resources) {
+        PDFDisplayList list = page.getDisplayList();
+        File listFile = getFile(pagenum);
+        if (list == null || !listFile.isFile()) {
+            return false;
+        }
+
+        RandomAccessFile raf = null;
+        try {
+            raf = new RandomAccessFile(listFile, "r");
+            FileChannel channel = raf.getChannel();
+            java.nio.ByteBuffer map =
+                    channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+
+            if (map.getInt() != MAGIC || map.getInt() != FORMAT ||
+                    map.getLong() != key.fileLength ||
+                    map.getLong() != key.lastModified ||
+                    map.getInt() != key.tailHash ||
+                    map.getInt() != pagenum) {
+                return false;
+            }
+
+            readList(map, list, file, resources,
+                    new HashMap<Integer, PDFImage>(), new ArrayList<PDFFormCmd>());
+            page.finish();
+            return true;
+        } catch (IOException e) {
+            System.out.println("Could not read display list " + listFile + ": " + e);
+            return false;
+        } catch (BufferUnderflowException e) {
+            System.out.println("Display list " + listFile + " is truncated");
+            return false;
+        } catch (RuntimeException e) {
+            System.out.println("Could not read display list " + listFile + ": " + e);
+            return false;
+        } finally {
+            if (raf != null) {
+                try {
+                    raf.close();
+                } catch (IOException e) {
+                    // nothing left to do with it anyway
+                }
+            }
+        }
+    }
+
+    /**
+     * read the pools of a display list into it
+     * @param resources the resources the images in the list are read with
+     * @param images the images read so far, by object number
+     * @param forms the forms read so far, in the order they were written
+     */
+    private static void readList(java.nio.ByteBuffer map, PDFDisplayList list,
+            PDFFile file, HashMap<String, PDFObject> resources,
+            Map<Integer, PDFImage> images, List<PDFFormCmd> forms)
+            throws IOException {
+        int size = map.getInt();
+        int opLength = map.getInt();
+        int floatCount = map.getInt();
+        int intCount = map.getInt();
+        int objectCount = map.getInt();
+        if (size < 0 || opLength < 0 || floatCount < 0 || intCount < 0 ||
+                objectCount < 0) {
+            throw new PDFParseException("Bad display list sizes");
+        }
+
+        float[] floats = PDFFileIndex.readFloats(map, floatCount);
+        int[] ints = PDFFileIndex.readInts(map, intCount);
+        byte[] ops = new byte[opLength];
+        map.get(ops);
+        Object[] objects = new Object[objectCount];
+        for (int i = 0; i < objectCount; i++) {
+            objects[i] = readObject(map, file, resources, images, forms);
+        }
+
+        list.load(ops, floats, ints, objects, size);
+    }
+
+    /**
+     * read one object of the object pool.  An image or form drawn more
+     * than once is only created once.
+     */
+    private static Object readObject(java.nio.ByteBuffer map, PDFFile file,
+            HashMap<String, PDFObject> resources, Map<Integer, PDFImage> images,
+            List<PDFFormCmd> forms) throws IOException {
+        byte tag = map.get();
+        switch (tag) {
+            case FILL_PAINT:
+                return PDFPaint.getPaint(map.getInt());
+            case STROKE_PAINT:
+                return PDFPaint.getColorPaint(map.getInt());
+            case IMAGE: {
+                int num = map.getInt();
+                int gen = map.getInt();
+                PDFImage image = images.get(num);
+                if (image == null) {
+                    PDFObject imageObj =
+                            new PDFObject(file, new PDFXref(num, gen));
+                    image = PDFImage.createImage(imageObj, resources);
+                    images.put(num, image);
+                }
+                return image;
+            }
+            case NATIVE_TEXT: {
+                String text = new String(PDFFileIndex.readBytes(map), "UTF-8");
+                Matrix mat = new Matrix();
+                mat.setValues(PDFFileIndex.readFloats(map, 9));
+                return new PDFNativeTextCmd(text, mat);
+            }
+            case FORM: {
+                int index = map.getInt();
+                if (index < 0 || index > forms.size()) {
+                    throw new PDFParseException("Bad display list form " + index);
+                }
+                if (index == forms.size()) {
+                    // the first time the form is drawn: its list follows.
+                    // It is known before it is read, in case it draws itself.
+                    int num = map.getInt();
+                    int gen = map.getInt();
+                    float[] bbox = PDFFileIndex.readFloats(map, 4);
+                    PDFPage form = new PDFPage(
+                            new RectF(bbox[0], bbox[1], bbox[2], bbox[3]), 0);
+                    if (form.getDisplayList() == null) {
+                        throw new PDFParseException("Display lists are off");
+                    }
+                    PDFObject formObj = new PDFObject(file, new PDFXref(num, gen));
+                    forms.add(new PDFFormCmd(form, formObj));
+
+                    // the images of a form with resources of its own are
+                    // read with just those, as the form was parsed.  An
+                    // image already read for another list is shared only
+                    // with the lists that use the same resources.
+                    HashMap<String, PDFObject> formResources = resources;
+                    Map<Integer, PDFImage> formImages = images;
+                    PDFObject rsrc = formObj.getDictRef("Resources");
+                    if (rsrc != null) {
+                        formResources = rsrc.getDictionary();
+                        formImages = new HashMap<Integer, PDFImage>();
+                    }
+                    readList(map, form.getDisplayList(), file, formResources,
+                            formImages, forms);
+                    form.finish();
+                }
+                return forms.get(index);
+            }
+            default:
+                throw new PDFParseException("Unknown display list object " + tag);
+        }
+    }
+
+    /**
+     * Write the display list of a page, unless it holds an object that
+     * can't be written.  It is written to a temporary file first, and then
+     * renamed, so a reader never sees half a list.
+     *
+     * @param pagenum the number of the page, starting at 1
+     * @param list the finished display list of the page
+     * @return true if the list was written, false if it can't be
+     */
+    boolean write(int pagenum, PDFDisplayList list) throws IOException {
+        synchronized (list) {
+            if (!canWrite(list, new IdentityHashMap<PDFPage, PDFPage>())) {
+                return false;
+            }
+
+            if (!dir.isDirectory() && !dir.mkdirs()) {
+                throw new IOException("Could not create " + dir);
+            }
+
+            File listFile = getFile(pagenum);
+            File tmp = new File(listFile.getPath() + ".tmp");
+            DataOutputStream out = new DataOutputStream(
+                    new BufferedOutputStream(new FileOutputStream(tmp), 64 * 1024));
+            try {
+                out.writeInt(MAGIC);
+                out.writeInt(FORMAT);
+                out.writeLong(key.fileLength);
+                out.writeLong(key.lastModified);
+                out.writeInt(key.tailHash);
+                out.writeInt(pagenum);
+                writeList(out, list, new IdentityHashMap<PDFPage, Integer>());
+            } finally {
+                out.close();
+            }
+
+            // renameTo won't replace a file on every platform
+            listFile.delete();
+            if (!tmp.renameTo(listFile)) {
+                tmp.delete();
+                throw new IOException("Could not create " + listFile);
+            }
+            return true;
+        }
+    }
+
+    /**
+     * check whether every object of the object pool of a list can be
+     * written
+     * @param forms the forms checked already, or being checked
+     */
+    private static boolean canWrite(PDFDisplayList list,
+            Map<PDFPage, PDFPage> forms) {
+        synchronized (list) {
+            Object[] objects = list.getObjects();
+            int objectCount = list.getObjectCount();
+            for (int i = 0; i < objectCount; i++) {
+                if (!canWrite(objects[i], forms)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+
+    /**
+     * check whether an object of the object pool can be written
+     */
+    private static boolean canWrite(Object obj, Map<PDFPage, PDFPage> forms) {
+        if (obj instanceof PDFFormCmd) {
+            // the form's XObject is needed to find its resources again
+            PDFObject formObj = ((PDFFormCmd) obj).getFormObject();
+            if (formObj == null || formObj.getXref() == null) {
+                return false;
+            }
+            PDFPage form = ((PDFFormCmd) obj).getForm();
+            if (forms.put(form, form) != null) {
+                return true;
+            }
+            // the form may still be being parsed on another thread, which
+            // never waits for this one
+            try {
+                form.waitForFinish();
+            } catch (InterruptedException e) {
+                return false;
+            }
+            return form.getDisplayList() != null &&
+                    canWrite(form.getDisplayList(), forms);
+        }
+        if (obj instanceof PDFImage) {
+            // inline images have no object to read them again from
+            return obj.getClass() == PDFImage.class &&
+                    ((PDFImage) obj).getImageObject().getXref() != null;
+        }
+        return (obj != null && obj.getClass() == PDFPaint.class) ||
+                obj instanceof PDFNativeTextCmd;
+    }
+
+    /**
+     * write the pools of a display list
+     * @param forms the index of each form written so far
+     */
+    private static void writeList(DataOutputStream out, PDFDisplayList list,
+            Map<PDFPage, Integer> forms) throws IOException {
+        synchronized (list) {
+            Object[] objects = list.getObjects();
+            int objectCount = list.getObjectCount();
+
+            out.writeInt(list.size());
+            out.writeInt(list.getOpLength());
+            out.writeInt(list.getFloatCount());
+            out.writeInt(list.getIntCount());
+            out.writeInt(objectCount);
+
+            PDFFileIndex.writeFloats(out, list.getFloats(), list.getFloatCount());
+            PDFFileIndex.writeInts(out, list.getInts(), list.getIntCount());
+            out.write(list.getOps(), 0, list.getOpLength());
+            for (int i = 0; i < objectCount; i++) {
+                writeObject(out, objects[i], forms);
+            }
+        }
+    }
+
+    /**
+     * write one object of the object pool
+     */
+    private static void writeObject(DataOutputStream out, Object obj,
+            Map<PDFPage, Integer> forms) throws IOException {
+        if (obj instanceof PDFFormCmd) {
+            PDFPage form = ((PDFFormCmd) obj).getForm();
+            Integer index = forms.get(form);
+            out.writeByte(FORM);
+            if (index != null) {
+                out.writeInt(index);
+            } else {
+                out.writeInt(forms.size());
+                forms.put(form, forms.size());
+                PDFXref ref = ((PDFFormCmd) obj).getFormObject().getXref();
+                out.writeInt(ref.getID());
+                out.writeInt(ref.getGeneration());
+                RectF bbox = form.getBBox();
+                PDFFileIndex.writeFloats(out, new float[] {
+                    bbox.left, bbox.top, bbox.right, bbox.bottom }, 4);
+                writeList(out, form.getDisplayList(), forms);
+            }
+        } else if (obj instanceof PDFPaint) {
+            Paint paint = ((PDFPaint) obj).getPaint();
+            out.writeByte(paint.getStyle() == Style.STROKE ?
+                    STROKE_PAINT : FILL_PAINT);
+            out.writeInt(paint.getColor());
+        } else if (obj instanceof PDFImage) {
+            PDFXref ref = ((PDFImage) obj).getImageObject().getXref();
+            out.writeByte(IMAGE);
+            out.writeInt(ref.getID());
+            out.writeInt(ref.getGeneration());
+        } else {
+            PDFNativeTextCmd cmd = (PDFNativeTextCmd) obj;
+            float[] values = new float[9];
+            cmd.getMatrix().getValues(values);
+            out.writeByte(NATIVE_TEXT);
+            PDFFileIndex.writeBytes(out, cmd.getText().getBytes("UTF-8"));
+            PDFFileIndex.writeFloats(out, values, 9);
+        }
+    }
+}
@@ -20,13 +20,17 @@
  */
 package com.sun.pdfview;
 
+import java.io.File;
 import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.Iterator;
 import java.util.Map;
 import java.util.StringTokenizer;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.zip.CRC32;
 
 import net.sf.andpdf.nio.ByteBuffer;
 
@@ -71,7 +75,46 @@ public class PDFFile {
      * the cross reference table mapping object numbers to locations
      * in the PDF file
      */
-    PDFXref[] objIdx;
+    PDFXrefTable objIdx;
+    /**
+     * whether only the newest cross reference sections are read when the
+     * file is opened, leaving the older ones until they are needed
+     */
+    private final boolean lazyXref;
+    /**
+     * the position of the next older cross reference section still to be
+     * read, or -1 once the whole chain has been read.  Guarded by objIdx.
+     */
+    private int xrefPrev = -1;
+    /** whether objIdx is being filled in from an older section */
+    private boolean readingXref;
+    /** the linearization parameters, or null if the file isn't linearized */
+    private PDFLinearization linearization;
+    /** the ID from the trailer the Encrypt entry was found in */
+    private PDFObject documentId;
+    /** whether the xref was rebuilt by scanning the file */
+    private boolean repaired;
+    /** the file to keep the index of this file in, or null */
+    private File indexFile;
+    /** the length, modification time and tail hash of the file */
+    private PDFFileIndex indexKey;
+    /** whether the file was opened from its index */
+    private boolean indexed;
+    /**
+     * the flattened page tree, read from the index file or built the
+     * first time a page is asked for
+     */
+    private volatile PDFPageIndex pageIndex;
+    /** the lock held while building the page index */
+    private final Object pageIndexLock = new Object();
+    /** the display lists of parsed pages kept on disk, or null */
+    private volatile PDFDisplayListCache listCache;
+    /**
+     * the objects currently being parsed, by object number, so that each
+     * object is only parsed once however many threads ask for it
+     */
+    private final ConcurrentHashMap<Integer, PendingObject> pending =
+            new ConcurrentHashMap<Integer, PendingObject>();
     /** the root PDFObject, as specified in the PDF file */
     PDFObject root = null;
     /** the Encrypt PDFObject, from the trailer */
@@ -133,10 +176,91 @@ public class PDFFile {
      *  protected and the supplied password does not decrypt the document
      */
     public PDFFile(ByteBuffer buf, PDFPassword password) throws IOException {
+        this(buf, password, false);
+    }
+
+    /**
+     * get a PDFFile from a .pdf file, optionally reading its cross reference
+     * sections lazily.
+     * <p>
+     * A file that has been saved incrementally has one cross reference
+     * section per save, each pointing at the one before it.  Normally all of
+     * them are read when the file is opened.  With a lazy xref only the
+     * newest section is read up front; older sections are read, newest
+     * first, the first time an object is asked for that the sections read
+     * so far don't define.  For files with many incremental updates this
+     * gets the first page on screen much sooner.
+     * @param buf the RandomAccessFile containing the PDF.
+     * @param password the user or owner password
+     * @param lazyXref whether to read older cross reference sections only
+     *  when they are needed
+     * @throws IOException if there's a problem reading from the buffer
+     * @throws PDFParseException if the document appears to be malformed, or
+     *  its features are unsupported. If the file is encrypted in a manner that
+     *  the product or platform does not support then the exception's {@link
+     *  PDFParseException#getCause() cause} will be an instance of {@link
+     *  UnsupportedEncryptionException}.
+     * @throws PDFAuthenticationFailureException if the file is password
+     *  protected and the supplied password does not decrypt the document
+     */
+    public PDFFile(ByteBuffer buf, PDFPassword password, boolean lazyXref)
+            throws IOException {
+        this.buf = buf;
+        this.lazyXref = lazyXref;
+
+        cache = new Cache();
+
+        parseFile(password);
+    }
+
+    /**
+     * get a PDFFile from a .pdf file, through an index file kept for it.
+     * <p>
+     * The index holds the whole cross reference table and page tree of the
+     * file, flattened, so if there is an up to date index the file opens
+     * without reading either, and any page is found without walking the
+     * page tree.  If the index is missing, or is for an older version of
+     * the file, the file is opened with a lazy xref instead; call
+     * {@link #writeIndex()} afterwards, typically on a background thread,
+     * to bring the index up to date for the next time.
+     * @param buf the RandomAccessFile containing the PDF.
+     * @param password the user or owner password
+     * @param file the PDF file buf was read from, whose length and
+     *  modification time tell whether the index is up to date
+     * @param indexFile the file to keep the index in
+     * @throws IOException if there's a problem reading from the buffer
+     * @throws PDFParseException if the document appears to be malformed, or
+     *  its features are unsupported. If the file is encrypted in a manner that
+     *  the product or platform does not support then the exception's {@link
+     *  PDFParseException#getCause() cause} will be an instance of {@link
+     *  UnsupportedEncryptionException}.
+     * @throws PDFAuthenticationFailureException if the file is password
+     *  protected and the supplied password does not decrypt the document
+     */
+    public PDFFile(ByteBuffer buf, PDFPassword password, File file,
+            File indexFile) throws IOException {
         this.buf = buf;
+        this.lazyXref = true;
+        this.indexFile = indexFile;
 
         cache = new Cache();
 
+        indexKey = new PDFFileIndex(file.length(), file.lastModified(),
+                getTailHash(buf));
+        PDFFileIndex index = PDFFileIndex.read(indexFile, indexKey);
+        if (index != null) {
+            try {
+                readIndex(index, password);
+                return;
+            } catch (IOException e) {
+                if (e instanceof PDFAuthenticationFailureException ||
+                        e.getCause() instanceof UnsupportedEncryptionException) {
+                    throw e;
+                }
+                System.out.println("Could not open through index " + indexFile + ": " + e);
+            }
+        }
+
         parseFile(password);
     }
 
@@ -171,6 +295,12 @@ public class PDFFile {
      * numbered from 1 to getNumPages(), inclusive.
      */
     public int getNumPages() {
+        if (pageIndex != null) {
+            return pageIndex.size();
+        }
+        if (linearization != null) {
+            return linearization.getNumPages();
+        }
         try {
             return root.getDictRef("Pages").getDictRef("Count").getIntValue();
         } catch (Exception ioe) {
@@ -179,6 +309,40 @@ public class PDFFile {
         }
     }
 
+    /**
+     * Is this a linearized ("fast web view") file?  The first page of a
+     * linearized file can be shown before the rest of the file is read.
+     */
+    public boolean isLinearized() {
+        return linearization != null;
+    }
+
+    /**
+     * Get the linearization parameters of this file, including the hinted
+     * position of each page, so the data for a page can be fetched ahead
+     * of showing it.
+     * @return the parameters, or null if the file isn't linearized
+     */
+    public PDFLinearization getLinearization() {
+        return linearization;
+    }
+
+    /**
+     * Was the file damaged, so that its cross reference table had to be
+     * rebuilt by scanning the whole file?
+     */
+    public boolean isRepaired() {
+        return repaired;
+    }
+
+    /**
+     * Was the file opened from an up to date index, without reading its
+     * cross reference sections?
+     */
+    public boolean isIndexed() {
+        return indexed;
+    }
+
     /**
      * Get metadata (e.g., Author, Title, Creator) from the Info dictionary
      * as a string.
@@ -216,90 +380,224 @@ public class PDFFile {
      * Used internally to track down PDFObject references.  You should never
      * need to call this.
      * <p>
-     * Since this is the only public method for tracking down PDF objects,
-     * it is synchronized.  This means that the PDFFile can only hunt down
-     * one object at a time, preventing the file's location from getting
-     * messed around.
-     * <p>
-     * This call stores the current buffer position before any changes are made
-     * and restores it afterwards, so callers need not know that the position
-     * has changed.
+     * This method is not synchronized on the file: each object is parsed
+     * from its own duplicate of the file buffer, so any number of threads
+     * may resolve different objects at the same time without disturbing
+     * each other's read position.  An object that has already been parsed
+     * is returned without taking any lock.  While an object is being parsed
+     * it is registered as pending, and other threads asking for the same
+     * object wait for that parse to finish, so a given object is parsed
+     * once and the same PDFObject is handed to every caller.
      *
      */
-    public synchronized PDFObject dereference(PDFXref ref, PDFDecrypter decrypter)
+    public PDFObject dereference(PDFXref ref, PDFDecrypter decrypter)
             throws IOException {
 		int id = ref.getID();
 		
-		// make sure the id is valid and has been read
-		if (id >= objIdx.length || objIdx[id] == null) {
-		    return PDFObject.nullObj;
-		}
-		
 		// check to see if this is already dereferenced
-		PDFObject obj = objIdx[id].getObject();
+		PDFObject obj = objIdx.getObject(id);
 		if (obj != null) {
 		    return obj;
 		}
 		
-		// store the current position in the buffer
-		int startPos = buf.position();
-		
-		boolean compressed = objIdx[id].getCompressed();
-		if (!compressed) {
-		    int loc = objIdx[id].getFilePos();
-		    if (loc < 0) {
-		        return PDFObject.nullObj;
+		Integer key = Integer.valueOf(id);
+		PendingObject mine = new PendingObject();
+		while (true) {
+		    PendingObject other = pending.putIfAbsent(key, mine);
+		    if (other == null) {
+		        break;
 		    }
+		    if (other.owner == mine.owner) {
+		        // a reference back to an object this thread is parsing
+		        return readIndexedObject(id, ref, decrypter);
+		    }
+		    obj = other.await();
+		    if (obj != null) {
+		        return obj;
+		    }
+		    // the other thread failed, so try it ourselves
+		}
 		
-		    // move to where this object is
-		    buf.position(loc);
-		
-		    // read the object and cache the reference
-		    obj= readObject(ref.getID(), ref.getGeneration(), decrypter);
+		try {
+		    // someone else may have parsed it before we registered
+		    obj = objIdx.getObject(id);
+		    if (obj == null) {
+		        obj = readIndexedObject(id, ref, decrypter);
+		        if (obj == null) {
+		            obj = PDFObject.nullObj;
+		        }
+		        objIdx.setObject(id, obj);
+		    }
+		} finally {
+		    pending.remove(key);
+		    mine.finish(obj);
 		}
-		else { // compressed
-		    int compId = objIdx[id].getID();
-		    int idx = objIdx[id].getIndex();
-		    if (idx < 0)
-		        return PDFObject.nullObj;
-		    PDFXref compRef = new PDFXref(compId, 0);
-		    PDFObject compObj = dereference(compRef, decrypter);
-		    int first = compObj.getDictionary().get("First").getIntValue();
-		    int length = compObj.getDictionary().get("Length").getIntValue();
-		    int n = compObj.getDictionary().get("N").getIntValue();
-		    if (idx >= n)
-		        return PDFObject.nullObj;
-		    ByteBuffer strm = compObj.getStreamBuffer();
-		    
-			ByteBuffer oldBuf = buf;
-			buf = strm;
-		    // skip other nums
-		    for (int i=0; i<idx; i++) {
-		    	PDFObject skip1num= readObject(-1, -1, true, IdentityDecrypter.getInstance());
-		    	PDFObject skip2num= readObject(-1, -1, true, IdentityDecrypter.getInstance());
+		
+		return obj;
+    }
+
+    /**
+     * Parse the object described by a cross reference entry.  The object is
+     * read from a private view of the file (or of the containing object
+     * stream), so the shared buffer position is never touched.
+     *
+     * @param id the object number to read
+     * @param ref the reference being resolved
+     * @param decrypter the decrypter to use
+     * @return the object, or null if it could not be found
+     */
+    private PDFObject readIndexedObject(int id, PDFXref ref,
+            PDFDecrypter decrypter) throws IOException {
+		byte type;
+		int position;
+		int generation;
+		synchronized (objIdx) {
+		    // an object missing from the sections read so far may be
+		    // defined in an older one
+		    if (xrefPrev >= 0 &&
+		            objIdx.getType(id) == PDFXrefTable.UNDEFINED) {
+		        readOlderXref(id);
 		    }
-			PDFObject objNumPO= readObject(-1, -1, true, IdentityDecrypter.getInstance());
-			PDFObject offsetPO= readObject(-1, -1, true, IdentityDecrypter.getInstance());
-			int objNum = objNumPO.getIntValue();
-			int offset = offsetPO.getIntValue();
-			if (objNum != id)
+		    type = objIdx.getType(id);
+		    if (type == PDFXrefTable.UNDEFINED || type == PDFXrefTable.FREE) {
 		        return PDFObject.nullObj;
-			
-			buf.position(first+offset);
-			obj= readObject(objNum, 0, IdentityDecrypter.getInstance());
-			buf = oldBuf;
+		    }
+		    position = objIdx.getPosition(id);
+		    generation = objIdx.getGeneration(id);
 		}
 		
-		if (obj == null) {
-		    obj = PDFObject.nullObj;
-		}
+		if (type == PDFXrefTable.IN_USE) {
+		    int loc = position;
+		    if (loc < 0) {
+		        return PDFObject.nullObj;
+		    }
 		
-		objIdx[id].setObject(obj);
+		    // move our own view to where this object is
+		    ByteBuffer view = buf.duplicate();
+		    view.position(loc);
 		
-		// reset to the previous position
-		buf.position(startPos);
+		    // read the object
+		    return readObject(view, id, ref.getGeneration(), decrypter);
+		}
 		
-		return obj;
+		// compressed
+		int compId = position;
+		int idx = generation;
+		if (idx < 0)
+		    return PDFObject.nullObj;
+		PDFXref compRef = new PDFXref(compId, 0);
+		PDFObject compObj = dereference(compRef, decrypter);
+		ObjectStreamIndex index = getObjectStreamIndex(compObj);
+		if (idx >= index.objNums.length)
+		    return PDFObject.nullObj;
+		if (index.objNums[idx] != id)
+		    return PDFObject.nullObj;
+		
+		// getStreamBuffer() already hands out a duplicate
+		ByteBuffer strm = compObj.getStreamBuffer();
+		strm.position(index.first + index.offsets[idx]);
+		return readObject(strm, id, 0, IdentityDecrypter.getInstance());
+    }
+
+    /**
+     * Get the table of object numbers and offsets at the start of an object
+     * stream.  The table is parsed the first time any object in the stream
+     * is asked for, and is then kept in the cache of the stream object, next
+     * to its decoded data, so that later lookups need no parsing at all.
+     *
+     * @param compObj the object stream (a /Type /ObjStm stream)
+     * @return the index of the objects in the stream
+     */
+    private ObjectStreamIndex getObjectStreamIndex(PDFObject compObj)
+            throws IOException {
+        Object cached = compObj.getCache();
+        if (cached instanceof ObjectStreamIndex) {
+            return (ObjectStreamIndex) cached;
+        }
+
+        synchronized (compObj) {
+            cached = compObj.getCache();
+            if (cached instanceof ObjectStreamIndex) {
+                return (ObjectStreamIndex) cached;
+            }
+
+            int first = compObj.getDictRef("First").getIntValue();
+            int n = compObj.getDictRef("N").getIntValue();
+            ObjectStreamIndex index = new ObjectStreamIndex(first, n);
+
+            // read the n pairs of (object number, offset) in one pass
+            ByteBuffer strm = compObj.getStreamBuffer();
+            for (int i = 0; i < n; i++) {
+                PDFObject objNumPO = readObject(strm, -1, -1, true,
+                        IdentityDecrypter.getInstance());
+                PDFObject offsetPO = readObject(strm, -1, -1, true,
+                        IdentityDecrypter.getInstance());
+                if (objNumPO == null || offsetPO == null) {
+                    throw new PDFParseException("Object stream " +
+                            compObj.getObjNum() + " has fewer than " + n +
+                            " entries");
+                }
+                index.objNums[i] = objNumPO.getIntValue();
+                index.offsets[i] = offsetPO.getIntValue();
+            }
+
+            compObj.setCache(index);
+            return index;
+        }
+    }
+
+    /**
+     * The parsed header of an object stream: the object number and the
+     * offset (relative to /First) of each object it contains, in stream
+     * order.
+     */
+    private static class ObjectStreamIndex {
+
+        /** the offset of the first object in the decoded stream */
+        final int first;
+        /** the object numbers, by index within the stream */
+        final int[] objNums;
+        /** the offsets relative to first, by index within the stream */
+        final int[] offsets;
+
+        ObjectStreamIndex(int first, int n) {
+            this.first = first;
+            this.objNums = new int[n];
+            this.offsets = new int[n];
+        }
+    }
+
+    /**
+     * An object some thread is in the middle of parsing.  Other threads
+     * that want the same object wait on this until it is finished.
+     */
+    private static class PendingObject {
+
+        /** the thread parsing the object */
+        final Thread owner = Thread.currentThread();
+        /** the parsed object, or null if parsing failed */
+        private PDFObject obj;
+        /** whether the parse is over */
+        private boolean done;
+
+        synchronized void finish(PDFObject obj) {
+            this.obj = obj;
+            this.done = true;
+            notifyAll();
+        }
+
+        synchronized PDFObject await() throws IOException {
+            while (!done) {
+                try {
+                    wait();
+                } catch (InterruptedException ie) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException(
+                            "Interrupted waiting for an object to be parsed");
+                }
+            }
+            return obj;
+        }
     }
 
     /**
@@ -357,6 +655,7 @@ public class PDFFile {
 
     /**
      * read the next object from the file
+     * @param buf the buffer to read from, positioned at the object
      * @param objNum the object number of the object containing the object
      *  being read; negative only if the object number is unavailable (e.g., if
      *  reading from the trailer, or reading at the top level, in which
@@ -366,8 +665,8 @@ public class PDFFile {
      * @param decrypter the decrypter to use
      */
     private PDFObject readObject(
-            int objNum, int objGen, PDFDecrypter decrypter) throws IOException {
-	return readObject(objNum, objGen, false, decrypter);
+            ByteBuffer buf, int objNum, int objGen, PDFDecrypter decrypter) throws IOException {
+	return readObject(buf, objNum, objGen, false, decrypter);
     }
 
     /**
@@ -375,6 +674,7 @@ public class PDFFile {
      * @param numscan if true, don't bother trying to see if a number is
      *  an object reference (used when already in the middle of testing for
      *  an object reference, and not otherwise)
+     * @param buf the buffer to read from, positioned at the object
      * @param objNum the object number of the object containing the object
      *  being read; negative only if the object number is unavailable (e.g., if
      *  reading from the trailer, or reading at the top level, in which
@@ -384,7 +684,7 @@ public class PDFFile {
      * @param decrypter the decrypter to use
      */
     private PDFObject readObject(
-            int objNum, int objGen,
+            ByteBuffer buf, int objNum, int objGen,
             boolean numscan, PDFDecrypter decrypter) throws IOException {
         // skip whitespace
         int c;
@@ -398,25 +698,25 @@ public class PDFFile {
                 c = buf.get();
                 if (c == '<') {
                     // it's a dictionary
-		    obj= readDictionary(objNum, objGen, decrypter);
+		    obj= readDictionary(buf, objNum, objGen, decrypter);
                 } else {
                     buf.position(buf.position() - 1);
-		    obj= readHexString(objNum, objGen, decrypter);
+		    obj= readHexString(buf, objNum, objGen, decrypter);
                 }
             } else if (c == '(') {
-		obj= readLiteralString(objNum, objGen, decrypter);
+		obj= readLiteralString(buf, objNum, objGen, decrypter);
             } else if (c == '[') {
                 // it's an array
-		obj= readArray(objNum, objGen, decrypter);
+		obj= readArray(buf, objNum, objGen, decrypter);
             } else if (c == '/') {
                 // it's a name
-                obj = readName();
+                obj = readName(buf);
             } else if (c == '%') {
                 // it's a comment
-                readLine();
+                readLine(buf);
             } else if ((c >= '0' && c <= '9') || c == '-' || c == '+' || c == '.') {
                 // it's a number
-                obj = readNumber((char) c);
+                obj = readNumber(buf, (char) c);
                 if (!numscan) {
                     // It could be the start of a reference.
                     // Check to see if there's another number, then "R".
@@ -425,10 +725,10 @@ public class PDFFile {
                     // from dereference, which already is using a mark
                     int startPos = buf.position();
 
-		    PDFObject testnum= readObject(-1, -1, true, decrypter);
+		    PDFObject testnum= readObject(buf, -1, -1, true, decrypter);
                     if (testnum != null &&
                             testnum.getType() == PDFObject.NUMBER) {
-			PDFObject testR= readObject(-1, -1, true, decrypter);
+			PDFObject testR= readObject(buf, -1, -1, true, decrypter);
                         if (testR != null &&
                                 testR.getType() == PDFObject.KEYWORD &&
                                 testR.getStringValue().equals("R")) {
@@ -442,7 +742,7 @@ public class PDFFile {
                                 testR.getType() == PDFObject.KEYWORD &&
                                 testR.getStringValue().equals("obj")) {
                             // it's an object description
-			    obj= readObjectDescription(
+			    obj= readObjectDescription(buf,
                                     obj.getIntValue(),
                                     testnum.getIntValue(),
                                     decrypter);
@@ -455,7 +755,7 @@ public class PDFFile {
                 }
             } else if ((c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z')) {
                 // it's a keyword
-                obj = readKeyword((char) c);
+                obj = readKeyword(buf, (char) c);
             } else {
                 // it's probably a closing character.
                 // throwback
@@ -473,7 +773,7 @@ public class PDFFile {
      * must be in the file
      * @return true if the next characters match; false otherwise.
      */
-    private boolean nextItemIs(String match) throws IOException {
+    private boolean nextItemIs(ByteBuffer buf, String match) throws IOException {
         // skip whitespace
         int c;
         while (isWhiteSpace(c = buf.get())) {
@@ -546,22 +846,22 @@ public class PDFFile {
      * @return the Dictionary as a PDFObject.
      */
     private PDFObject readDictionary(
-            int objNum, int objGen, PDFDecrypter decrypter) throws IOException {
+            ByteBuffer buf, int objNum, int objGen, PDFDecrypter decrypter) throws IOException {
         HashMap<String,PDFObject> hm = new HashMap<String,PDFObject>();
         // we've already read the <<.  Now get /Name obj pairs until >>
         PDFObject name;
-	while ((name= readObject(objNum, objGen, decrypter))!=null) {
+	while ((name= readObject(buf, objNum, objGen, decrypter))!=null) {
             // make sure first item is a NAME
             if (name.getType() != PDFObject.NAME) {
                 throw new PDFParseException("First item in dictionary must be a /Name.  (Was " + name + ")");
             }
-	    PDFObject value= readObject(objNum, objGen, decrypter);
+	    PDFObject value= readObject(buf, objNum, objGen, decrypter);
             if (value != null) {
                 hm.put(name.getStringValue(), value);
             }
         }
         //	System.out.println("End of dictionary at location "+raf.getFilePointer());
-        if (!nextItemIs(">>")) {
+        if (!nextItemIs(buf, ">>")) {
             throw new PDFParseException("End of dictionary wasn't '>>'");
         }
         //	System.out.println("Dictionary closed at location "+raf.getFilePointer());
@@ -575,7 +875,7 @@ public class PDFFile {
      * hexidecimal character.  Returns -1 if the next character isn't in
      * [0-9a-fA-F]
      */
-    private int readHexDigit() throws IOException {
+    private int readHexDigit(ByteBuffer buf) throws IOException {
         int a;
         while (isWhiteSpace(a = buf.get())) {
         }
@@ -603,13 +903,13 @@ public class PDFFile {
      * and reset the read head.  If there is only one hex character,
      * return its value as if there were an implicit 0 after it.
      */
-    private int readHexPair() throws IOException {
-        int first = readHexDigit();
+    private int readHexPair(ByteBuffer buf) throws IOException {
+        int first = readHexDigit(buf);
         if (first < 0) {
             buf.position(buf.position() - 1);
             return -1;
         }
-        int second = readHexDigit();
+        int second = readHexDigit(buf);
         if (second < 0) {
             buf.position(buf.position() - 1);
             return (first << 4);
@@ -629,11 +929,11 @@ public class PDFFile {
      * @param decrypter the decrypter to use
      */
     private PDFObject readHexString(
-            int objNum, int objGen, PDFDecrypter decrypter) throws IOException {
+            ByteBuffer buf, int objNum, int objGen, PDFDecrypter decrypter) throws IOException {
         // we've already read the <. Now get the hex bytes until >
         int val;
         StringBuffer sb = new StringBuffer();
-        while ((val = readHexPair()) >= 0) {
+        while ((val = readHexPair(buf)) >= 0) {
             sb.append((char) val);
         }
         if (buf.get() != '>') {
@@ -677,7 +977,7 @@ public class PDFFile {
      * @param decrypter the decrypter to use
      */
     private PDFObject readLiteralString(
-            int objNum, int objGen, PDFDecrypter decrypter) throws IOException {
+            ByteBuffer buf, int objNum, int objGen, PDFDecrypter decrypter) throws IOException {
         int c;
 
         // we've already read the (.  now get the characters until a
@@ -780,7 +1080,7 @@ public class PDFFile {
      * DataInput -- it reads character by character until a '\n' is
      * encountered.  If a '\r' is encountered, it is discarded.
      */
-    private String readLine() {
+    private String readLine(ByteBuffer buf) {
         StringBuffer sb = new StringBuffer();
 
         while (buf.remaining() > 0) {
@@ -816,11 +1116,11 @@ public class PDFFile {
      * @param decrypter the decrypter to use
      */
     private PDFObject readArray(
-            int objNum, int objGen, PDFDecrypter decrypter) throws IOException {
+            ByteBuffer buf, int objNum, int objGen, PDFDecrypter decrypter) throws IOException {
         // we've already read the [.  Now read objects until ]
         ArrayList<PDFObject> ary = new ArrayList<PDFObject>();
         PDFObject obj;
-	while((obj= readObject(objNum, objGen, decrypter))!=null) {
+	while((obj= readObject(buf, objNum, objGen, decrypter))!=null) {
             ary.add(obj);
         }
         if (buf.get() != ']') {
@@ -836,7 +1136,7 @@ public class PDFFile {
     /**
      * read a /name.  The / has already been read.
      */
-    private PDFObject readName() throws IOException {
+    private PDFObject readName(ByteBuffer buf) throws IOException {
         // we've already read the / that begins the name.
         // all we have to check for is #hh hex notations.
         StringBuffer sb = new StringBuffer();
@@ -847,7 +1147,7 @@ public class PDFFile {
             }
             // H.3.2.4 indicates version 1.1 did not do hex escapes
             if (c == '#' && (majorVersion != 1 && minorVersion != 1)) {
-                int hex = readHexPair();
+                int hex = readHexPair(buf);
                 if (hex >= 0) {
                     c = hex;
                 } else {
@@ -864,7 +1164,7 @@ public class PDFFile {
      * read a number.  The initial digit or . or - is passed in as the
      * argument.
      */
-    private PDFObject readNumber(char start) throws IOException {
+    private PDFObject readNumber(ByteBuffer buf, char start) throws IOException {
         // we've read the first digit (it's passed in as the argument)
         boolean neg = start == '-';
         boolean sawdot = start == '.';
@@ -901,7 +1201,7 @@ public class PDFFile {
      * read a bare keyword.  The initial character is passed in as the
      * argument.
      */
-    private PDFObject readKeyword(char start) throws IOException {
+    private PDFObject readKeyword(ByteBuffer buf, char start) throws IOException {
         // we've read the first character (it's passed in as the argument)
         StringBuffer sb = new StringBuffer(String.valueOf(start));
         int c;
@@ -922,25 +1222,25 @@ public class PDFFile {
      * @param decrypter the decrypter to use
      */
     private PDFObject readObjectDescription(
-            int objNum, int objGen, PDFDecrypter decrypter) throws IOException {
+            ByteBuffer buf, int objNum, int objGen, PDFDecrypter decrypter) throws IOException {
         // we've already read the 4 0 obj bit.  Next thing up is the object.
         // object descriptions end with the keyword endobj
         long debugpos = buf.position();
-	PDFObject obj= readObject(objNum, objGen, decrypter);
+	PDFObject obj= readObject(buf, objNum, objGen, decrypter);
         // see if it's a dictionary.  If so, this could be a stream.
-	PDFObject endkey= readObject(objNum, objGen, decrypter);
+	PDFObject endkey= readObject(buf, objNum, objGen, decrypter);
         if (endkey.getType() != PDFObject.KEYWORD) {
             throw new PDFParseException("Expected 'stream' or 'endobj'");
         }
         if (obj.getType() == PDFObject.DICTIONARY && endkey.getStringValue().equals("stream")) {
             // skip until we see \n
-            readLine();
-            ByteBuffer data = readStream(obj);
+            readLine(buf);
+            ByteBuffer data = readStream(buf, obj);
             if (data == null) {
                 data = ByteBuffer.allocate(0);
             }
             obj.setStream(data);
-	    endkey= readObject(objNum, objGen, decrypter);
+	    endkey= readObject(buf, objNum, objGen, decrypter);
         }
         // at this point, obj is the object, keyword should be "endobj"
         String endcheck = endkey.getStringValue();
@@ -959,7 +1259,7 @@ public class PDFFile {
      * @param dict the dictionary associated with this stream.
      * @return a ByteBuffer with the encoded stream data
      */
-    private ByteBuffer readStream(PDFObject dict) throws IOException {
+    private ByteBuffer readStream(ByteBuffer buf, PDFObject dict) throws IOException {
         // pointer is at the start of a stream.  read the stream and
         // decode, based on the entries in the dictionary
         PDFObject lengthObj = dict.getDictRef("Length");
@@ -980,7 +1280,7 @@ public class PDFFile {
         buf.position(buf.position() + length);
         int ending = buf.position();
 
-        if (!nextItemIs("endstream")) {
+        if (!nextItemIs(buf, "endstream")) {
             System.out.println("read " + length + " chars from " + start + " to " +
                     ending);
             throw new PDFParseException("Stream ended inappropriately");
@@ -993,18 +1293,15 @@ public class PDFFile {
 
     /**
      * read the cross reference table from a PDF file.  When this method
-     * is called, the file pointer must point to the start of the word
-     * "xref" in the file.  Reads the xref table and the trailer dictionary.
-     * If dictionary has a /Prev entry, move file pointer
-     * and read new trailer
-     * @param password
-     */
-    /**
-     * read the cross reference table from a PDF file.  When this method
-     * is called, the file pointer must point to the start of the word
-     * "xref" in the file.  Reads the xref table and the trailer dictionary.
-     * If dictionary has a /Prev entry, move file pointer
-     * and read new trailer
+     * is called, the file pointer must point to the start of the newest
+     * cross reference section, either the word "xref" of a table or an
+     * xref stream object.  Reads the sections and their trailer
+     * dictionaries, following the /Prev entries back to older sections.
+     * <p>
+     * When the file is opened with a lazy xref, only the newest section
+     * (or as many as it takes to find the /Root) is read here.  The rest
+     * of the chain is read by {@link #readOlderXref(int)} the first time
+     * an object number turns out not to be in the sections read so far.
      * @param password
      */
     private void readTrailer(PDFPassword password)
@@ -1014,144 +1311,94 @@ public class PDFFile {
             EncryptionUnsupportedByProductException,
             EncryptionUnsupportedByPlatformException {
         // the table of xrefs
-        objIdx = new PDFXref[50];
+        objIdx = new PDFXrefTable(50);
 
-        int pos = buf.position(); 
-        
-        PDFDecrypter newDefaultDecrypter = null;
+        int pos = buf.position();
 
         // read a bunch of nested trailer tables
-        while (true) {
-            // make sure we are looking at an xref table
-            if (!nextItemIs("xref")) {
-            	buf.position(pos);
-            	readTrailer15(password);
-            	return;
-//                throw new PDFParseException("Expected 'xref' at start of table");
-            }
-
-            // read a bunch of linked tabled
-            while (true) {
-                // read until the word "trailer"
-            	PDFObject obj=readObject(-1, -1, IdentityDecrypter.getInstance());
-                if (obj.getType() == PDFObject.KEYWORD &&
-                        obj.getStringValue().equals("trailer")) {
-                    break;
-                }
-
-                // read the starting position of the reference
-                if (obj.getType() != PDFObject.NUMBER) {
-                    throw new PDFParseException("Expected number for first xref entry");
-                }
-                int refstart = obj.getIntValue();
-
-                // read the size of the reference table
-                obj = readObject(-1, -1, IdentityDecrypter.getInstance());
-                if (obj.getType() != PDFObject.NUMBER) {
-                    throw new PDFParseException("Expected number for length of xref table");
-                }
-                int reflen = obj.getIntValue();
+        while (pos >= 0) {
+            PDFObject trailerdict = readXrefSection(buf, pos);
+            readTrailerEntries(trailerdict);
 
-                // skip a line
-                readLine();
-
-                // extend the objIdx table, if necessary
-                if (refstart + reflen >= objIdx.length) {
-                    PDFXref nobjIdx[] = new PDFXref[refstart + reflen];
-                    System.arraycopy(objIdx, 0, nobjIdx, 0, objIdx.length);
-                    objIdx = nobjIdx;
-                }
-
-                // read reference lines
-                for (int refID = refstart; refID < refstart + reflen; refID++) {
-                    // each reference line is 20 bytes long
-                    byte[] refline = new byte[20];
-                    buf.get(refline);
-
-                    // ignore this line if the object ID is already defined
-                    if (objIdx[refID] != null) {
-                        continue;
-                    }
+            // read the location of the previous xref table
+            pos = getPrevXref(trailerdict);
 
-                    // see if it's an active object
-                    if (refline[17] == 'n') {
-                        objIdx[refID] = new PDFXref(refline);
-                    } else {
-                        objIdx[refID] = new PDFXref(null);
-                    }
-                }
+            // every trailer of an updated file repeats the entries of the
+            // one before it, so a lazy open can stop at the first /Root.
+            // A linearized file is always read lazily, so that its first
+            // page doesn't need the main xref at the end of the file.
+            if ((lazyXref || linearization != null) && root != null) {
+                break;
             }
+        }
+        xrefPrev = pos;
 
-            // at this point, the "trailer" word (not EOL) has been read.
-            PDFObject trailerdict = readObject(-1, -1, IdentityDecrypter.getInstance());
-            if (trailerdict.getType() != PDFObject.DICTIONARY) {
-                throw new IOException("Expected dictionary after \"trailer\"");
-            }
+        // make sure we found a root
+        if (root == null) {
+            throw new PDFParseException("No /Root key found in trailer dictionary");
+        }
 
-            // read the root object location
-            if (root == null) {
-                root = trailerdict.getDictRef("Root");
-                if (root != null) {
-                    root.setObjectId(PDFObject.OBJ_NUM_TRAILER,
-                            PDFObject.OBJ_NUM_TRAILER);
-                }
-            }
+        installDecrypter(password);
 
-            // read the encryption information
-            if (encrypt == null) {
-                encrypt = trailerdict.getDictRef("Encrypt");
-                if (encrypt != null) {
-                    encrypt.setObjectId(PDFObject.OBJ_NUM_TRAILER,
-                            PDFObject.OBJ_NUM_TRAILER);
-                }
-                newDefaultDecrypter =
-                        PDFDecrypterFactory.createDecryptor(
-                                encrypt,
-                                trailerdict.getDictRef("ID"),
-                                password);
-            }
+        // see if we have an optional Version entry
+        if (root.getDictRef("Version") != null) {
+            processVersion(root.getDictRef("Version").getStringValue());
+        }
 
+        // dereference the root object
+        root.dereference();
+    }
 
-            if (info == null) {
-                info = trailerdict.getDictRef("Info");
-                if (info != null) {
-                    if (!info.isIndirect()) {
-                        throw new PDFParseException(
-                                "Info in trailer must be an indirect reference");
-                    }
-                    info.setObjectId(PDFObject.OBJ_NUM_TRAILER,
-                            PDFObject.OBJ_NUM_TRAILER);
-                }
+    /**
+     * take the root, encryption and info entries from a trailer dictionary,
+     * unless a newer trailer already supplied them
+     */
+    private void readTrailerEntries(PDFObject trailerdict) throws IOException {
+        // read the root object location
+        if (root == null) {
+            root = trailerdict.getDictRef("Root");
+            if (root != null) {
+                root.setObjectId(PDFObject.OBJ_NUM_TRAILER,
+                        PDFObject.OBJ_NUM_TRAILER);
             }
+        }
 
-            PDFObject xrefstmPos = trailerdict.getDictRef("XRefStm");
-            if (xrefstmPos != null) {
-            	System.out.println("XRefStm:" + xrefstmPos.getIntValue());
-                int pos14 = buf.position(); 
-                buf.position(xrefstmPos.getIntValue());
-            	readTrailer15(password);
-                buf.position(pos14);
-            }
-                
-            // read the location of the previous xref table
-            PDFObject prevloc = trailerdict.getDictRef("Prev");
-            if (prevloc != null) {
-                buf.position(prevloc.getIntValue());
-            } else {
-                break;
+        // read the encryption information
+        if (encrypt == null) {
+            encrypt = trailerdict.getDictRef("Encrypt");
+            if (encrypt != null) {
+                encrypt.setObjectId(PDFObject.OBJ_NUM_TRAILER,
+                        PDFObject.OBJ_NUM_TRAILER);
             }
-            // see if we have an optional Version entry
-
+            documentId = trailerdict.getDictRef("ID");
+        }
 
-            if (root.getDictRef("Version") != null) {
-                processVersion(root.getDictRef("Version").getStringValue());
+        if (info == null) {
+            info = trailerdict.getDictRef("Info");
+            if (info != null) {
+                if (!info.isIndirect()) {
+                    throw new PDFParseException(
+                            "Info in trailer must be an indirect reference");
+                }
+                info.setObjectId(PDFObject.OBJ_NUM_TRAILER,
+                        PDFObject.OBJ_NUM_TRAILER);
             }
         }
+    }
 
-        // make sure we found a root
-        if (root == null) {
-            throw new PDFParseException("No /Root key found in trailer dictionary");
-        }
+    /**
+     * set up the default decrypter from the encryption information in the
+     * trailer, and check what permissions are relevant
+     * @param password
+     */
+    private void installDecrypter(PDFPassword password)
+            throws
+            IOException,
+            PDFAuthenticationFailureException,
+            EncryptionUnsupportedByProductException,
+            EncryptionUnsupportedByPlatformException {
+        PDFDecrypter newDefaultDecrypter =
+                PDFDecrypterFactory.createDecryptor(encrypt, documentId, password);
 
         // check what permissions are relevant
         if (encrypt != null) {
@@ -1167,182 +1414,213 @@ public class PDFFile {
             // been read, as nothing we're reading passing through is encrypted
             defaultDecrypter = newDefaultDecrypter;
         }
+    }
 
-        // dereference the root object
-        root.dereference();
+    /**
+     * Read older cross reference sections, following the /Prev chain left
+     * over from a lazy open, until the given object number is defined or
+     * there are no more sections.  Must be called holding the lock on
+     * objIdx.
+     *
+     * @param id the object number being looked for
+     */
+    private void readOlderXref(int id) throws IOException {
+        // an xref stream may need an object to decode itself; that lookup
+        // must not start reading the chain again
+        if (readingXref) {
+            return;
+        }
+
+        readingXref = true;
+        try {
+            while (xrefPrev >= 0 &&
+                    objIdx.getType(id) == PDFXrefTable.UNDEFINED) {
+                // if this section can't be read, don't try it again
+                int pos = xrefPrev;
+                xrefPrev = -1;
+
+                PDFObject trailerdict = readXrefSection(buf.duplicate(), pos);
+                xrefPrev = getPrevXref(trailerdict);
+            }
+        } finally {
+            readingXref = false;
+        }
     }
 
     /**
-     * read the cross reference table from a PDF file.  When this method
-     * is called, the file pointer must point to the start of the word
-     * "xref" in the file.  Reads the xref table and the trailer dictionary.
-     * If dictionary has a /Prev entry, move file pointer
-     * and read new trailer
-     * @param password
+     * get the file position of the previous cross reference section, from
+     * the /Prev entry of a trailer dictionary
+     * @return the position, or -1 if this is the oldest section
      */
-    private void readTrailer15(PDFPassword password)
-            throws
-            IOException,
-            PDFAuthenticationFailureException,
-            EncryptionUnsupportedByProductException,
-            EncryptionUnsupportedByPlatformException {
-    	
-        // the table of xrefs is already initialized and perhaps filled in readTrailer()
-    	// objIdx = new PDFXref[50];
-        PDFDecrypter newDefaultDecrypter = null;
-        
+    private int getPrevXref(PDFObject trailerdict) throws IOException {
+        PDFObject prevloc = trailerdict.getDictRef("Prev");
+        if (prevloc != null) {
+            return prevloc.getIntValue();
+        }
+        return -1;
+    }
+
+    /**
+     * read one cross reference section into objIdx.  The section is either
+     * a cross reference table, starting with the word "xref" and ending with
+     * a trailer dictionary, or a cross reference stream.  Entries for object
+     * numbers that are already defined, by a newer section, are ignored.
+     *
+     * @param buf the buffer to read from
+     * @param pos the position of the section in the buffer
+     * @return the trailer dictionary (for a cross reference stream, the
+     * stream object itself)
+     */
+    private PDFObject readXrefSection(ByteBuffer buf, int pos)
+            throws IOException {
+        buf.position(pos);
+
+        // make sure we are looking at an xref table
+        if (!nextItemIs(buf, "xref")) {
+            buf.position(pos);
+            return readXrefStream(buf);
+        }
+
+        // each reference line is read into the same buffer
+        byte[] refline = new byte[20];
+
+        // read a bunch of linked tabled
         while (true) {
-			PDFObject xrefObj=readObject(-1, -1, IdentityDecrypter.getInstance());
-//			System.out.println(xrefObj.getDictionary().toString());
-//			System.out.println(xrefObj.toString());
-			
-			PDFObject[] wNums = xrefObj.getDictionary().get("W").getArray();
-			int l1 = wNums[0].getIntValue();
-			int l2 = wNums[1].getIntValue();
-			int l3 = wNums[2].getIntValue();
-			int entrySize = l1+l2+l3;
-//			System.out.println("["+l1+","+l2+","+l3+"]");
-	
-			int size = xrefObj.getDictionary().get("Size").getIntValue();
-//			System.out.println("Size = " + size);
-
-			byte[] strmbuf = xrefObj.getStream();
-			int strmEntries = strmbuf.length / entrySize;
-			int strmPos = 0;
-//			System.out.println("strmEntries = " + strmEntries);
-			
-			PDFObject idxNums = xrefObj.getDictionary().get("Index");
-			int[] idxArray;
-			if (idxNums == null) {
-				idxArray = new int[]{0, size};
-			}
-			else {
-				PDFObject[] idxNumArr = idxNums.getArray();
-				idxArray = new int[idxNumArr.length];
-				for (int i = 0; i < idxNumArr.length; i++) {
-					idxArray[i] = idxNumArr[i].getIntValue();
-				}
-			}
-			int idxLen = idxArray.length;
-			int idxPos = 0;
-	
-			
-			while (idxPos<idxLen) {
-				int refstart = idxArray[idxPos++];
-				int reflen = idxArray[idxPos++];
-				
-		        // extend the objIdx table, if necessary
-		        if (refstart + reflen >= objIdx.length) {
-		            PDFXref nobjIdx[] = new PDFXref[refstart + reflen];
-		            System.arraycopy(objIdx, 0, nobjIdx, 0, objIdx.length);
-		            objIdx = nobjIdx;
-		        }
-	
-//				System.out.println("Index["+refstart+","+reflen+"]");
-	            // read reference lines
-	            for (int refID = refstart; refID < refstart + reflen; refID++) {
-	            	
-					int type = readNum(strmbuf, strmPos, l1);
-					strmPos += l1;
-					int id = readNum(strmbuf, strmPos, l2);
-					strmPos += l2;
-					int gen = readNum(strmbuf, strmPos, l3);
-					strmPos += l3;
-	
-	                // ignore this line if the object ID is already defined
-	                if (objIdx[refID] != null) {
-	                    continue;
-	                }
-	
-	                // see if it's an active object
-	                if (type == 0) { // inactive
-	                    objIdx[refID] = new PDFXref(null);
-	                } else if (type == 1) { // active uncompressed
-	                    objIdx[refID] = new PDFXref(id, gen);
-	                } else { // active compressed
-	                    objIdx[refID] = new PDFXref(id, gen, true);
-	                }
-	            	
-					
-//					System.out.println(refID+"="+type+":"+id+","+gen);
-				}
-			}
-	
-		    HashMap<String, PDFObject> trailerdict = xrefObj.getDictionary();
-	
-            // read the root object location
-            if (root == null) {
-                root = trailerdict.get("Root");
-                if (root != null) {
-                    root.setObjectId(PDFObject.OBJ_NUM_TRAILER,
-                            PDFObject.OBJ_NUM_TRAILER);
-                }
+            // read until the word "trailer"
+            PDFObject obj=readObject(buf, -1, -1, IdentityDecrypter.getInstance());
+            if (obj.getType() == PDFObject.KEYWORD &&
+                    obj.getStringValue().equals("trailer")) {
+                break;
             }
 
-            // read the encryption information
-            if (encrypt == null) {
-                encrypt = trailerdict.get("Encrypt");
-                if (encrypt != null) {
-                    encrypt.setObjectId(PDFObject.OBJ_NUM_TRAILER,
-                            PDFObject.OBJ_NUM_TRAILER);
-                }
-                newDefaultDecrypter =
-                        PDFDecrypterFactory.createDecryptor(
-                                encrypt,
-                                trailerdict.get("ID"),
-                                password);
+            // read the starting position of the reference
+            if (obj.getType() != PDFObject.NUMBER) {
+                throw new PDFParseException("Expected number for first xref entry");
             }
+            int refstart = obj.getIntValue();
 
-
-            if (info == null) {
-                info = trailerdict.get("Info");
-                if (info != null) {
-                    if (!info.isIndirect()) {
-                        throw new PDFParseException(
-                                "Info in trailer must be an indirect reference");
-                    }
-                    info.setObjectId(PDFObject.OBJ_NUM_TRAILER,
-                            PDFObject.OBJ_NUM_TRAILER);
-                }
+            // read the size of the reference table
+            obj = readObject(buf, -1, -1, IdentityDecrypter.getInstance());
+            if (obj.getType() != PDFObject.NUMBER) {
+                throw new PDFParseException("Expected number for length of xref table");
             }
+            int reflen = obj.getIntValue();
 
-            // read the location of the previous xref table
-            PDFObject prevloc = trailerdict.get("Prev");
-            if (prevloc != null) {
-                buf.position(prevloc.getIntValue());
-            } else {
-                break;
-            }
-            // see if we have an optional Version entry
+            // skip a line
+            readLine(buf);
 
+            // extend the objIdx table, if necessary
+            objIdx.ensureCapacity(refstart + reflen);
 
-            if (root.getDictRef("Version") != null) {
-                processVersion(root.getDictRef("Version").getStringValue());
+            // read reference lines
+            for (int refID = refstart; refID < refstart + reflen; refID++) {
+                // each reference line is 20 bytes long
+                buf.get(refline);
+
+                // see if it's an active object.  Entries already
+                // defined by a newer section are left alone.
+                if (refline[17] == 'n') {
+                    objIdx.define(refID, PDFXrefTable.IN_USE,
+                            readDecimal(refline, 0, 10),
+                            readDecimal(refline, 11, 5));
+                } else {
+                    objIdx.define(refID, PDFXrefTable.FREE, -1, -1);
+                }
             }
         }
 
-        // make sure we found a root
-        if (root == null) {
-            throw new PDFParseException("No /Root key found in trailer dictionary");
+        // at this point, the "trailer" word (not EOL) has been read.
+        PDFObject trailerdict = readObject(buf, -1, -1, IdentityDecrypter.getInstance());
+        if (trailerdict.getType() != PDFObject.DICTIONARY) {
+            throw new IOException("Expected dictionary after \"trailer\"");
         }
 
-        // check what permissions are relevant
-        if (encrypt != null) {
-            PDFObject permissions = encrypt.getDictRef("P");
-            if (permissions!=null && !newDefaultDecrypter.isOwnerAuthorised()) {
-                int perms= permissions != null ? permissions.getIntValue() : 0;
-                if (permissions!=null) {
-                    printable = (perms & 4) != 0;
-                    saveable = (perms & 16) != 0;
-                }
-            }
-            // Install the new default decrypter only after the trailer has
-            // been read, as nothing we're reading passing through is encrypted
-            defaultDecrypter = newDefaultDecrypter;
+        PDFObject size = trailerdict.getDictRef("Size");
+        if (size != null) {
+            objIdx.ensureCapacity(size.getIntValue());
         }
 
-        // dereference the root object
-        root.dereference();
+        // a hybrid file keeps the entries of its compressed objects in an
+        // xref stream, which belongs to this same section
+        PDFObject xrefstmPos = trailerdict.getDictRef("XRefStm");
+        if (xrefstmPos != null) {
+            buf.position(xrefstmPos.getIntValue());
+            readXrefStream(buf);
+        }
+
+        return trailerdict;
+    }
+
+    /**
+     * read a cross reference stream into objIdx.  When this method
+     * is called, the buffer must point to the start of the stream object.
+     *
+     * @param buf the buffer to read from
+     * @return the cross reference stream object, whose dictionary is the
+     * trailer dictionary of the section
+     */
+    private PDFObject readXrefStream(ByteBuffer buf) throws IOException {
+		PDFObject xrefObj=readObject(buf, -1, -1, IdentityDecrypter.getInstance());
+		if (xrefObj.getType() != PDFObject.STREAM) {
+		    throw new PDFParseException("Expected xref table or xref stream");
+		}
+		
+		PDFObject[] wNums = xrefObj.getDictionary().get("W").getArray();
+		int l1 = wNums[0].getIntValue();
+		int l2 = wNums[1].getIntValue();
+		int l3 = wNums[2].getIntValue();
+		
+		int size = xrefObj.getDictionary().get("Size").getIntValue();
+		objIdx.ensureCapacity(size);
+		
+		byte[] strmbuf = xrefObj.getStream();
+		int strmPos = 0;
+		
+		PDFObject idxNums = xrefObj.getDictionary().get("Index");
+		int[] idxArray;
+		if (idxNums == null) {
+			idxArray = new int[]{0, size};
+		}
+		else {
+			PDFObject[] idxNumArr = idxNums.getArray();
+			idxArray = new int[idxNumArr.length];
+			for (int i = 0; i < idxNumArr.length; i++) {
+				idxArray[i] = idxNumArr[i].getIntValue();
+			}
+		}
+		int idxLen = idxArray.length;
+		int idxPos = 0;
+		
+		while (idxPos<idxLen) {
+			int refstart = idxArray[idxPos++];
+			int reflen = idxArray[idxPos++];
+			
+		    // extend the objIdx table, if necessary
+		    objIdx.ensureCapacity(refstart + reflen);
+		
+		    // read reference lines
+		    for (int refID = refstart; refID < refstart + reflen; refID++) {
+		    	
+				int type = readNum(strmbuf, strmPos, l1);
+				strmPos += l1;
+				int id = readNum(strmbuf, strmPos, l2);
+				strmPos += l2;
+				int gen = readNum(strmbuf, strmPos, l3);
+				strmPos += l3;
+		
+		        // see if it's an active object.  Entries already
+		        // defined by a newer section are left alone.
+		        if (type == 0) { // inactive
+		            objIdx.define(refID, PDFXrefTable.FREE, -1, -1);
+		        } else if (type == 1) { // active uncompressed
+		            objIdx.define(refID, PDFXrefTable.IN_USE, id, gen);
+		        } else { // active compressed
+		            objIdx.define(refID, PDFXrefTable.COMPRESSED, id, gen);
+		        }
+			}
+		}
+		
+		return xrefObj;
     }
 
     private int readNum(byte[] sbuf, int pos, int numBytes) {
@@ -1352,6 +1630,93 @@ public class PDFFile {
 		return result;
 	}
 
+    /**
+     * read a fixed-width decimal number, such as the offset or generation
+     * in a cross reference line, without making a String of it.  Any
+     * character other than a digit is skipped.
+     */
+    private int readDecimal(byte[] sbuf, int pos, int numBytes) {
+        int result = 0;
+        for (int i = pos; i < pos + numBytes; i++) {
+            int c = sbuf[i] - '0';
+            if (c >= 0 && c <= 9) {
+                result = result * 10 + c;
+            }
+        }
+        return result;
+    }
+
+    /**
+     * look for a linearization dictionary, which must be the first object
+     * in the file and begin within its first 1024 bytes.  If there is one,
+     * and the file is still the length it was linearized at (otherwise it
+     * has been updated since, and the first page xref is out of date), the
+     * linearization parameters are kept.
+     * @return the position just after the dictionary, where the first page
+     * xref starts, or -1 if the file isn't linearized
+     */
+    private int readLinearization() {
+        try {
+            // look for the key a byte at a time, so that a file that is
+            // still arriving needn't have all of its first 1024 bytes
+            String key = "/Linearized";
+            int end = Math.min(buf.limit(), 1024);
+            int matched = 0;
+            buf.position(0);
+            while (matched < key.length() && buf.position() < end) {
+                int c = buf.get();
+                if (c == key.charAt(matched)) {
+                    matched++;
+                } else {
+                    matched = (c == key.charAt(0)) ? 1 : 0;
+                }
+            }
+            if (matched < key.length()) {
+                return -1;
+            }
+
+            buf.position(0);
+            readLine(buf);
+            PDFObject dict = readObject(buf, -1, -1, IdentityDecrypter.getInstance());
+            if (dict.getType() != PDFObject.DICTIONARY ||
+                    dict.getDictRef("Linearized") == null) {
+                return -1;
+            }
+
+            PDFLinearization lin = new PDFLinearization(dict);
+            if (lin.getFileLength() != buf.limit()) {
+                System.out.println("File was updated after it was linearized");
+                return -1;
+            }
+
+            linearization = lin;
+            return buf.position();
+        } catch (Exception e) {
+            System.out.println("Bad linearization dictionary: " + e);
+            return -1;
+        } finally {
+            buf.rewind();
+        }
+    }
+
+    /**
+     * read the page offset hint table of a linearized file.  The hints are
+     * only an aid, so if they can't be read the file is used without them.
+     */
+    private void readHints() {
+        try {
+            ByteBuffer view = buf.duplicate();
+            view.position(linearization.getHintOffset());
+            PDFObject hints = readObject(view, -1, -1, defaultDecrypter);
+            byte[] data = hints.getStream();
+            if (data != null) {
+                linearization.readPageOffsetHints(data);
+            }
+        } catch (Exception e) {
+            System.out.println("Could not read linearization hints: " + e);
+        }
+    }
+
     /**
      * build the PDFFile reference table.  Nothing in the PDFFile actually
      * gets parsed, despite the name of this function.  Things only get
@@ -1361,12 +1726,206 @@ public class PDFFile {
     private void parseFile(PDFPassword password) throws IOException {
         // start at the begining of the file
         buf.rewind();
-        String versionLine = readLine();
+        String versionLine = readLine(buf);
         if (versionLine.startsWith(VERSION_COMMENT)) {
             processVersion(versionLine.substring(VERSION_COMMENT.length()));
         }
         buf.rewind();
 
+        try {
+            readXref(password);
+        } catch (IOException e) {
+            // a wrong password or unsupported encryption can't be repaired
+            if (e instanceof PDFAuthenticationFailureException ||
+                    e.getCause() instanceof UnsupportedEncryptionException) {
+                throw e;
+            }
+            System.out.println("Could not read the xref (" + e + "), rebuilding it");
+            repairXref(password);
+        } catch (RuntimeException e) {
+            System.out.println("Could not read the xref (" + e + "), rebuilding it");
+            repairXref(password);
+        }
+    }
+
+    /**
+     * set up the file from its index instead of from the file itself
+     * @param index the index, known to be for this version of the file
+     * @param password
+     */
+    private void readIndex(PDFFileIndex index, PDFPassword password)
+            throws IOException {
+        processVersion(index.versionString);
+        objIdx = index.xref;
+        repaired = index.repaired;
+
+        root = trailerRef(index.rootNum, index.rootGen);
+        info = trailerRef(index.infoNum, index.infoGen);
+        encrypt = trailerRef(index.encryptNum, index.encryptGen);
+        if (index.documentId != null) {
+            PDFObject[] ids = new PDFObject[index.documentId.length];
+            for (int i = 0; i < ids.length; i++) {
+                ids[i] = new PDFObject(this, PDFObject.STRING,
+                        PDFStringUtil.asBasicString(index.documentId[i]));
+            }
+            documentId = new PDFObject(this, PDFObject.ARRAY, ids);
+        }
+        if (root == null) {
+            throw new PDFParseException("No /Root in index");
+        }
+
+        try {
+            installDecrypter(password);
+        } catch (UnsupportedEncryptionException e) {
+            throw new PDFParseException(e.getMessage(), e);
+        }
+
+        // the Version in the catalog was part of the version string
+        root.dereference();
+
+        pageIndex = index.pages;
+        indexed = true;
+    }
+
+    /**
+     * make a reference to an object from the trailer
+     * @return the reference, or null if the object number is negative
+     */
+    private PDFObject trailerRef(int objNum, int objGen) {
+        if (objNum < 0) {
+            return null;
+        }
+        PDFObject ref = new PDFObject(this, new PDFXref(objNum, objGen));
+        ref.setObjectId(PDFObject.OBJ_NUM_TRAILER, PDFObject.OBJ_NUM_TRAILER);
+        return ref;
+    }
+
+    /**
+     * Bring the index of this file up to date, so it opens quickly the
+     * next time.  Reads any cross reference sections not read yet and walks
+     * the whole page tree, so it may take a while for a large file; it can
+     * be called on a background thread while pages are being shown.  Does
+     * nothing if the file wasn't opened with an index file, or was opened
+     * from an up to date index.
+     * @throws IOException if the index can't be built or written
+     */
+    public void writeIndex() throws IOException {
+        if (indexFile == null || indexed) {
+            return;
+        }
+
+        PDFFileIndex index = new PDFFileIndex(indexKey.fileLength,
+                indexKey.lastModified, indexKey.tailHash);
+        index.versionString = getVersionString();
+        index.repaired = repaired;
+
+        // an index holds the whole table.  No object number is defined
+        // as -1, so this reads the rest of the chain.
+        synchronized (objIdx) {
+            if (xrefPrev >= 0) {
+                readOlderXref(-1);
+            }
+            if (xrefPrev >= 0) {
+                throw new PDFParseException("Could not read all the xref sections");
+            }
+        }
+        index.xref = objIdx;
+
+        PDFXref ref = root.getXref();
+        if (ref == null) {
+            throw new PDFParseException("Can't index a direct /Root dictionary");
+        }
+        index.rootNum = ref.getID();
+        index.rootGen = ref.getGeneration();
+        if (info != null) {
+            ref = info.getXref();
+            index.infoNum = ref.getID();
+            index.infoGen = ref.getGeneration();
+        }
+        if (encrypt != null) {
+            ref = encrypt.getXref();
+            if (ref == null) {
+                throw new PDFParseException("Can't index a direct /Encrypt dictionary");
+            }
+            index.encryptNum = ref.getID();
+            index.encryptGen = ref.getGeneration();
+        }
+        if (documentId != null && documentId.getType() == PDFObject.ARRAY) {
+            PDFObject[] ids = documentId.getArray();
+            index.documentId = new byte[ids.length][];
+            for (int i = 0; i < ids.length; i++) {
+                index.documentId[i] = PDFStringUtil.asBytes(ids[i].getStringValue());
+            }
+        }
+
+        index.pages = getPageIndex();
+        index.write(indexFile);
+    }
+
+    /**
+     * Keep the display lists of parsed pages in a directory, so that a
+     * page parsed once opens without being parsed again, even by a later
+     * process.  A page already in the directory is read from it instead of
+     * being parsed; a page that is parsed is written to it.  Only pages
+     * with compiled display lists are kept (see
+     * {@link PDFPage#sCompileDisplayLists}).
+     * <p>
+     * The lists belong to this version of the file.  For a file opened
+     * with an index file, its length and modification time tell whether
+     * the lists are up to date; otherwise only its length and the hash of
+     * its end do, so use a directory of its own for each file.
+     * @param dir the directory, or null to stop keeping lists
+     */
+    public void setDisplayListCache(File dir) {
+        if (dir == null) {
+            listCache = null;
+            return;
+        }
+
+        PDFFileIndex key = indexKey;
+        if (key == null) {
+            key = new PDFFileIndex(buf.limit(), 0, getTailHash(buf));
+        }
+        listCache = new PDFDisplayListCache(dir, key);
+    }
+
+    /**
+     * get a hash of the last kilobyte of a file, which holds the newest
+     * trailer and startxref, so any change that saves the file again
+     * changes the hash
+     */
+    private static int getTailHash(ByteBuffer buf) {
+        ByteBuffer tail = buf.duplicate();
+        int start = Math.max(0, tail.limit() - 1024);
+        byte[] data = new byte[tail.limit() - start];
+        tail.position(start);
+        tail.get(data);
+
+        CRC32 crc = new CRC32();
+        crc.update(data);
+        return (int) crc.getValue();
+    }
+
+    /**
+     * find and read the cross reference table, through the first page xref
+     * of a linearized file or through the startxref at the end of the file
+     * @param password
+     */
+    private void readXref(PDFPassword password) throws IOException {
+        // a linearized file has the xref for its first page right after
+        // the linearization dictionary, near the start of the file
+        int firstXref = readLinearization();
+        if (firstXref >= 0) {
+            buf.position(firstXref);
+            try {
+                readTrailer(password);
+            } catch (UnsupportedEncryptionException e) {
+                throw new PDFParseException(e.getMessage(), e);
+            }
+            readHints();
+            return;
+        }
+
         // back up about 32 characters from the end of the file to find
         // startxref\n
         byte[] scan = new byte[32];
@@ -1423,6 +1982,281 @@ public class PDFFile {
         }
     }
 
+    /**
+     * rebuild the cross reference table of a damaged file by scanning it
+     * once from start to end.  Every "N G obj" found is entered in the
+     * table, a later definition replacing an earlier one as an incremental
+     * update would, and the trailers found give the root and encryption
+     * information, the newest first.  Files that keep their trailer in
+     * cross reference streams, or their objects in object streams, have
+     * those streams read once the scan is done.
+     * @param password
+     */
+    private void repairXref(PDFPassword password) throws IOException {
+        objIdx = new PDFXrefTable(50);
+        xrefPrev = -1;
+        linearization = null;
+        root = null;
+        encrypt = null;
+        info = null;
+        documentId = null;
+        defaultDecrypter = IdentityDecrypter.getInstance();
+        repaired = true;
+
+        ArrayList<Integer> trailers = new ArrayList<Integer>();
+        ArrayList<Integer> xrefStreams = new ArrayList<Integer>();
+        ArrayList<Integer> objStreams = new ArrayList<Integer>();
+        int catalog = scanObjects(buf.duplicate(), trailers, xrefStreams, objStreams);
+
+        try {
+            // the newest trailer wins, as it would following /Prev
+            for (int i = trailers.size() - 1; i >= 0; i--) {
+                try {
+                    ByteBuffer view = buf.duplicate();
+                    view.position(trailers.get(i));
+                    PDFObject trailerdict = readObject(view, -1, -1, IdentityDecrypter.getInstance());
+                    if (trailerdict != null && trailerdict.getType() == PDFObject.DICTIONARY) {
+                        readTrailerEntries(trailerdict);
+                    }
+                } catch (IOException e) {
+                    System.out.println("Skipping bad trailer at " + trailers.get(i) + ": " + e);
+                }
+            }
+
+            // the trailer of a file with xref streams is in the streams
+            for (int i = xrefStreams.size() - 1; i >= 0; i--) {
+                try {
+                    PDFObject xrefObj = dereference(new PDFXref(xrefStreams.get(i), 0),
+                            IdentityDecrypter.getInstance());
+                    if (xrefObj.getType() == PDFObject.STREAM) {
+                        readTrailerEntries(xrefObj);
+                    }
+                } catch (IOException e) {
+                    System.out.println("Skipping bad xref stream " + xrefStreams.get(i) + ": " + e);
+                }
+            }
+
+            installDecrypter(password);
+        } catch (UnsupportedEncryptionException e) {
+            throw new PDFParseException(e.getMessage(), e);
+        }
+
+        // objects in object streams can only be found by reading the streams
+        for (int i = 0; i < objStreams.size(); i++) {
+            addCompressedObjects(objStreams.get(i));
+        }
+
+        // without a trailer, use the last catalog in the file
+        if (root == null && catalog > 0) {
+            root = new PDFObject(this, new PDFXref(catalog, 0));
+            root.setObjectId(PDFObject.OBJ_NUM_TRAILER,
+                    PDFObject.OBJ_NUM_TRAILER);
+        }
+
+        if (root == null) {
+            throw new PDFParseException("This may not be a PDF File");
+        }
+
+        // see if we have an optional Version entry
+        if (root.getDictRef("Version") != null) {
+            processVersion(root.getDictRef("Version").getStringValue());
+        }
+
+        // dereference the root object
+        root.dereference();
+    }
+
+    /**
+     * enter the objects of an object stream into objIdx, unless the file
+     * has a newer definition of them (one further on in the file)
+     *
+     * @param streamId the object number of the object stream
+     */
+    private void addCompressedObjects(int streamId) {
+        try {
+            PDFObject compObj = dereference(new PDFXref(streamId, 0), defaultDecrypter);
+            if (compObj.getType() != PDFObject.STREAM) {
+                return;
+            }
+
+            ObjectStreamIndex index = getObjectStreamIndex(compObj);
+            int streamPos = objIdx.getPosition(streamId);
+            for (int i = 0; i < index.objNums.length; i++) {
+                int id = index.objNums[i];
+                byte type = objIdx.getType(id);
+                int definedAt = -1;
+                if (type == PDFXrefTable.IN_USE) {
+                    definedAt = objIdx.getPosition(id);
+                } else if (type == PDFXrefTable.COMPRESSED) {
+                    definedAt = objIdx.getPosition(objIdx.getPosition(id));
+                }
+                if (definedAt < streamPos) {
+                    objIdx.put(id, PDFXrefTable.COMPRESSED, streamId, i);
+                }
+            }
+        } catch (IOException e) {
+            System.out.println("Skipping bad object stream " + streamId + ": " + e);
+        }
+    }
+
+    /**
+     * scan a buffer from start to end, a byte at a time, for object
+     * definitions and trailers.  Strings, comments and stream data are
+     * skipped, so that what they contain isn't mistaken for an object.
+     * Each "N G obj" is put into objIdx; the positions just after each
+     * "trailer" keyword, and the object numbers of xref streams and object
+     * streams, are added to the given lists.
+     *
+     * @return the object number of the last catalog found, or -1
+     */
+    private int scanObjects(ByteBuffer scan, ArrayList<Integer> trailers,
+            ArrayList<Integer> xrefStreams, ArrayList<Integer> objStreams) {
+        int end = scan.limit();
+        // the last two whole numbers in a row, and where they started
+        int num1 = -1;
+        int num1Pos = -1;
+        int num2 = -1;
+        int num2Pos = -1;
+        int nums = 0;
+        // the object we are in, if any
+        int current = -1;
+        int catalog = -1;
+
+        int pos = 0;
+        while (pos < end) {
+            int c = scan.get(pos) & 0xff;
+            if (isWhiteSpace(c)) {
+                pos++;
+                continue;
+            }
+
+            int start = pos;
+            if (c >= '0' && c <= '9') {
+                long value = 0;
+                while (pos < end && (c = scan.get(pos) & 0xff) >= '0' && c <= '9') {
+                    if (value < Integer.MAX_VALUE) {
+                        value = value * 10 + (c - '0');
+                    }
+                    pos++;
+                }
+                if (pos < end && isRegularCharacter(c)) {
+                    // part of a real number or some other token
+                    nums = 0;
+                } else {
+                    num1 = num2;
+                    num1Pos = num2Pos;
+                    num2 = (int) Math.min(value, Integer.MAX_VALUE);
+                    num2Pos = start;
+                    nums++;
+                }
+                continue;
+            }
+
+            if (c == '%') {
+                // a comment, up to the end of the line
+                while (pos < end && (c = scan.get(pos) & 0xff) != '\r' && c != '\n') {
+                    pos++;
+                }
+            } else if (c == '(') {
+                pos = skipLiteralString(scan, pos, end);
+            } else if (c == '/') {
+                pos++;
+                while (pos < end && isRegularCharacter(scan.get(pos) & 0xff)) {
+                    pos++;
+                }
+                if (current > 0) {
+                    if (matches(scan, start + 1, pos, "Catalog")) {
+                        catalog = current;
+                    } else if (matches(scan, start + 1, pos, "XRef")) {
+                        addOnce(xrefStreams, current);
+                    } else if (matches(scan, start + 1, pos, "ObjStm")) {
+                        addOnce(objStreams, current);
+                    }
+                }
+            } else if (isDelimiter(c)) {
+                pos++;
+            } else {
+                // a keyword
+                while (pos < end && isRegularCharacter(scan.get(pos) & 0xff)) {
+                    pos++;
+                }
+                if (matches(scan, start, pos, "obj")) {
+                    if (nums >= 2 && num1 > 0 && num2 < 65536) {
+                        objIdx.put(num1, PDFXrefTable.IN_USE, num1Pos, num2);
+                        current = num1;
+                    }
+                } else if (matches(scan, start, pos, "endobj")) {
+                    current = -1;
+                } else if (matches(scan, start, pos, "stream")) {
+                    pos = skipStreamData(scan, pos, end);
+                } else if (matches(scan, start, pos, "trailer")) {
+                    trailers.add(pos);
+                }
+            }
+            nums = 0;
+        }
+
+        return catalog;
+    }
+
+    /**
+     * does the text from start to end in a buffer equal a word?
+     */
+    private static boolean matches(ByteBuffer scan, int start, int end, String word) {
+        if (end - start != word.length()) {
+            return false;
+        }
+        for (int i = 0; i < word.length(); i++) {
+            if (scan.get(start + i) != word.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static void addOnce(ArrayList<Integer> list, int id) {
+        if (list.isEmpty() || list.get(list.size() - 1) != id) {
+            list.add(id);
+        }
+    }
+
+    /**
+     * skip a literal string, with its nested parentheses and escapes
+     * @param pos the position of the opening parenthesis
+     * @return the position after the closing parenthesis
+     */
+    private static int skipLiteralString(ByteBuffer scan, int pos, int end) {
+        int depth = 0;
+        while (pos < end) {
+            int c = scan.get(pos++);
+            if (c == '\\') {
+                pos++;
+            } else if (c == '(') {
+                depth++;
+            } else if (c == ')') {
+                if (--depth == 0) {
+                    break;
+                }
+            }
+        }
+        return pos;
+    }
+
+    /**
+     * skip the data of a stream, without trusting its /Length
+     * @param pos the position after the "stream" keyword
+     * @return the position after the "endstream" keyword
+     */
+    private static int skipStreamData(ByteBuffer scan, int pos, int end) {
+        int last = end - 9;
+        for (; pos <= last; pos++) {
+            if (scan.get(pos) == 'e' && matches(scan, pos, pos + 9, "endstream")) {
+                return pos + 9;
+            }
+        }
+        return end;
+    }
+
     /**
      * Gets the outline tree as a tree of OutlineNode, which is a subclass
      * of DefaultMutableTreeNode.  If there is no outline tree, this method
@@ -1513,28 +2347,23 @@ public class PDFFile {
             return 0;
         }
 
-        int count = 0;
-        while (true) {
-            PDFObject parent = page.getDictRef("Parent");
-            if (parent == null) {
-                break;
-            }
-            PDFObject kids[] = parent.getDictRef("Kids").getArray();
-            for (int i = 0; i < kids.length; i++) {
-                if (kids[i].equals(page)) {
-                    break;
-                } else {
-                    PDFObject kcount = kids[i].getDictRef("Count");
-                    if (kcount != null) {
-                        count += kcount.getIntValue();
-                    } else {
-                        count += 1;
-                    }
-                }
+        PDFPageIndex pages = getPageIndex();
+        PDFXref ref = page.getXref();
+        int objNum = (ref != null) ? ref.getID() : page.getObjNum();
+        if (objNum >= 0) {
+            return pages.indexOf(objNum) + 1;
+        }
+
+        // an object from an object stream doesn't know its number, but
+        // it is the same object the page reference resolves to
+        page = page.dereference();
+        for (int i = 0; i < pages.size(); i++) {
+            PDFXref xref = new PDFXref(pages.getObjNum(i), pages.getObjGen(i));
+            if (new PDFObject(this, xref).dereference() == page) {
+                return i + 1;
             }
-            page = parent;
         }
-        return count;
+        return 0;
     }
 
     /**
@@ -1562,22 +2391,52 @@ public class PDFFile {
         PDFParser parser = cache.getPageParser(key);
         if (page == null) {
             try {
-                // hunt down the page!
-                resources = new HashMap<String,PDFObject>();
-
-                PDFObject topPagesObj = root.getDictRef("Pages");
-                pageObj = findPage(topPagesObj, 0, pagenum, resources);
+                // the first page of a linearized file can be found
+                // without the page tree, which is at the end of the file
+                if (pagenum == 1 && linearization != null && pageIndex == null) {
+                    resources = new HashMap<String,PDFObject>();
+                    pageObj = findFirstPage(resources);
+                    if (pageObj != null) {
+                        page = createFirstPage(pageObj);
+                    }
+                }
 
+                // hunt down the page!
                 if (pageObj == null) {
-                    return null;
+                    PDFPageIndex pages = getPageIndex();
+                    if (pagenum < 1 || pagenum > pages.size()) {
+                        return null;
+                    }
+                    pageObj = getIndexedPage(pagenum - 1);
+                    resources = getIndexedResources(pagenum - 1);
+                    page = createIndexedPage(pagenum);
                 }
 
-                page = createPage(pagenum, pageObj);
-
-                byte[] stream = getContents(pageObj);
-                parser = new PDFParser(page, stream, resources);
+                // a page kept on disk needs no parsing
+                PDFDisplayListCache lists = listCache;
+                if (lists != null &&
+                        lists.read(pagenum, page, this, resources)) {
+                    parser = null;
+                } else {
+                    byte[][] streams = getContents(pageObj);
+                    parser = new PDFParser(page, streams, resources);
+                    if (lists != null) {
+                        parser.setDisplayListCache(lists, pagenum);
+                    }
+                }
 
-                cache.addPage(key, page, parser);
+                // pages may be fetched on several threads at once.  If
+                // another thread made this page meanwhile, use its page,
+                // so that the page is only ever parsed once.
+                synchronized (cache) {
+                    PDFPage other = cache.getPage(key);
+                    if (other != null) {
+                        page = other;
+                        parser = cache.getPageParser(key);
+                    } else {
+                        cache.addPage(key, page, parser);
+                    }
+                }
             } catch (IOException ioe) {
                 System.out.println("GetPage inner loop:");
                 ioe.printStackTrace();
@@ -1592,6 +2451,35 @@ public class PDFFile {
         return page;
     }
 
+    /**
+     * Get the length of the content streams of a page, as they are stored
+     * in the file, without reading them.
+     *
+     * @param pagenum the number of the page, starting at 1
+     * @return the total length, or 0 if it isn't known
+     */
+    long getContentLength(int pagenum) throws IOException {
+        PDFPageIndex pages = getPageIndex();
+        if (pagenum < 1 || pagenum > pages.size()) {
+            return 0;
+        }
+
+        PDFObject contentsObj = getIndexedPage(pagenum - 1).getDictRef("Contents");
+        if (contentsObj == null) {
+            return 0;
+        }
+
+        long length = 0;
+        PDFObject contents[] = contentsObj.getArray();
+        for (int i = 0; i < contents.length; i++) {
+            PDFObject lengthObj = contents[i].getDictRef("Length");
+            if (lengthObj != null) {
+                length += lengthObj.getIntValue();
+            }
+        }
+        return length;
+    }
+
     /**
      * Stop the rendering of a particular image on this page
      */
@@ -1604,57 +2492,105 @@ public class PDFFile {
     }
 
     /**
-     * get the stream representing the content of a particular page.
+     * get the streams representing the content of a particular page.
+     * Each stream is decoded once, and the streams are handed to the
+     * parser as they are, rather than joined into one array.
      *
      * @param pageObj the page object to get the contents of
-     * @return a concatenation of any content streams for the requested
-     * page.
+     * @return the content streams of the requested page, in order
      */
-    private byte[] getContents(PDFObject pageObj) throws IOException {
-        // concatenate all the streams
+    private byte[][] getContents(PDFObject pageObj) throws IOException {
         PDFObject contentsObj = pageObj.getDictRef("Contents");
         if (contentsObj == null) {
             throw new IOException("No page contents!");
         }
 
         PDFObject contents[] = contentsObj.getArray();
-
-        // see if we have only one stream (the easy case)
-        if (contents.length == 1) {
-            return contents[0].getStream();
-        }
-
-        // first get the total length of all the streams
-        int len = 0;
+        byte[][] streams = new byte[contents.length][];
         for (int i = 0; i < contents.length; i++) {
-            byte[] data = contents[i].getStream();
-            if (data == null) {
+            streams[i] = contents[i].getStream();
+            if (streams[i] == null) {
                 throw new PDFParseException("No stream on content " + i +
                         ": " + contents[i]);
             }
-            len += data.length;
         }
 
-        // now assemble them all into one object
-        byte[] stream = new byte[len];
-        len = 0;
-        for (int i = 0; i < contents.length; i++) {
-            byte data[] = contents[i].getStream();
-            System.arraycopy(data, 0, stream, len, data.length);
-            len += data.length;
+        return streams;
+    }
+
+    /**
+     * Get the page index of this file, building it the first time it is
+     * needed by walking the whole page tree once.  After that, any page
+     * and its inherited attributes are found without walking the tree.
+     */
+    private PDFPageIndex getPageIndex() throws IOException {
+        PDFPageIndex pages = pageIndex;
+        if (pages != null) {
+            return pages;
         }
 
-        return stream;
+        synchronized (pageIndexLock) {
+            if (pageIndex == null) {
+                pageIndex = PDFPageIndex.build(root.getDictRef("Pages"));
+            }
+            return pageIndex;
+        }
     }
 
     /**
-     * Create a PDF Page object by finding the relevant inherited
-     * properties
+     * Get a page object from the page index
      *
-     * @param pageObj the PDF object for the page to be created
+     * @param idx the index of the page, starting at 0
+     */
+    private PDFObject getIndexedPage(int idx) throws IOException {
+        PDFXref xref = new PDFXref(pageIndex.getObjNum(idx), pageIndex.getObjGen(idx));
+        return new PDFObject(this, xref).dereference();
+    }
+
+    /**
+     * Get the resources of a page from the page index.  The map is the
+     * resource dictionary itself, shared by every page that inherits it,
+     * so it must not be changed.
+     *
+     * @param idx the index of the page, starting at 0
+     * @return the resources, or null if the page has none
      */
-    private PDFPage createPage(int pagenum, PDFObject pageObj)
+    private HashMap<String,PDFObject> getIndexedResources(int idx)
             throws IOException {
+        int resNum = pageIndex.getResourcesNum(idx);
+        if (resNum < 0) {
+            return null;
+        }
+
+        PDFXref xref = new PDFXref(resNum, pageIndex.getResourcesGen(idx));
+        PDFObject rsrcObj = new PDFObject(this, xref).getDictRef("Resources");
+        return (rsrcObj != null) ? rsrcObj.getDictionary() : null;
+    }
+
+    /**
+     * Create a PDF Page object from the attributes in the page index
+     */
+    private PDFPage createIndexedPage(int pagenum) {
+        int idx = pagenum - 1;
+        float[] box = pageIndex.getCropBox(idx);
+        if (box == null) {
+            box = pageIndex.getMediaBox(idx);
+        }
+        RectF bbox = (box == null) ? null :
+                new RectF(box[0], box[1], box[2], box[3]);
+
+        return new PDFPage(pagenum, bbox, pageIndex.getRotation(idx), cache);
+    }
+
+    /**
+     * Create the PDF Page object for the first page of a linearized file.
+     * The first page normally carries all of its attributes itself, and
+     * the page tree is at the end of the file, so only the MediaBox, which
+     * a page must have somewhere, is looked up in the page tree.
+     *
+     * @param pageObj the PDF object for the page to be created
+     */
+    private PDFPage createFirstPage(PDFObject pageObj) throws IOException {
         int rotation = 0;
         RectF mediabox = null; // second choice, if no crop
         RectF cropbox = null;  // first choice
@@ -1664,69 +2600,46 @@ public class PDFFile {
             mediabox = parseRect(mediaboxObj);
         }
 
-        PDFObject cropboxObj = getInheritedValue(pageObj, "CropBox");
+        PDFObject cropboxObj = pageObj.getDictRef("CropBox");
         if (cropboxObj != null) {
             cropbox = parseRect(cropboxObj);
         }
 
-        PDFObject rotateObj = getInheritedValue(pageObj, "Rotate");
+        PDFObject rotateObj = pageObj.getDictRef("Rotate");
         if (rotateObj != null) {
             rotation = rotateObj.getIntValue();
         }
 
         RectF bbox = ((cropbox == null) ? mediabox : cropbox);
 
-        return new PDFPage(pagenum, bbox, rotation, cache);
+        return new PDFPage(1, bbox, rotation, cache);
     }
 
     /**
-     * Get the PDFObject representing the content of a particular page. Note
-     * that the number of the page need not have anything to do with the
-     * label on that page.  If there are two blank pages, and then roman
-     * numerals for the page number, then passing in 6 will get page (iv).
+     * Get the first page of a linearized file straight from the object
+     * number in the linearization dictionary.  Its resources are looked up
+     * the way any inherited value is, so the page tree is only read if the
+     * page doesn't have its own.
      *
-     * @param pagedict the top of the pages tree
-     * @param start the page number of the first page in this dictionary
-     * @param getPage the number of the page to find; NOT the page's label.
-     * @param resources a HashMap that will be filled with any resource
-     *                  definitions encountered on the search for the page
-     */
-    private PDFObject findPage(PDFObject pagedict, int start, int getPage,
-            Map<String,PDFObject> resources) throws IOException {
-        PDFObject rsrcObj = pagedict.getDictRef("Resources");
-        if (rsrcObj != null) {
-            resources.putAll(rsrcObj.getDictionary());
-        }
-
-        PDFObject typeObj = pagedict.getDictRef("Type");
-        if (typeObj != null && typeObj.getStringValue().equals("Page")) {
-            // we found our page!
-            return pagedict;
-        }
-
-        // find the first child for which (start + count) > getPage
-        PDFObject kidsObj = pagedict.getDictRef("Kids");
-        if (kidsObj != null) {
-            PDFObject[] kids = kidsObj.getArray();
-            for (int i = 0; i < kids.length; i++) {
-                int count = 1;
-                // BUG: some PDFs (T1Format.pdf) don't have the Type tag.
-                // use the Count tag to indicate a Pages dictionary instead.
-                PDFObject countItem = kids[i].getDictRef("Count");
-                //                if (kids[i].getDictRef("Type").getStringValue().equals("Pages")) {
-                if (countItem != null) {
-                    count = countItem.getIntValue();
-                }
-
-                if (start + count >= getPage) {
-                    return findPage(kids[i], start, getPage, resources);
-                }
+     * @param resources a HashMap that will be filled with the resources of
+     *                  the page
+     * @return the page, or null if the object isn't a page
+     */
+    private PDFObject findFirstPage(Map<String,PDFObject> resources)
+            throws IOException {
+        PDFXref xref = new PDFXref(linearization.getFirstPageObjectNumber(), 0);
+        PDFObject pageObj = new PDFObject(this, xref).dereference();
 
-                start += count;
-            }
+        PDFObject typeObj = pageObj.getDictRef("Type");
+        if (typeObj == null || !typeObj.getStringValue().equals("Page")) {
+            return null;
         }
 
-        return null;
+        PDFObject rsrcObj = getInheritedValue(pageObj, "Resources");
+        if (rsrcObj != null) {
+            resources.putAll(rsrcObj.getDictionary());
+        }
+        return pageObj;
     }
 
     /**
@@ -0,0 +1,298 @@
+/*
+ * Copyright 2004 Sun Microsystems, Inc., 4150 Network Circle,
+ * Santa Clara, California 95054, U.S.A. All rights reserved.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package com.sun.pdfview;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.BufferUnderflowException;
+import java.nio.channels.FileChannel;
+
+/**
+ * What it takes to open a PDF file again without parsing its cross
+ * reference sections or walking its page tree: the flattened cross
+ * reference table, the trailer entries, and the page index.  It is kept
+ * in a file of its own next to the PDF (or in a cache directory), and
+ * memory mapped when it is read back.
+ * <p>
+ * The index belongs to one version of one PDF file.  It records the
+ * length and modification time of the file, and a hash of the end of the
+ * file, where the newest trailer is.  If any of these doesn't match when
+ * the file is opened again, the index is ignored.
+ * <p>
+ * Everything in the file is big-endian.  After a header come the arrays
+ * of the cross reference table and of the page index, each written in one
+ * piece so each can be read back in one bulk copy.
+ */
+class PDFFileIndex {
+
+    /** the first four bytes of an index file, "PIDX" */
+    private static final int MAGIC = 0x50494458;
+    /** the version of the format of index files */
+    private static final int FORMAT = 1;
+
+    /** the length of the PDF file */
+    long fileLength;
+    /** the modification time of the PDF file */
+    long lastModified;
+    /** the hash of the end of the PDF file */
+    int tailHash;
+
+    /** the PDF version of the file */
+    String versionString;
+    /** whether the xref was rebuilt by scanning the file */
+    boolean repaired;
+    /** the object numbers and generations of the trailer entries, or -1 */
+    int rootNum = -1;
+    int rootGen;
+    int infoNum = -1;
+    int infoGen;
+    int encryptNum = -1;
+    int encryptGen;
+    /** the strings of the trailer's /ID, or null */
+    byte[][] documentId;
+
+    /** the cross reference table */
+    PDFXrefTable xref;
+    /** the page index */
+    PDFPageIndex pages;
+
+    /**
+     * Create an empty index for a version of a PDF file
+     *
+     * @param fileLength the length of the file
+     * @param lastModified the modification time of the file
+     * @param tailHash the hash of the end of the file
+     */
+    PDFFileIndex(long fileLength, long lastModified, int tailHash) {
+        this.fileLength = fileLength;
+        this.lastModified = lastModified;
+        this.tailHash = tailHash;
+    }
+
+    /**
+     * Read an index from a file, if it is an index of the given version of
+     * a PDF file.
+     *
+     * @param indexFile the index file
+     * @param key an empty index holding the length, modification time and
+     * tail hash of the PDF file
+     * @return the index, or null if there is no index file, or it is for
+     * another version of the PDF file, or it can't be read
+     */
+    static PDFFileIndex read(File indexFile, PDFFileIndex key) {
+        if (!indexFile.isFile()) {
+            return null;
+        }
+
+        RandomAccessFile raf = null;
+        try {
+            raf = new RandomAccessFile(indexFile, "r");
+            FileChannel channel = raf.getChannel();
+            java.nio.ByteBuffer map =
+                    channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+
+            if (map.getInt() != MAGIC || map.getInt() != FORMAT ||
+                    map.getLong() != key.fileLength ||
+                    map.getLong() != key.lastModified ||
+                    map.getInt() != key.tailHash) {
+                return null;
+            }
+
+            PDFFileIndex index = new PDFFileIndex(key.fileLength,
+                    key.lastModified, key.tailHash);
+            index.readBody(map);
+            return index;
+        } catch (IOException e) {
+            System.out.println("Could not read index " + indexFile + ": " + e);
+            return null;
+        } catch (BufferUnderflowException e) {
+            System.out.println("Index " + indexFile + " is truncated");
+            return null;
+        } catch (RuntimeException e) {
+            System.out.println("Could not read index " + indexFile + ": " + e);
+            return null;
+        } finally {
+            if (raf != null) {
+                try {
+                    raf.close();
+                } catch (IOException e) {
+                    // nothing left to do with it anyway
+                }
+            }
+        }
+    }
+
+    /**
+     * read everything after the key
+     */
+    private void readBody(java.nio.ByteBuffer map) throws IOException {
+        versionString = new String(readBytes(map), "US-ASCII");
+        repaired = map.get() != 0;
+        rootNum = map.getInt();
+        rootGen = map.getInt();
+        infoNum = map.getInt();
+        infoGen = map.getInt();
+        encryptNum = map.getInt();
+        encryptGen = map.getInt();
+        int ids = map.getInt();
+        if (ids >= 0) {
+            documentId = new byte[ids][];
+            for (int i = 0; i < ids; i++) {
+                documentId[i] = readBytes(map);
+            }
+        }
+
+        int size = map.getInt();
+        int numPages = map.getInt();
+        if (size < 0 || numPages < 0) {
+            throw new PDFParseException("Bad index sizes");
+        }
+
+        // the int and float arrays first, then the byte arrays
+        int[] positions = readInts(map, size);
+        int[] generations = readInts(map, size);
+        int[] objNums = readInts(map, numPages);
+        int[] objGens = readInts(map, numPages);
+        int[] resNums = readInts(map, numPages);
+        int[] resGens = readInts(map, numPages);
+        int[] rotations = readInts(map, numPages);
+        float[] mediaBoxes = readFloats(map, numPages * 4);
+        float[] cropBoxes = readFloats(map, numPages * 4);
+        byte[] types = new byte[size];
+        map.get(types);
+        byte[] flags = new byte[numPages];
+        map.get(flags);
+
+        xref = new PDFXrefTable(types, positions, generations);
+        pages = new PDFPageIndex(numPages, objNums, objGens, resNums, resGens,
+                rotations, flags, mediaBoxes, cropBoxes);
+    }
+
+    static byte[] readBytes(java.nio.ByteBuffer map) {
+        byte[] bytes = new byte[map.getInt()];
+        map.get(bytes);
+        return bytes;
+    }
+
+    static int[] readInts(java.nio.ByteBuffer map, int n) {
+        int[] array = new int[n];
+        map.asIntBuffer().get(array);
+        map.position(map.position() + n * 4);
+        return array;
+    }
+
+    static float[] readFloats(java.nio.ByteBuffer map, int n) {
+        float[] array = new float[n];
+        map.asFloatBuffer().get(array);
+        map.position(map.position() + n * 4);
+        return array;
+    }
+
+    /**
+     * Write the index to a file.  It is written to a temporary file first,
+     * and then renamed, so a reader never sees half an index.
+     *
+     * @param indexFile the index file
+     */
+    void write(File indexFile) throws IOException {
+        File tmp = new File(indexFile.getPath() + ".tmp");
+        DataOutputStream out = new DataOutputStream(
+                new BufferedOutputStream(new FileOutputStream(tmp), 64 * 1024));
+        try {
+            out.writeInt(MAGIC);
+            out.writeInt(FORMAT);
+            out.writeLong(fileLength);
+            out.writeLong(lastModified);
+            out.writeInt(tailHash);
+
+            writeBytes(out, versionString.getBytes("US-ASCII"));
+            out.writeByte(repaired ? 1 : 0);
+            out.writeInt(rootNum);
+            out.writeInt(rootGen);
+            out.writeInt(infoNum);
+            out.writeInt(infoGen);
+            out.writeInt(encryptNum);
+            out.writeInt(encryptGen);
+            if (documentId == null) {
+                out.writeInt(-1);
+            } else {
+                out.writeInt(documentId.length);
+                for (int i = 0; i < documentId.length; i++) {
+                    writeBytes(out, documentId[i]);
+                }
+            }
+
+            int size = xref.size();
+            int numPages = pages.size();
+            out.writeInt(size);
+            out.writeInt(numPages);
+
+            for (int i = 0; i < size; i++) {
+                out.writeInt(xref.getPosition(i));
+            }
+            for (int i = 0; i < size; i++) {
+                out.writeInt(xref.getGeneration(i));
+            }
+            writeInts(out, pages.getObjNums(), numPages);
+            writeInts(out, pages.getObjGens(), numPages);
+            writeInts(out, pages.getResourcesNums(), numPages);
+            writeInts(out, pages.getResourcesGens(), numPages);
+            writeInts(out, pages.getRotations(), numPages);
+            writeFloats(out, pages.getMediaBoxes(), numPages * 4);
+            writeFloats(out, pages.getCropBoxes(), numPages * 4);
+            for (int i = 0; i < size; i++) {
+                out.writeByte(xref.getType(i));
+            }
+            out.write(pages.getFlags(), 0, numPages);
+        } finally {
+            out.close();
+        }
+
+        // renameTo won't replace a file on every platform
+        indexFile.delete();
+        if (!tmp.renameTo(indexFile)) {
+            tmp.delete();
+            throw new IOException("Could not create " + indexFile);
+        }
+    }
+
+    static void writeBytes(DataOutputStream out, byte[] bytes)
+            throws IOException {
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    static void writeInts(DataOutputStream out, int[] array, int n)
+            throws IOException {
+        for (int i = 0; i < n; i++) {
+            out.writeInt(array[i]);
+        }
+    }
+
+    static void writeFloats(DataOutputStream out, float[] array, int n)
+            throws IOException {
+        for (int i = 0; i < n; i++) {
+            out.writeFloat(array[i]);
+        }
+    }
+}
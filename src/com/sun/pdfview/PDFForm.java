@@ -0,0 +1,184 @@
+/*
+ * Copyright 2004 Sun Microsystems, Inc., 4150 Network Circle,
+ * Santa Clara, California 95054, U.S.A. All rights reserved.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package com.sun.pdfview;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import net.sf.andpdf.utils.Utils;
+
+import android.graphics.Matrix;
+import android.graphics.RectF;
+
+/**
+ * A form XObject, parsed once into commands of its own, which every page
+ * that draws the form refers to instead of holding a copy of them.
+ * <p>
+ * A form is parsed on a small pool of background threads, so the page
+ * that draws it first goes on parsing meanwhile, and independent forms
+ * are parsed at the same time.  When all the threads are busy, the form
+ * is parsed right away on the thread that asked for it.  Drawing a form
+ * waits for it to be parsed, if it isn't yet.
+ * <p>
+ * The parsed form is kept in the cache of the form's PDFObject.  A form
+ * with /Resources of its own is parsed with just those, once, whatever
+ * page it is drawn on.  A form without them uses the resources of what it
+ * is drawn on, so it is parsed once for each set of resources it is drawn
+ * with.
+ */
+class PDFForm {
+
+    /** how long an idle parsing thread is kept, in seconds */
+    private static final long KEEP_ALIVE = 30;
+
+    /** the threads forms are parsed on */
+    private static final ThreadPoolExecutor parsers = new ThreadPoolExecutor(
+            0, Math.max(1, Runtime.getRuntime().availableProcessors()),
+            KEEP_ALIVE, TimeUnit.SECONDS, new SynchronousQueue<Runnable>(),
+            new ThreadFactory() {
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "PDFForm parser");
+                    t.setDaemon(true);
+                    t.setPriority(Thread.NORM_PRIORITY - 1);
+                    return t;
+                }
+            },
+            new ThreadPoolExecutor.CallerRunsPolicy());
+
+    /** the commands of the form, finished once it has been parsed */
+    private final PDFPage commands;
+    /**
+     * the resources the form was parsed with, or null if it has its own
+     */
+    private final Map<String, PDFObject> context;
+    /** the same form, parsed with other resources */
+    private PDFForm next;
+
+    private PDFForm(PDFPage commands, Map<String, PDFObject> context) {
+        this.commands = commands;
+        this.context = context;
+    }
+
+    /**
+     * Get the commands of a form, parsing it if it hasn't been parsed with
+     * these resources yet.  The commands may still be being parsed when
+     * this returns.
+     *
+     * @param obj the form XObject
+     * @param resources the resources of what the form is drawn on
+     * @return the page the form's commands are added to
+     */
+    static PDFPage getCommands(PDFObject obj,
+            HashMap<String, PDFObject> resources) throws IOException {
+        PDFObject rsrc = obj.getDictRef("Resources");
+        Map<String, PDFObject> context = (rsrc == null) ? resources : null;
+
+        PDFForm form;
+        synchronized (PDFForm.class) {
+            Object cached = obj.getCache();
+            PDFForm first = (cached instanceof PDFForm) ? (PDFForm) cached : null;
+            for (form = first; form != null; form = form.next) {
+                if (form.context == null ? context == null :
+                        form.context.equals(context)) {
+                    return form.commands;
+                }
+            }
+
+            PDFPage formCmds = new PDFPage(getBBox(obj), 0);
+            formCmds.addXform(getMatrix(obj));
+            form = new PDFForm(formCmds, context);
+            form.next = first;
+            obj.setCache(form);
+        }
+
+        // the form is in the cache now, so anyone else drawing it waits
+        // for this parse rather than starting another.  A form with
+        // resources of its own is shared by every page, so it mustn't see
+        // the resources of the page that happened to draw it first.
+        HashMap<String, PDFObject> r = new HashMap<String, PDFObject>(
+                (rsrc != null) ? rsrc.getDictionary() : resources);
+        boolean started = false;
+        try {
+            PDFParser parser = new PDFParser(form.commands, obj.getStream(), r);
+            parsers.execute(form.parse(parser));
+            started = true;
+        } finally {
+            if (!started) {
+                form.parse(null).run();
+            }
+        }
+        return form.commands;
+    }
+
+    /**
+     * get the task that parses the form
+     * @param parser the parser of the form, or null to just finish the
+     * form with no more commands
+     */
+    private Runnable parse(final PDFParser parser) {
+        return new Runnable() {
+            public void run() {
+                try {
+                    if (parser != null) {
+                        parser.go(true);
+                    }
+                } finally {
+                    // whatever happened, don't leave anyone waiting
+                    synchronized (commands) {
+                        if (!commands.isFinished()) {
+                            commands.finish();
+                        }
+                    }
+                }
+            }
+        };
+    }
+
+    /**
+     * get the matrix of a form, mapping form space to user space
+     */
+    private static Matrix getMatrix(PDFObject obj) throws IOException {
+        Matrix at = new Matrix();
+        PDFObject matrix = obj.getDictRef("Matrix");
+        if (matrix != null) {
+            float elts[] = new float[6];
+            for (int i = 0; i < elts.length; i++) {
+                elts[i] = matrix.getAt(i).getFloatValue();
+            }
+            Utils.setMatValues(at, elts);
+        }
+        return at;
+    }
+
+    /**
+     * get the bounding box of a form
+     */
+    private static RectF getBBox(PDFObject obj) throws IOException {
+        PDFObject bobj = obj.getDictRef("BBox");
+        return new RectF(bobj.getAt(0).getFloatValue(),
+                bobj.getAt(1).getFloatValue(),
+                bobj.getAt(2).getFloatValue(),
+                bobj.getAt(3).getFloatValue());
+    }
+}
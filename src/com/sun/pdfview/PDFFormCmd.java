@@ -0,0 +1,102 @@
+/*
+ * Copyright 2004 Sun Microsystems, Inc., 4150 Network Circle,
+ * Santa Clara, California 95054, U.S.A. All rights reserved.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package com.sun.pdfview;
+
+import java.util.List;
+
+import android.graphics.RectF;
+
+/**
+ * draw a form XObject, whose commands are kept in a page of their own that
+ * every page drawing the form refers to
+ */
+class PDFFormCmd extends PDFCmd {
+
+    /** the deepest forms within forms are drawn */
+    private static final int MAX_DEPTH = 32;
+
+    PDFPage form;
+    /** the form XObject */
+    PDFObject formObj;
+
+    public PDFFormCmd(PDFPage form, PDFObject formObj) {
+        this.form = form;
+        this.formObj = formObj;
+    }
+
+    /**
+     * get the commands of the form
+     */
+    PDFPage getForm() {
+        return form;
+    }
+
+    /**
+     * get the form XObject the commands were parsed from
+     */
+    PDFObject getFormObject() {
+        return formObj;
+    }
+
+    public RectF execute(PDFRenderer state) {
+        // a form that draws itself, even through other forms, is drawn
+        // once.  Bounding the depth alone doesn't do: a form that draws
+        // itself twice would be drawn 2^MAX_DEPTH times.
+        List<PDFPage> drawing = state.drawingForms;
+        if (drawing.size() >= MAX_DEPTH) {
+            return null;
+        }
+        for (int i = 0; i < drawing.size(); i++) {
+            if (drawing.get(i) == form) {
+                return null;
+            }
+        }
+
+        // the form may still be being parsed
+        try {
+            form.waitForFinish();
+        } catch (InterruptedException e) {
+            return null;
+        }
+
+        drawing.add(form);
+        state.push();
+        try {
+            PDFDisplayList list = form.getDisplayList();
+            if (list != null) {
+                return list.replay(state);
+            }
+
+            RectF rect = null;
+            List<PDFCmd> cmds = form.getCommands();
+            for (int i = 0; i < cmds.size(); i++) {
+                RectF dirty = cmds.get(i).execute(state);
+                if (rect == null) {
+                    rect = dirty;
+                } else if (dirty != null) {
+                    rect.union(dirty);
+                }
+            }
+            return rect;
+        } finally {
+            state.pop();
+            drawing.remove(drawing.size() - 1);
+        }
+    }
+}
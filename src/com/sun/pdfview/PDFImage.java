@@ -20,13 +20,16 @@
  */
 package com.sun.pdfview;
 
+import java.io.ByteArrayInputStream;
 import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
 import java.nio.ByteBuffer;
 import java.util.HashMap;
 import java.util.Map;
 
 import com.sun.pdfview.colorspace.PDFColorSpace;
+import com.sun.pdfview.decode.PDFDecoder;
 import com.sun.pdfview.function.FunctionType0;
 
 import android.graphics.Bitmap;
@@ -90,6 +93,13 @@ public class PDFImage {
         this.imageObj = imageObj;
     }
 
+    /**
+     * Get the object holding the image's dictionary and stream
+     */
+    PDFObject getImageObject() {
+        return imageObj;
+    }
+
     /**
      * Read a PDFImage from an image dictionary and stream
      *
@@ -221,8 +231,19 @@ public class PDFImage {
             if (bi == null) {
             	if (!sShowImages)
             		throw new UnsupportedOperationException("do not show images");
-            	byte[] imgBytes = imageObj.getStream();
-                bi = parseData(imgBytes);
+            	if (PDFDecoder.isDecodedAsRead(imageObj)) {
+            		// convert each row as soon as it is decoded, without
+            		// keeping the whole of the decoded data
+            		InputStream in = imageObj.getStreamInput();
+            		try {
+            			bi = parseRows(in);
+            		} finally {
+            			in.close();
+            		}
+            	} else {
+            		byte[] imgBytes = imageObj.getStream();
+            		bi = parseData(imgBytes);
+            	}
             	// TODO [FHe]: is the cache useful on Android?
                 imageObj.setCache(bi);
             }
@@ -252,7 +273,23 @@ public class PDFImage {
 		}
     }
 
-	private Bitmap parseData(byte[] imgBytes) {
+	private Bitmap parseData(byte[] imgBytes) throws IOException {
+		if (colorSpace != null &&
+				colorSpace.getType() == PDFColorSpace.COLORSPACE_RGB &&
+				imgBytes.length == 2*getWidth()*getHeight()) {
+			// decoded JPEG as RGB565
+			Bitmap bi = Bitmap.createBitmap(getWidth(), getHeight(), Config.RGB_565);
+			bi.copyPixelsFromBuffer(ByteBuffer.wrap(imgBytes));
+			return bi;
+		}
+		return parseRows(new ByteArrayInputStream(imgBytes));
+	}
+
+	/**
+	 * parse the decoded image data into an image, a row at a time as it
+	 * is read
+	 */
+	private Bitmap parseRows(InputStream in) throws IOException {
 		Bitmap bi;
 		long startTime = System.currentTimeMillis();
 		// parse the stream data into an actual image
@@ -260,26 +297,21 @@ public class PDFImage {
 		if (colorSpace == null) {
 			throw new UnsupportedOperationException("image without colorspace");
 		} else if (colorSpace.getType() == PDFColorSpace.COLORSPACE_RGB) {
+			// create RGB image
+			bi = Bitmap.createBitmap(getWidth(), getHeight(), Config.ARGB_8888);
 			int maxH = getHeight();
 			int maxW = getWidth();
-			if (imgBytes.length == 2*maxW*maxH) {
-				// decoded JPEG as RGB565
-				bi = Bitmap.createBitmap(maxW, maxH, Config.RGB_565);
-				bi.copyPixelsFromBuffer(ByteBuffer.wrap(imgBytes));
-			}
-			else {
-				// create RGB image
-				bi = Bitmap.createBitmap(getWidth(), getHeight(), Config.ARGB_8888);
-				int[] line = new int[maxW]; 
+			int[] line = new int[maxW]; 
+			byte[] row = new byte[3*maxW];
+			for (int h = 0; h<maxH; h++) {
+				readRow(in, row);
 				int n=0;
-				for (int h = 0; h<maxH; h++) {
-					for (int w = 0; w<getWidth(); w++) {
-						line[w] = ((0xff&(int)imgBytes[n])<<8|(0xff&(int)imgBytes[n+1]))<<8|(0xff&(int)imgBytes[n+2])|0xFF000000;
-	//            			line[w] = Color.rgb(0xff&(int)imgBytes[n], 0xff&(int)imgBytes[n+1],0xff&(int)imgBytes[n+2]);
-						n+=3;
-					}
-					bi.setPixels(line, 0, maxW, 0, h, maxW, 1);
+				for (int w = 0; w<maxW; w++) {
+					line[w] = ((0xff&(int)row[n])<<8|(0xff&(int)row[n+1]))<<8|(0xff&(int)row[n+2])|0xFF000000;
+//            			line[w] = Color.rgb(0xff&(int)row[n], 0xff&(int)row[n+1],0xff&(int)row[n+2]);
+					n+=3;
 				}
+				bi.setPixels(line, 0, maxW, 0, h, maxW, 1);
 			}
 		}
 		else if (colorSpace.getType() == PDFColorSpace.COLORSPACE_GRAY) {
@@ -288,12 +320,12 @@ public class PDFImage {
 			int maxH = getHeight();
 			int maxW = getWidth();
 			int[] line = new int[maxW]; 
-			int n=0;
+			byte[] row = new byte[maxW];
 			for (int h = 0; h<maxH; h++) {
-				for (int w = 0; w<getWidth(); w++) {
-					int gray = 0xff&(int)imgBytes[n];
+				readRow(in, row);
+				for (int w = 0; w<maxW; w++) {
+					int gray = 0xff&(int)row[w];
 					line[w] = (gray<<8|gray)<<8|gray|0xFF000000;
-					n+=1;
 				}
 				bi.setPixels(line, 0, maxW, 0, h, maxW, 1);
 			}
@@ -305,12 +337,12 @@ public class PDFImage {
 			int maxW = getWidth();
 			int[] line = new int[maxW];
 			int[] comps = new int[1];
-			int n=0;
+			byte[] row = new byte[maxW];
 			for (int h = 0; h<maxH; h++) {
-				for (int w = 0; w<getWidth(); w++) {
-					comps[0] = imgBytes[n]&0xff;
+				readRow(in, row);
+				for (int w = 0; w<maxW; w++) {
+					comps[0] = row[w]&0xff;
 					line[w] = colorSpace.toColor(comps);
-					n+=1;
 				}
 				bi.setPixels(line, 0, maxW, 0, h, maxW, 1);
 			}
@@ -323,6 +355,20 @@ public class PDFImage {
 		return bi;
 	}
 
+	/**
+	 * read one row of the decoded image data
+	 */
+	private static void readRow(InputStream in, byte[] row) throws IOException {
+		int n = 0;
+		while (n < row.length) {
+			int read = in.read(row, n, row.length - n);
+			if (read == -1) {
+				throw new PDFParseException("Image data ends before the last row");
+			}
+			n += read;
+		}
+	}
+
 //    /**
 //     * <p>Parse the image stream into a buffered image.  Note that this is
 //     * guaranteed to be called after all the other setXXX methods have been 
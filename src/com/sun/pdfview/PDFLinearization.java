@@ -0,0 +1,275 @@
+/*
+ * Copyright 2004 Sun Microsystems, Inc., 4150 Network Circle,
+ * Santa Clara, California 95054, U.S.A. All rights reserved.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package com.sun.pdfview;
+
+import java.io.IOException;
+
+/**
+ * The linearization parameters of a linearized ("fast web view") PDF
+ * file, and the page offsets read from its hint stream.
+ * <p>
+ * A linearized file starts with a linearization dictionary, followed by a
+ * cross reference section for the objects of the first page.  Everything
+ * needed to show the first page comes before the end of that page, so it
+ * can be shown before the rest of the file has been read.  The page offset
+ * hint table tells where in the file each of the other pages is, so the
+ * data for a page can be fetched before it is shown.  Only the page offset
+ * hint table is read; the objects shared between pages are not included in
+ * the page ranges.
+ */
+public class PDFLinearization {
+
+    /** the length of the file, as linearized */
+    private int fileLength;
+    /** the object number of the first page's page object */
+    private int firstPageObj;
+    /** the offset of the end of the first page */
+    private int firstPageEnd;
+    /** the number of pages in the document */
+    private int numPages;
+    /** the offset of the main cross reference section */
+    private int mainXref;
+    /** the offset and length of the primary hint stream */
+    private int hintOffset;
+    private int hintLength;
+    /** the offset and length of each page, from the hint table */
+    private int[] pageOffsets;
+    private int[] pageLengths;
+
+    /**
+     * Create the linearization parameters from a linearization dictionary
+     *
+     * @param dict the linearization dictionary
+     * @throws PDFParseException if a required entry is missing
+     */
+    PDFLinearization(PDFObject dict) throws IOException {
+        fileLength = getInt(dict, "L");
+        firstPageObj = getInt(dict, "O");
+        firstPageEnd = getInt(dict, "E");
+        numPages = getInt(dict, "N");
+        mainXref = getInt(dict, "T");
+
+        PDFObject hint = dict.getDictRef("H");
+        if (hint == null) {
+            throw new PDFParseException("Linearization dictionary has no /H");
+        }
+        PDFObject[] hintArray = hint.getArray();
+        if (hintArray.length < 2) {
+            throw new PDFParseException("Linearization /H needs offset and length");
+        }
+        hintOffset = hintArray[0].getIntValue();
+        hintLength = hintArray[1].getIntValue();
+    }
+
+    private static int getInt(PDFObject dict, String key) throws IOException {
+        PDFObject obj = dict.getDictRef(key);
+        if (obj == null || obj.getType() != PDFObject.NUMBER) {
+            throw new PDFParseException("Linearization dictionary has no /" + key);
+        }
+        return obj.getIntValue();
+    }
+
+    /**
+     * Read the page offset hint table, which starts at the beginning of the
+     * decoded primary hint stream.
+     *
+     * @param hints the decoded primary hint stream
+     */
+    void readPageOffsetHints(byte[] hints) throws IOException {
+        HintReader in = new HintReader(hints);
+
+        // the header
+        in.read(32); // the least number of objects in a page
+        int firstPageOffset = in.read(32);
+        int objectsBits = in.read(16);
+        int leastLength = in.read(32);
+        int lengthBits = in.read(16);
+        if (objectsBits > 32 || lengthBits > 32) {
+            throw new PDFParseException("Bad page offset hint table");
+        }
+        // the rest of the header describes content streams and shared
+        // objects, which we don't use
+        in.read(32);
+        in.read(16);
+        in.read(32);
+        in.read(16);
+        in.read(16);
+        in.read(16);
+        in.read(16);
+        in.read(16);
+
+        // the number of objects in each page, which we only skip
+        for (int i = 0; i < numPages; i++) {
+            in.read(objectsBits);
+        }
+        in.align();
+
+        // the length of each page
+        int[] offsets = new int[numPages];
+        int[] lengths = new int[numPages];
+        int offset = firstPageOffset;
+        for (int i = 0; i < numPages; i++) {
+            lengths[i] = leastLength + in.read(lengthBits);
+            offsets[i] = adjust(offset);
+            offset += lengths[i];
+        }
+
+        pageOffsets = offsets;
+        pageLengths = lengths;
+    }
+
+    /**
+     * offsets in the hint tables are given as if the hint stream wasn't
+     * in the file
+     */
+    private int adjust(int offset) {
+        return offset >= hintOffset ? offset + hintLength : offset;
+    }
+
+    /**
+     * Get the length of the file when it was linearized.  If the file is
+     * any other length, it has been updated since, and isn't linearized
+     * any more.
+     */
+    public int getFileLength() {
+        return fileLength;
+    }
+
+    /**
+     * Get the object number of the first page's page object
+     */
+    public int getFirstPageObjectNumber() {
+        return firstPageObj;
+    }
+
+    /**
+     * Get the offset of the end of the first page: once the file is
+     * available up to here, the first page can be shown.
+     */
+    public int getFirstPageEnd() {
+        return firstPageEnd;
+    }
+
+    /**
+     * Get the number of pages in the document
+     */
+    public int getNumPages() {
+        return numPages;
+    }
+
+    /**
+     * Get the offset of the main cross reference section, which holds the
+     * objects of every page but the first
+     */
+    public int getMainXrefOffset() {
+        return mainXref;
+    }
+
+    /**
+     * Get the offset of the primary hint stream
+     */
+    public int getHintOffset() {
+        return hintOffset;
+    }
+
+    /**
+     * Get the length of the primary hint stream
+     */
+    public int getHintLength() {
+        return hintLength;
+    }
+
+    /**
+     * Has the page offset hint table been read?
+     */
+    public boolean hasPageHints() {
+        return pageOffsets != null;
+    }
+
+    /**
+     * Get the offset of the objects of a page, from the page offset hint
+     * table
+     *
+     * @param pagenum the page number, starting at 1
+     * @return the offset, or -1 if there is no hint for the page
+     */
+    public int getPageOffset(int pagenum) {
+        if (pageOffsets == null || pagenum < 1 || pagenum > pageOffsets.length) {
+            return -1;
+        }
+        return pageOffsets[pagenum - 1];
+    }
+
+    /**
+     * Get the length of the objects of a page, from the page offset hint
+     * table
+     *
+     * @param pagenum the page number, starting at 1
+     * @return the length, or -1 if there is no hint for the page
+     */
+    public int getPageLength(int pagenum) {
+        if (pageLengths == null || pagenum < 1 || pagenum > pageLengths.length) {
+            return -1;
+        }
+        return pageLengths[pagenum - 1];
+    }
+
+    /**
+     * Reads the big-endian bit fields of a hint table
+     */
+    private static class HintReader {
+
+        private final byte[] data;
+        private int bytePos;
+        private int bitPos;
+
+        HintReader(byte[] data) {
+            this.data = data;
+        }
+
+        /**
+         * read an unsigned field of up to 32 bits
+         */
+        int read(int bits) throws IOException {
+            long result = 0;
+            for (int i = 0; i < bits; i++) {
+                if (bytePos >= data.length) {
+                    throw new PDFParseException("Hint table ended early");
+                }
+                int bit = (data[bytePos] >> (7 - bitPos)) & 1;
+                result = (result << 1) | bit;
+                if (++bitPos == 8) {
+                    bitPos = 0;
+                    bytePos++;
+                }
+            }
+            return (int) result;
+        }
+
+        /**
+         * skip to the next byte boundary
+         */
+        void align() {
+            if (bitPos != 0) {
+                bitPos = 0;
+                bytePos++;
+            }
+        }
+    }
+}
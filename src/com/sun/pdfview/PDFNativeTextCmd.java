@@ -78,6 +78,20 @@ public class PDFNativeTextCmd extends PDFCmd {
         bounds = new RectF(x, y, x+w, y+h);
     }
 
+    /**
+     * get the text drawn by this command
+     */
+    String getText() {
+        return text;
+    }
+
+    /**
+     * get the matrix the command was created with
+     */
+    Matrix getMatrix() {
+        return mat;
+    }
+
     /**
      * perform the stroke and record the dirty region
      */
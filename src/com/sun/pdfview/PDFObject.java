@@ -20,7 +20,9 @@
  */
 package com.sun.pdfview;
 
+import java.io.ByteArrayInputStream;
 import java.io.IOException;
+import java.io.InputStream;
 
 import net.sf.andpdf.refs.SoftReference;
 
@@ -28,6 +30,7 @@ import java.util.*;
 
 import net.sf.andpdf.nio.ByteBuffer;
 
+import com.sun.pdfview.decode.ByteBufferInputStream;
 import com.sun.pdfview.decode.PDFDecoder;
 import com.sun.pdfview.decrypt.PDFDecrypter;
 import com.sun.pdfview.decrypt.IdentityDecrypter;
@@ -317,6 +320,40 @@ public class PDFObject {
         return null;
     }
 
+    /**
+     * get the stream from this object as an InputStream, decoded as it is
+     * read, so reading can start before the whole stream is decoded.
+     * Unlike getStream(), the decoded stream isn't kept, unless it
+     * already was.  Will return null if this object isn't a STREAM.
+     * @return the stream, or null, if this isn't a STREAM.
+     */
+    public InputStream getStreamInput() throws IOException {
+        if (type == INDIRECT) {
+            return dereference().getStreamInput();
+        } else if (type == STREAM && stream != null) {
+            ByteBuffer streamBuf = null;
+            synchronized (stream) {
+                if (decodedStream != null) {
+                    streamBuf = (ByteBuffer) decodedStream.get();
+                }
+                if (streamBuf != null) {
+                    return new ByteBufferInputStream(streamBuf.duplicate());
+                }
+
+                // decode a copy of the stream, so the stream itself can be
+                // read meanwhile
+                streamBuf = stream.duplicate();
+            }
+            streamBuf.rewind();
+            return PDFDecoder.openStream(this, streamBuf);
+        } else if (type == STRING) {
+            return new ByteArrayInputStream(PDFStringUtil.asBytes(getStringValue()));
+        }
+
+        // wrong type
+        return null;
+    }
+
     /**
      * Get the decoded stream value
      */
@@ -732,6 +769,15 @@ public class PDFObject {
         return (type == INDIRECT);
     }
 
+    /**
+     * Get the cross reference of an indirect object, without dereferencing
+     * it
+     * @return the reference, or null if the object isn't indirect
+     */
+    PDFXref getXref() {
+        return (type == INDIRECT) ? (PDFXref) value : null;
+    }
+
     /** 
      * Test whether two PDFObject are equal.  Objects are equal IFF they
      * are the same reference OR they are both indirect objects with the
@@ -25,9 +25,9 @@ import net.sf.andpdf.refs.WeakReference;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
-import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
 
 import net.sf.andpdf.utils.Utils;
 
@@ -58,12 +58,22 @@ import android.graphics.Paint.Join;
  */
 public class PDFPage {
 
+    /**
+     * whether new pages keep their commands in a compiled PDFDisplayList
+     * instead of a list of PDFCmd objects
+     */
+    public static boolean sCompileDisplayLists = false;
     /** the array of commands.  The length of this array will always
      * be greater than or equal to the actual number of commands. */
     private final List<PDFCmd> commands = Collections.synchronizedList(new ArrayList<PDFCmd>(250));
+    /**
+     * the compiled commands, or null if the commands are kept in the
+     * command list
+     */
+    private final PDFDisplayList displayList;
     /** whether this page has been finished.  If true, there will be no
      * more commands added to the cmds list. */
-    private boolean finished = false;
+    private volatile boolean finished = false;
     /** the page number used to find this page */
     private int pageNumber;
     /** the bounding box of the page, in page coordinates */
@@ -75,6 +85,16 @@ public class PDFPage {
     private Cache cache;
     /** a map from image info to weak references to parsers that are active */
     private final Map<ImageInfo, WeakReference> renderers = Collections.synchronizedMap(new HashMap<ImageInfo, WeakReference>());
+    /**
+     * the renderers drawing this page while it is being parsed, which are
+     * handed the commands in batches as they are added
+     */
+    private final List<WeakReference<PDFRenderer>> consumers =
+            new CopyOnWriteArrayList<WeakReference<PDFRenderer>>();
+    /** the number of commands added since the consumers were last told */
+    private int unpublished;
+    /** the number of commands handed to the consumers in one batch */
+    private static final int PUBLISH_BATCH = 32;
     // TODO [FHe]: just a quick hack
     private static int parsedCommands;
 
@@ -101,6 +121,7 @@ public class PDFPage {
             Cache cache) {
         this.pageNumber = pageNumber;
         this.cache = cache;
+        this.displayList = sCompileDisplayLists ? new PDFDisplayList() : null;
 
         if (bbox == null) {
             bbox = new RectF(0, 0, 1, 1);
@@ -338,11 +359,24 @@ public class PDFPage {
      * get the current number of commands for this page
      */
     public int getCommandCount() {
+        if (displayList != null) {
+            return displayList.size();
+        }
         return commands.size();
     }
 
     /**
-     * get the command at a given index
+     * get the compiled commands of this page
+     * @return the display list, or null if this page keeps its commands
+     * as PDFCmd objects
+     */
+    public PDFDisplayList getDisplayList() {
+        return displayList;
+    }
+
+    /**
+     * get the command at a given index.  A page with a display list has
+     * no PDFCmd objects to get, and the command list is empty.
      */
     public PDFCmd getCommand(int index) {
         lastRenderedCommand = index;
@@ -374,8 +408,12 @@ public class PDFPage {
      * Add a single command to the page list.
      */
     public void addCommand(PDFCmd cmd) {
-        synchronized (commands) {
-            commands.add(cmd);
+        if (displayList != null) {
+            displayList.addCommand(cmd);
+        } else {
+            synchronized (commands) {
+                commands.add(cmd);
+            }
         }
 
         // notify any outstanding images
@@ -400,13 +438,38 @@ public class PDFPage {
      * If null, no extra transform will be added.
      */
     public void addCommands(PDFPage page, Matrix extra) {
+        if (displayList != null) {
+            synchronized (displayList) {
+                displayList.addPush();
+                if (extra != null) {
+                    displayList.addXform(extra);
+                }
+                if (page.getDisplayList() != null) {
+                    displayList.addAll(page.getDisplayList());
+                } else {
+                    for (PDFCmd cmd : page.getCommands()) {
+                        displayList.addCommand(cmd);
+                    }
+                }
+                displayList.addPop();
+            }
+
+            // notify any outstanding images
+            updateImages();
+            return;
+        }
+
         synchronized (commands) {
             addPush();
             if (extra != null) {
                 addXform(extra);
             }
             //addXform(page.getTransform());
-            commands.addAll(page.getCommands());
+            if (page.getDisplayList() != null) {
+                commands.add(new PDFDisplayListCmd(page.getDisplayList()));
+            } else {
+                commands.addAll(page.getCommands());
+            }
             addPop();
         }
 
@@ -418,12 +481,15 @@ public class PDFPage {
      * Clear all commands off the current page
      */
     public void clearCommands() {
+        if (displayList != null) {
+            displayList.clear();
+        }
         synchronized (commands) {
             commands.clear();
         }
 
         // notify any outstanding images
-        updateImages();
+        publishCommands();
     }
 
     /**
@@ -438,7 +504,7 @@ public class PDFPage {
      * wait for finish
      */
     public synchronized void waitForFinish() throws InterruptedException {
-        if (!finished) {
+        while (!finished) {
             wait();
         }
     }
@@ -469,19 +535,32 @@ public class PDFPage {
     public synchronized void finish() {
         //	System.out.println("Page finished!");
         finished = true;
+        if (displayList != null) {
+            displayList.trim();
+        }
         notifyAll();
 
         // notify any outstanding images
-        updateImages();
+        publishCommands();
     }
 
     /** push the graphics state */
     public void addPush() {
+        if (displayList != null) {
+            displayList.addPush();
+            updateImages();
+            return;
+        }
         addCommand(new PDFPushCmd());
     }
 
     /** pop the graphics state */
     public void addPop() {
+        if (displayList != null) {
+            displayList.addPop();
+            updateImages();
+            return;
+        }
         addCommand(new PDFPopCmd());
     }
 
@@ -489,6 +568,11 @@ public class PDFPage {
     public void addXform(Matrix mat) {
         //	PDFXformCmd xc= lastXformCmd();
         //	xc.at.concatenate(at);
+        if (displayList != null) {
+            displayList.addXform(mat);
+            updateImages();
+            return;
+        }
         addCommand(new PDFXformCmd(new Matrix(mat)));
     }
 
@@ -497,6 +581,11 @@ public class PDFPage {
      * @param w the width of the stroke
      */
     public void addStrokeWidth(float w) {
+        if (displayList != null) {
+            displayList.addStrokeWidth(w);
+            updateImages();
+            return;
+        }
         PDFChangeStrokeCmd sc = new PDFChangeStrokeCmd();
 //        if (w == 0) {
 //            w = 0.1f;
@@ -510,8 +599,6 @@ public class PDFPage {
      * @param capstyle the cap style:  0 = BUTT, 1 = ROUND, 2 = SQUARE
      */
     public void addEndCap(int capstyle) {
-        PDFChangeStrokeCmd sc = new PDFChangeStrokeCmd();
-
         Cap cap = Paint.Cap.BUTT;
         switch (capstyle) {
             case 0:
@@ -524,6 +611,12 @@ public class PDFPage {
                 cap = Paint.Cap.SQUARE;
                 break;
         }
+        if (displayList != null) {
+            displayList.addEndCap(cap);
+            updateImages();
+            return;
+        }
+        PDFChangeStrokeCmd sc = new PDFChangeStrokeCmd();
         sc.setEndCap(cap);
 
         addCommand(sc);
@@ -534,8 +627,6 @@ public class PDFPage {
      * @param joinstyle the join style: 0 = MITER, 1 = ROUND, 2 = BEVEL
      */
     public void addLineJoin(int joinstyle) {
-        PDFChangeStrokeCmd sc = new PDFChangeStrokeCmd();
-
         Join join = Paint.Join.MITER;
         switch (joinstyle) {
             case 0:
@@ -548,6 +639,12 @@ public class PDFPage {
                 join = Paint.Join.BEVEL;
                 break;
         }
+        if (displayList != null) {
+            displayList.addLineJoin(join);
+            updateImages();
+            return;
+        }
+        PDFChangeStrokeCmd sc = new PDFChangeStrokeCmd();
         sc.setLineJoin(join);
 
         addCommand(sc);
@@ -557,6 +654,11 @@ public class PDFPage {
      * set the miter limit
      */
     public void addMiterLimit(float limit) {
+        if (displayList != null) {
+            displayList.addMiterLimit(limit);
+            updateImages();
+            return;
+        }
         PDFChangeStrokeCmd sc = new PDFChangeStrokeCmd();
 
         sc.setMiterLimit(limit);
@@ -570,6 +672,11 @@ public class PDFPage {
      * @param phase offset of the array at the start of the line drawing
      */
     public void addDash(float[] dashary, float phase) {
+        if (displayList != null) {
+            displayList.addDash(PDFChangeStrokeCmd.checkDash(dashary), phase);
+            updateImages();
+            return;
+        }
         PDFChangeStrokeCmd sc = new PDFChangeStrokeCmd();
 
         sc.setDash(dashary, phase);
@@ -584,6 +691,11 @@ public class PDFPage {
      * PDFShapeCmd.BOTH, PDFShapeCmd.CLIP, or some combination.
      */
     public void addPath(Path path, int style) {
+        if (displayList != null) {
+            displayList.addPath(path, style);
+            updateImages();
+            return;
+        }
         addCommand(new PDFShapeCmd(path, style));
     }
 
@@ -591,11 +703,21 @@ public class PDFPage {
      * set the fill paint
      */
     public void addFillPaint(PDFPaint p) {
+        if (displayList != null) {
+            displayList.addFillPaint(p);
+            updateImages();
+            return;
+        }
         addCommand(new PDFFillPaintCmd(p));
     }
 
     /** set the stroke paint */
     public void addStrokePaint(PDFPaint p) {
+        if (displayList != null) {
+            displayList.addStrokePaint(p);
+            updateImages();
+            return;
+        }
         addCommand(new PDFStrokePaintCmd(p));
     }
 
@@ -603,11 +725,21 @@ public class PDFPage {
      * set the fill alpha
      */
     public void addFillAlpha(float a) {
+        if (displayList != null) {
+            displayList.addFillAlpha(a);
+            updateImages();
+            return;
+        }
         addCommand(new PDFFillAlphaCmd(a));
     }
 
     /** set the stroke alpha */
     public void addStrokeAlpha(float a) {
+        if (displayList != null) {
+            displayList.addStrokeAlpha(a);
+            updateImages();
+            return;
+        }
         addCommand(new PDFStrokeAlphaCmd(a));
     }
 
@@ -616,29 +748,103 @@ public class PDFPage {
      * @param image the image to draw
      */
     public void addImage(PDFImage image) {
-        addCommand(new PDFImageCmd(image));
+        if (displayList != null) {
+            displayList.addImage(image);
+        } else {
+            synchronized (commands) {
+                commands.add(new PDFImageCmd(image));
+            }
+        }
+
+        // an image takes a while to draw, so hand it over straight away
+        publishCommands();
     }
 
     /**
-     * Notify all images we know about that a command has been added
+     * Notify all images we know about that a command has been added.  The
+     * commands are handed to the renderers in batches, so most calls only
+     * count the command.
      */
     public void updateImages() {
-        parsedCommands = commands.size();
-        for (Iterator i = renderers.values().iterator(); i.hasNext();) {
-            WeakReference ref = (WeakReference) i.next();
-            PDFRenderer renderer = (PDFRenderer) ref.get();
-
-            if (renderer != null) {
-                if (renderer.getStatus() == Watchable.NEEDS_DATA) {
-                    // there are watchers.  Set the state to paused and
-                    // let the watcher decide when to start.
-                    renderer.setStatus(Watchable.PAUSED);
-                }
+        if (++unpublished >= PUBLISH_BATCH) {
+            publishCommands();
+        }
+    }
+
+    /**
+     * hand the commands added since the last batch to the renderers now,
+     * without waiting for the batch to fill up
+     */
+    void flushCommands() {
+        if (unpublished > 0) {
+            publishCommands();
+        }
+    }
+
+    /**
+     * hand all the commands added so far to the renderers drawing this
+     * page, waking any that are waiting for them
+     */
+    private void publishCommands() {
+        unpublished = 0;
+        int count = getCommandCount();
+        parsedCommands = count;
+        for (WeakReference<PDFRenderer> ref : consumers) {
+            PDFRenderer renderer = ref.get();
+            // a stopped renderer is kept, since it may be started again
+            if (renderer == null || renderer.isFinished()) {
+                consumers.remove(ref);
+            } else {
+                renderer.commandsAdded(count);
+            }
+        }
+    }
+
+    /**
+     * Start handing the commands of this page to a renderer as they are
+     * parsed.  Nothing is handed over once the page is finished.
+     *
+     * @param renderer the renderer
+     * @return the number of commands the page already has, which the
+     * renderer may draw straight away
+     */
+    int addConsumer(PDFRenderer renderer) {
+        if (!finished) {
+            consumers.add(new WeakReference<PDFRenderer>(renderer));
+        }
+        return getCommandCount();
+    }
+
+    /**
+     * Stop handing commands to a renderer
+     */
+    void removeConsumer(PDFRenderer renderer) {
+        for (WeakReference<PDFRenderer> ref : consumers) {
+            PDFRenderer r = ref.get();
+            if (r == null || r == renderer) {
+                consumers.remove(ref);
             }
         }
     }
 }
 
+/**
+ * replay all the commands of a display list, for a display list added to
+ * a page that keeps PDFCmd objects
+ */
+class PDFDisplayListCmd extends PDFCmd {
+
+    PDFDisplayList list;
+
+    public PDFDisplayListCmd(PDFDisplayList list) {
+        this.list = list;
+    }
+
+    public RectF execute(PDFRenderer state) {
+        return list.replay(state);
+    }
+}
+
 /**
  * draw an image
  */
@@ -822,9 +1028,17 @@ class PDFChangeStrokeCmd extends PDFCmd {
     }
 
     public void setDash(float[] ary, float phase) {
+        this.ary = checkDash(ary);
+        this.phase = phase;
+    }
+
+    /**
+     * make sure no pairs of a dash array start with 0, since having no
+     * opaque region doesn't make any sense.
+     * @return the array, fixed in place
+     */
+    static float[] checkDash(float[] ary) {
         if (ary != null) {
-            // make sure no pairs start with 0, since having no opaque
-            // region doesn't make any sense.
             for (int i = 0; i < ary.length - 1; i += 2) {
                 if (ary[i] == 0) {
                     /* Give a very small value, since 0 messes java up */
@@ -833,8 +1047,7 @@ class PDFChangeStrokeCmd extends PDFCmd {
                 }
             }
         }
-        this.ary = ary;
-        this.phase = phase;
+        return ary;
     }
 
     public RectF execute(PDFRenderer state) {
@@ -0,0 +1,417 @@
+/*
+ * Copyright 2004 Sun Microsystems, Inc., 4150 Network Circle,
+ * Santa Clara, California 95054, U.S.A. All rights reserved.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package com.sun.pdfview;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.BitSet;
+
+/**
+ * The page tree of a PDF file, flattened into one entry per page.
+ * <p>
+ * Each entry holds the object number of the page, and the attributes a
+ * page may inherit from the page tree nodes above it, already resolved:
+ * the MediaBox, the CropBox, the rotation, and which object's /Resources
+ * apply to the page (the page itself or the nearest node above it that has
+ * them).  With the index, a page and its attributes are found in constant
+ * time, without walking the tree from its root, and the page number of a
+ * page object is found without walking the tree back up from the page.
+ * <p>
+ * Like the cross reference table, the entries are kept in parallel
+ * primitive arrays, so the whole index can be written to and read from a
+ * file in a few bulk copies.
+ */
+class PDFPageIndex {
+
+    /** the flag of a page with a MediaBox */
+    public static final byte HAS_MEDIABOX = 1;
+    /** the flag of a page with a CropBox */
+    public static final byte HAS_CROPBOX = 2;
+
+    /** the deepest page tree we'll follow */
+    private static final int MAX_DEPTH = 256;
+    /**
+     * the most pages space is allocated for before the tree is walked,
+     * whatever the file's /Count says
+     */
+    private static final int MAX_INITIAL_CAPACITY = 1024;
+
+    /** the number of pages */
+    private int count;
+    /** the object number and generation of each page */
+    private int[] objNums;
+    private int[] objGens;
+    /**
+     * the object number and generation of the object whose /Resources
+     * apply to each page, or -1 if no object has any
+     */
+    private int[] resNums;
+    private int[] resGens;
+    /** the rotation of each page */
+    private int[] rotations;
+    /** the HAS_MEDIABOX and HAS_CROPBOX flags of each page */
+    private byte[] flags;
+    /** the four numbers of the MediaBox and CropBox of each page */
+    private float[] mediaBoxes;
+    private float[] cropBoxes;
+    /**
+     * the object number of each page in the high half and its index in
+     * the low half, sorted, built the first time a page number is looked
+     * up
+     */
+    private volatile long[] byObjNum;
+
+    /**
+     * Create a new, empty page index
+     *
+     * @param capacity the number of pages to allocate space for
+     */
+    public PDFPageIndex(int capacity) {
+        if (capacity < 1) {
+            capacity = 1;
+        }
+
+        objNums = new int[capacity];
+        objGens = new int[capacity];
+        resNums = new int[capacity];
+        resGens = new int[capacity];
+        rotations = new int[capacity];
+        flags = new byte[capacity];
+        mediaBoxes = new float[capacity * 4];
+        cropBoxes = new float[capacity * 4];
+    }
+
+    /**
+     * Create a page index from its arrays, as read back from a file.  The
+     * arrays are used as they are, not copied.
+     */
+    PDFPageIndex(int count, int[] objNums, int[] objGens, int[] resNums,
+            int[] resGens, int[] rotations, byte[] flags,
+            float[] mediaBoxes, float[] cropBoxes) {
+        this.count = count;
+        this.objNums = objNums;
+        this.objGens = objGens;
+        this.resNums = resNums;
+        this.resGens = resGens;
+        this.rotations = rotations;
+        this.flags = flags;
+        this.mediaBoxes = mediaBoxes;
+        this.cropBoxes = cropBoxes;
+    }
+
+    /**
+     * Build the index of a page tree, by walking all of it
+     *
+     * @param pages the root of the page tree, the /Pages of the catalog
+     */
+    public static PDFPageIndex build(PDFObject pages) throws IOException {
+        int capacity = 16;
+        PDFObject countObj = pages.getDictRef("Count");
+        if (countObj != null && countObj.getIntValue() > 0) {
+            // /Count is only a hint: add() grows the arrays if it's low
+            capacity = Math.min(countObj.getIntValue(), MAX_INITIAL_CAPACITY);
+        }
+
+        PDFPageIndex index = new PDFPageIndex(capacity);
+        index.addNode(pages, -1, -1, 0, null, null, 0, new BitSet());
+        return index;
+    }
+
+    /**
+     * add the pages under a node of the page tree, given the attributes
+     * the node inherits from above
+     * @param visited the object numbers of the nodes already walked.  A
+     * node listed again, because the tree has a loop, is skipped.
+     */
+    private void addNode(PDFObject node, int resNum, int resGen,
+            int rotation, float[] mediaBox, float[] cropBox, int depth,
+            BitSet visited) throws IOException {
+        PDFXref ref = node.getXref();
+        if (ref == null) {
+            throw new PDFParseException("Page tree nodes must be indirect objects");
+        }
+        if (depth > MAX_DEPTH) {
+            throw new PDFParseException("Page tree is too deep");
+        }
+        if (visited.get(ref.getID())) {
+            return;
+        }
+        visited.set(ref.getID());
+
+        // the node's own attributes replace the inherited ones
+        if (node.getDictRef("Resources") != null) {
+            resNum = ref.getID();
+            resGen = ref.getGeneration();
+        }
+        PDFObject rotateObj = node.getDictRef("Rotate");
+        if (rotateObj != null) {
+            rotation = rotateObj.getIntValue();
+        }
+        PDFObject mediaObj = node.getDictRef("MediaBox");
+        if (mediaObj != null) {
+            mediaBox = parseBox(mediaObj);
+        }
+        PDFObject cropObj = node.getDictRef("CropBox");
+        if (cropObj != null) {
+            cropBox = parseBox(cropObj);
+        }
+
+        // BUG: some PDFs (T1Format.pdf) don't have the Type tag, so a
+        // node without kids is taken to be a page, unless it says it's a
+        // Pages node, which has no pages then
+        PDFObject typeObj = node.getDictRef("Type");
+        String type = (typeObj == null) ? null : typeObj.getStringValue();
+        PDFObject kidsObj = node.getDictRef("Kids");
+        if ("Page".equals(type) || (kidsObj == null && type == null)) {
+            add(ref.getID(), ref.getGeneration(), resNum, resGen, rotation,
+                    mediaBox, cropBox);
+            return;
+        }
+        if (kidsObj == null) {
+            return;
+        }
+
+        PDFObject[] kids = kidsObj.getArray();
+        for (int i = 0; i < kids.length; i++) {
+            addNode(kids[i], resNum, resGen, rotation, mediaBox, cropBox,
+                    depth + 1, visited);
+        }
+    }
+
+    /**
+     * get the four numbers of a rectangle
+     */
+    private static float[] parseBox(PDFObject obj) throws IOException {
+        PDFObject[] bounds = obj.getArray();
+        if (bounds.length != 4) {
+            throw new PDFParseException("Rectangle definition didn't have 4 elements");
+        }
+        float[] box = new float[4];
+        for (int i = 0; i < 4; i++) {
+            box[i] = bounds[i].getFloatValue();
+        }
+        return box;
+    }
+
+    /**
+     * Add a page at the end of the index
+     *
+     * @param objNum the object number of the page
+     * @param objGen the generation of the page
+     * @param resNum the object number of the object whose /Resources
+     * apply to the page, or -1
+     * @param resGen the generation of that object
+     * @param rotation the rotation of the page
+     * @param mediaBox the four numbers of the MediaBox, or null
+     * @param cropBox the four numbers of the CropBox, or null
+     */
+    public void add(int objNum, int objGen, int resNum, int resGen,
+            int rotation, float[] mediaBox, float[] cropBox) {
+        ensureCapacity(count + 1);
+
+        objNums[count] = objNum;
+        objGens[count] = objGen;
+        resNums[count] = resNum;
+        resGens[count] = resGen;
+        rotations[count] = rotation;
+        byte flag = 0;
+        if (mediaBox != null) {
+            System.arraycopy(mediaBox, 0, mediaBoxes, count * 4, 4);
+            flag |= HAS_MEDIABOX;
+        }
+        if (cropBox != null) {
+            System.arraycopy(cropBox, 0, cropBoxes, count * 4, 4);
+            flag |= HAS_CROPBOX;
+        }
+        flags[count] = flag;
+        count++;
+    }
+
+    private void ensureCapacity(int capacity) {
+        int size = objNums.length;
+        if (capacity <= size) {
+            return;
+        }
+
+        int newSize = size + (size >> 1);
+        if (newSize < capacity) {
+            newSize = capacity;
+        }
+
+        objNums = grow(objNums, newSize);
+        objGens = grow(objGens, newSize);
+        resNums = grow(resNums, newSize);
+        resGens = grow(resGens, newSize);
+        rotations = grow(rotations, newSize);
+        byte[] nflags = new byte[newSize];
+        System.arraycopy(flags, 0, nflags, 0, count);
+        flags = nflags;
+        float[] nmedia = new float[newSize * 4];
+        System.arraycopy(mediaBoxes, 0, nmedia, 0, count * 4);
+        mediaBoxes = nmedia;
+        float[] ncrop = new float[newSize * 4];
+        System.arraycopy(cropBoxes, 0, ncrop, 0, count * 4);
+        cropBoxes = ncrop;
+    }
+
+    private int[] grow(int[] array, int newSize) {
+        int[] narray = new int[newSize];
+        System.arraycopy(array, 0, narray, 0, count);
+        return narray;
+    }
+
+    /**
+     * Get the number of pages in the index
+     */
+    public int size() {
+        return count;
+    }
+
+    /**
+     * Find a page by its object number
+     *
+     * @param objNum the object number of the page
+     * @return the index of the page, starting at 0, or -1 if no page has
+     * that object number
+     */
+    public int indexOf(int objNum) {
+        long[] sorted = byObjNum;
+        if (sorted == null) {
+            sorted = new long[count];
+            for (int i = 0; i < count; i++) {
+                sorted[i] = ((long) objNums[i] << 32) | i;
+            }
+            Arrays.sort(sorted);
+            byObjNum = sorted;
+        }
+
+        int lo = 0;
+        int hi = sorted.length - 1;
+        while (lo <= hi) {
+            int mid = (lo + hi) >>> 1;
+            int num = (int) (sorted[mid] >> 32);
+            if (num < objNum) {
+                lo = mid + 1;
+            } else if (num > objNum) {
+                hi = mid - 1;
+            } else {
+                return (int) sorted[mid];
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Get the object number of a page
+     *
+     * @param idx the index of the page, starting at 0
+     */
+    public int getObjNum(int idx) {
+        return objNums[idx];
+    }
+
+    /**
+     * Get the generation of a page
+     */
+    public int getObjGen(int idx) {
+        return objGens[idx];
+    }
+
+    /**
+     * Get the object number of the object whose /Resources apply to a
+     * page: the page itself, or one of the nodes above it.
+     * @return the object number, or -1 if the page has no resources
+     */
+    public int getResourcesNum(int idx) {
+        return resNums[idx];
+    }
+
+    /**
+     * Get the generation of the object whose /Resources apply to a page
+     */
+    public int getResourcesGen(int idx) {
+        return resGens[idx];
+    }
+
+    /**
+     * Get the rotation of a page
+     */
+    public int getRotation(int idx) {
+        return rotations[idx];
+    }
+
+    /**
+     * Get the four numbers of the MediaBox of a page
+     * @return the numbers, or null if the page has no MediaBox
+     */
+    public float[] getMediaBox(int idx) {
+        return getBox(mediaBoxes, idx, HAS_MEDIABOX);
+    }
+
+    /**
+     * Get the four numbers of the CropBox of a page
+     * @return the numbers, or null if the page has no CropBox
+     */
+    public float[] getCropBox(int idx) {
+        return getBox(cropBoxes, idx, HAS_CROPBOX);
+    }
+
+    private float[] getBox(float[] boxes, int idx, byte flag) {
+        if ((flags[idx] & flag) == 0) {
+            return null;
+        }
+        float[] box = new float[4];
+        System.arraycopy(boxes, idx * 4, box, 0, 4);
+        return box;
+    }
+
+    // the raw arrays, for writing the index to a file
+
+    int[] getObjNums() {
+        return objNums;
+    }
+
+    int[] getObjGens() {
+        return objGens;
+    }
+
+    int[] getResourcesNums() {
+        return resNums;
+    }
+
+    int[] getResourcesGens() {
+        return resGens;
+    }
+
+    int[] getRotations() {
+        return rotations;
+    }
+
+    byte[] getFlags() {
+        return flags;
+    }
+
+    float[] getMediaBoxes() {
+        return mediaBoxes;
+    }
+
+    float[] getCropBoxes() {
+        return cropBoxes;
+    }
+}
@@ -0,0 +1,301 @@
+/*
+ * Copyright 2004 Sun Microsystems, Inc., 4150 Network Circle,
+ * Santa Clara, California 95054, U.S.A. All rights reserved.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package com.sun.pdfview;
+
+import java.io.IOException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Parses a range of pages of a PDFFile ahead of time, several pages at
+ * once, for instance to make thumbnails of them or to index them.
+ * <p>
+ * The pages are parsed on a pool of at most <code>parallelism</code>
+ * threads, in page order, through PDFFile.getPage(), so they end up in the
+ * file's page cache and on disk if the file has a display list cache.  A
+ * page someone else is parsing already is waited for, not parsed again.
+ * <p>
+ * The memory budget bounds how much the pages being parsed, and not yet
+ * handed to the listener, may take.  What a parsed page takes isn't known
+ * until it is parsed, so it is guessed from the length of its content
+ * streams in the file.  A page isn't started until its guess fits in what
+ * is left of the budget; a page bigger than the whole budget is parsed on
+ * its own.  The guess of a page is given back once the listener returns,
+ * so a listener that draws each page keeps within the budget too.
+ */
+public class PDFPageRangeParser {
+
+    /**
+     * Told about each page as it is parsed
+     */
+    public interface PageListener {
+
+        /**
+         * A page has been parsed.  Called on one of the parsing threads,
+         * perhaps on several at once, and not necessarily in page order.
+         *
+         * @param pagenum the number of the page, starting at 1
+         * @param page the parsed page, or null if it couldn't be parsed
+         * @param millis how long the page took to parse, in milliseconds
+         */
+        void pageParsed(int pagenum, PDFPage page, long millis);
+    }
+
+    /** how long an idle parsing thread is kept, in seconds */
+    private static final long KEEP_ALIVE = 5;
+    /** the guess of the memory a page takes, besides its content streams */
+    private static final long PAGE_COST = 16 * 1024;
+    /**
+     * how many times the length of a page's content streams its parsed
+     * commands are guessed to take, since streams are mostly compressed
+     */
+    private static final int CONTENT_COST = 4;
+
+    /** the file to parse pages of */
+    private final PDFFile file;
+    /** the first and last pages to parse, starting at 1 */
+    private final int first;
+    private final int last;
+
+    /** how many pages to parse at once */
+    private int parallelism = Math.max(1, Runtime.getRuntime().availableProcessors());
+    /** how much memory the pages being parsed may take, in bytes */
+    private long memoryBudget = Runtime.getRuntime().maxMemory() / 4;
+    /** the listener to tell about each page, or null */
+    private PageListener listener;
+
+    /** the threads pages are parsed on, while they are being parsed */
+    private ThreadPoolExecutor executor;
+    /** how much of the memory budget is taken */
+    private long memoryUsed;
+    /** how many pages are left to parse, or to skip once stopped */
+    private int remaining;
+    /** whether parsing has been stopped */
+    private volatile boolean stopped;
+    /** the time each page took to parse, or -1 if it hasn't been */
+    private final long[] parseTimes;
+
+    /**
+     * Create a parser for a range of pages
+     *
+     * @param file the file to parse pages of
+     * @param first the first page to parse, starting at 1
+     * @param last the last page to parse.  Pages past the end of the file
+     * are left out.
+     */
+    public PDFPageRangeParser(PDFFile file, int first, int last) {
+        this.file = file;
+        this.first = Math.max(first, 1);
+        this.last = Math.min(last, file.getNumPages());
+
+        parseTimes = new long[Math.max(this.last - this.first + 1, 0)];
+        for (int i = 0; i < parseTimes.length; i++) {
+            parseTimes[i] = -1;
+        }
+    }
+
+    /**
+     * Set how many pages are parsed at once.  Defaults to the number of
+     * processors.  Must be called before start().
+     */
+    public void setParallelism(int parallelism) {
+        if (parallelism < 1) {
+            throw new IllegalArgumentException("Parallelism must be at least 1: " + parallelism);
+        }
+        this.parallelism = parallelism;
+    }
+
+    /**
+     * Set how much memory the pages being parsed may take, in bytes.
+     * Defaults to a quarter of the most the VM may use.  Must be called
+     * before start().
+     */
+    public void setMemoryBudget(long memoryBudget) {
+        if (memoryBudget < 1) {
+            throw new IllegalArgumentException("Memory budget must be positive: " + memoryBudget);
+        }
+        this.memoryBudget = memoryBudget;
+    }
+
+    /**
+     * Set the listener to tell about each page as it is parsed.  Must be
+     * called before start().
+     */
+    public void setPageListener(PageListener listener) {
+        this.listener = listener;
+    }
+
+    /**
+     * Start parsing the pages in the background.  Returns at once.
+     */
+    public synchronized void start() {
+        if (executor != null) {
+            return;
+        }
+
+        remaining = parseTimes.length;
+        executor = new ThreadPoolExecutor(parallelism, parallelism,
+                KEEP_ALIVE, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(),
+                new ThreadFactory() {
+                    public Thread newThread(Runnable r) {
+                        Thread t = new Thread(r, "PDFPageRangeParser");
+                        t.setDaemon(true);
+                        t.setPriority(Thread.NORM_PRIORITY - 1);
+                        return t;
+                    }
+                });
+        for (int i = first; i <= last; i++) {
+            final int pagenum = i;
+            executor.execute(new Runnable() {
+                public void run() {
+                    parsePage(pagenum);
+                }
+            });
+        }
+        // the threads end once the last page is done
+        executor.shutdown();
+    }
+
+    /**
+     * Stop parsing.  Pages not started yet are skipped; pages being parsed
+     * are finished, since someone else may be waiting for them too.
+     */
+    public void stop() {
+        stopped = true;
+        synchronized (this) {
+            notifyAll();
+        }
+    }
+
+    /**
+     * Wait until every page has been parsed, or skipped after stop().
+     */
+    public synchronized void waitForFinish() throws InterruptedException {
+        while (executor == null || remaining > 0) {
+            wait();
+        }
+    }
+
+    /**
+     * Get whether every page has been parsed, or skipped after stop()
+     */
+    public synchronized boolean isFinished() {
+        return executor != null && remaining == 0;
+    }
+
+    /**
+     * Get how long a page took to parse
+     *
+     * @param pagenum the number of the page, starting at 1
+     * @return the time in milliseconds, or -1 if the page hasn't been
+     * parsed, or isn't in the range
+     */
+    public synchronized long getParseTime(int pagenum) {
+        if (pagenum < first || pagenum > last) {
+            return -1;
+        }
+        return parseTimes[pagenum - first];
+    }
+
+    /**
+     * Get how long all the pages parsed so far took to parse, added up
+     * over all the threads, in milliseconds
+     */
+    public synchronized long getTotalParseTime() {
+        long total = 0;
+        for (int i = 0; i < parseTimes.length; i++) {
+            if (parseTimes[i] > 0) {
+                total += parseTimes[i];
+            }
+        }
+        return total;
+    }
+
+    /**
+     * parse one page, within the memory budget
+     */
+    private void parsePage(int pagenum) {
+        long cost = 0;
+        try {
+            long need = Math.min(getCost(pagenum), memoryBudget);
+            if (!reserve(need)) {
+                return;
+            }
+            cost = need;
+
+            long start = System.currentTimeMillis();
+            PDFPage page = file.getPage(pagenum, true);
+            // the page may be being parsed on another thread, which
+            // getPage() doesn't wait for
+            PDFParser parser = file.cache.getPageParser(Integer.valueOf(pagenum));
+            if (parser != null) {
+                parser.waitForFinish();
+            }
+            if (page != null && !page.isFinished()) {
+                page = null;
+            }
+            long millis = System.currentTimeMillis() - start;
+
+            synchronized (this) {
+                parseTimes[pagenum - first] = millis;
+            }
+            if (listener != null) {
+                listener.pageParsed(pagenum, page, millis);
+            }
+        } catch (InterruptedException e) {
+            // give up on the page
+        } finally {
+            synchronized (this) {
+                memoryUsed -= cost;
+                remaining--;
+                notifyAll();
+            }
+        }
+    }
+
+    /**
+     * guess how much memory a page takes while it is parsed
+     */
+    private long getCost(int pagenum) {
+        try {
+            return PAGE_COST + CONTENT_COST * file.getContentLength(pagenum);
+        } catch (IOException e) {
+            return PAGE_COST;
+        }
+    }
+
+    /**
+     * wait until some memory fits in the budget, and take it
+     * @return false if parsing was stopped meanwhile, and nothing was
+     * taken
+     */
+    private synchronized boolean reserve(long cost)
+            throws InterruptedException {
+        while (!stopped && memoryUsed > 0 && memoryUsed + cost > memoryBudget) {
+            wait();
+        }
+        if (stopped) {
+            return false;
+        }
+        memoryUsed += cost;
+        return true;
+    }
+}
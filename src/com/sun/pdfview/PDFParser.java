@@ -35,7 +35,6 @@ import net.sf.andpdf.utils.Utils;
 
 import android.graphics.Matrix;
 import android.graphics.Path;
-import android.graphics.RectF;
 import android.graphics.Path.FillType;
 import android.util.Log;
 
@@ -64,9 +63,22 @@ public class PDFParser extends BaseWatchable {
     static final int PDF_CMDS_RANGE3_MIN = 0;
     static final int PDF_CMDS_RANGE3_MAX = 0;
     private static final String TAG = "ANDPDF.pdfparser";
+    /** the number of names remembered by readName(); a power of two */
+    private static final int NAME_CACHE_SIZE = 256;
     private int cmdCnt;
     // ---- parsing variables
-    private Stack<Object> stack;          // stack of Object
+    /**
+     * the operand stack.  The numbers on it are kept unboxed in
+     * <code>numbers</code>; everything else (names, strings, arrays and
+     * dictionaries) in the same slot of <code>operands</code>, which is
+     * null for a number.
+     */
+    private double[] numbers;
+    private Object[] operands;
+    /** the number of operands on the stack */
+    private int operandCount;
+    /** the array popFloatTemp() fills, reused by every call */
+    private final float[] floatTemp = new float[6];
     private Stack<ParserState> parserStates;    // stack of RenderState
     // the current render state
     private ParserState state;
@@ -74,7 +86,13 @@ public class PDFParser extends BaseWatchable {
     private int clip;
     private int loc;
     private boolean resend = false;
-    private Tok tok;
+    /** the token read last.  There is only one, reused for every token */
+    private final Tok tok = new Tok();
+    /**
+     * the names and operators read so far, by a hash of their bytes, so
+     * that reading one that has been seen before doesn't make a new String
+     */
+    private final String[] names = new String[NAME_CACHE_SIZE];
     private boolean catchexceptions;   // Indicates state of BX...EX
     /** a weak reference to the page we render into.  For the page
      * to remain available, some other code must retain a strong reference to it.
@@ -86,8 +104,17 @@ public class PDFParser extends BaseWatchable {
      */
     private PDFPage cmds;
     // ---- result variables
+    /** the content streams, parsed one after the other */
+    byte[][] streams;
+    /** the index of the content stream being parsed */
+    private int streamIndex;
+    /** the content stream being parsed */
     byte[] stream;
     HashMap<String, PDFObject> resources;
+    /** where to keep the display list of the page once parsed, or null */
+    private PDFDisplayListCache listCache;
+    /** the number of the page, for listCache */
+    private int pagenum;
 //    public static int debuglevel = 4000;
 // TODO [FHe]: changed for debugging
     public static int debuglevel = -1;
@@ -122,6 +149,19 @@ public class PDFParser extends BaseWatchable {
      */
     public PDFParser(PDFPage cmds, byte[] stream,
             HashMap<String, PDFObject> resources) {
+        this(cmds, new byte[][] { stream }, resources);
+    }
+
+    /**
+     * Don't call this constructor directly.  Instead, use
+     * PDFFile.getPage(int pagenum) to get a PDFPage.
+     * <p>
+     * Parses a page whose contents are an array of streams.  The streams
+     * are parsed one after the other, as if they had been joined with
+     * whitespace between them, without ever being copied into one array.
+     */
+    public PDFParser(PDFPage cmds, byte[][] streams,
+            HashMap<String, PDFObject> resources) {
         super();
 
         this.pageRef = new WeakReference<PDFPage>(cmds);
@@ -130,10 +170,23 @@ public class PDFParser extends BaseWatchable {
             this.resources = new HashMap<String, PDFObject>();
         }
 
-        this.stream = stream;
+        if (streams.length == 0) {
+            streams = new byte[][] { new byte[0] };
+        }
+        this.streams = streams;
+        this.stream = streams[0];
         this.cmdCnt = 0;
     }
 
+    /**
+     * keep the display list of the page in a cache once the whole page
+     * has been parsed
+     */
+    void setDisplayListCache(PDFDisplayListCache listCache, int pagenum) {
+        this.listCache = listCache;
+        this.pagenum = pagenum;
+    }
+
     /////////////////////////////////////////////////////////////////
     //  B E G I N   R E A D E R   S E C T I O N
     /////////////////////////////////////////////////////////////////
@@ -172,6 +225,11 @@ public class PDFParser extends BaseWatchable {
         public double value;
         /** the type of the token */
         public int type;
+        /**
+         * the operator of a CMD token, as its characters packed into an
+         * int, lowest byte first, or -1 if it has more than three
+         */
+        public int op;
 
         /** a printable representation of the token */
         @Override
@@ -209,125 +267,188 @@ public class PDFParser extends BaseWatchable {
     }
 
     /**
-     * get the next token.
-     * TODO: this creates a new token each time.  Is this strictly
-     * necessary?
+     * get the next token.  The same Tok is returned each time, so it is
+     * only good until the next call.
      */
     private Tok nextToken() {
-        final int slen = stream.length;
-
         if (resend) {
             resend = false;
             return tok;
         } else {
-            tok = new Tok();
-            // skip whitespace
-            while (loc < slen && PDFFile.isWhiteSpace(stream[loc])) {
-                loc++;
-            }
-            if (loc >= slen) {
-                tok.type = Tok.EOF;
-                return tok;
-            } else {
-                int c = stream[loc++];
-                // examine the character:
-                while (c == '%') {
-                    // skip comments
-                    final StringBuffer comment = new StringBuffer();
-                    while (loc < slen && c != '\n') {
-                        comment.append((char) c);
-                        c = stream[loc++];
-                    }
-                    if (loc < slen) {
-                        c = stream[loc++];      // eat the newline
-                        if (c == '\r') {
-                            c = stream[loc++];  // eat a following return
-                        }
-                    }
-                    if (!RELEASE) {
-                        debug("Read comment: " + comment.toString(), -1);
+            tok.name = null;
+            tok.value = 0;
+            tok.op = -1;
+            int c;
+            while (true) {
+                // skip whitespace.  The end of one content stream counts
+                // as whitespace before the next.
+                while (loc < stream.length && PDFFile.isWhiteSpace(stream[loc])) {
+                    loc++;
+                }
+                if (loc >= stream.length) {
+                    if (nextStream()) {
+                        continue;
                     }
+                    tok.type = Tok.EOF;
+                    return tok;
                 }
 
-                switch (c) {
-                    case '[':
-                        tok.type = Tok.ARYB;
-                        break;
-                    case ']':
-                        tok.type = Tok.ARYE;
-                        break;
-                    case '(':
-                        // read a string
-                        tok.type = Tok.STR;
-                        tok.name = readString();
-                        break;
-                    case '{':
-                        tok.type = Tok.BRCB;
-                        break;
-                    case '}':
-                        tok.type = Tok.BRCE;
-                        break;
-                    case '<':
-                        if (stream[loc++] == '<') {
-                            tok.type = Tok.BRKB;
-                        } else {
-                            loc--;
-                            tok.type = Tok.STR;
-                            tok.name = readByteArray();
-                        }
-                        break;
-                    case '/':
-                        tok.type = Tok.NAME;
-                        tok.name = readName();
-                        break;
-                    case '.':
-                    case '-':
-                    case '0':
-                    case '1':
-                    case '2':
-                    case '3':
-                    case '4':
-                    case '5':
-                    case '6':
-                    case '7':
-                    case '8':
-                    case '9':
-                        loc--;
-                        tok.type = Tok.NUM;
-                        tok.value = readNum();
-                        break;
-                    default:
-                        if (c == '>' && stream[loc++] == '>') {
-                            tok.type = Tok.BRKE;
-                        } else if ((c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || c == '\'' || c == '"') {
-                            loc--;
-                            tok.type = Tok.CMD;
-                            tok.name = readName();
-                        } else {
-                            System.out.println("Encountered character: " + c + " (" + (char) c + ")");
-                            tok.type = Tok.UNK;
-                        }
+                c = stream[loc++];
+                if (c != '%') {
+                    break;
+                }
+
+                // skip a comment, up to the end of the line
+                final int start = loc;
+                while (loc < stream.length && stream[loc] != '\n' && stream[loc] != '\r') {
+                    loc++;
                 }
                 if (!RELEASE) {
-                    debug("Read token: " + tok, -1);
+                    debug("Read comment: " + new String(stream, start, loc - start), -1);
                 }
-                return tok;
             }
+
+            // examine the character:
+            switch (c) {
+                case '[':
+                    tok.type = Tok.ARYB;
+                    break;
+                case ']':
+                    tok.type = Tok.ARYE;
+                    break;
+                case '(':
+                    // read a string
+                    tok.type = Tok.STR;
+                    tok.name = readString();
+                    break;
+                case '{':
+                    tok.type = Tok.BRCB;
+                    break;
+                case '}':
+                    tok.type = Tok.BRCE;
+                    break;
+                case '<':
+                    if (stream[loc++] == '<') {
+                        tok.type = Tok.BRKB;
+                    } else {
+                        loc--;
+                        tok.type = Tok.STR;
+                        tok.name = readByteArray();
+                    }
+                    break;
+                case '/':
+                    tok.type = Tok.NAME;
+                    tok.name = readName();
+                    break;
+                case '.':
+                case '-':
+                case '0':
+                case '1':
+                case '2':
+                case '3':
+                case '4':
+                case '5':
+                case '6':
+                case '7':
+                case '8':
+                case '9':
+                    loc--;
+                    tok.type = Tok.NUM;
+                    tok.value = readNum();
+                    break;
+                default:
+                    if (c == '>' && stream[loc++] == '>') {
+                        tok.type = Tok.BRKE;
+                    } else if ((c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || c == '\'' || c == '"') {
+                        loc--;
+                        tok.type = Tok.CMD;
+                        tok.op = readOp();
+                        tok.name = readName();
+                    } else {
+                        System.out.println("Encountered character: " + c + " (" + (char) c + ")");
+                        tok.type = Tok.UNK;
+                    }
+            }
+            if (!RELEASE) {
+                debug("Read token: " + tok, -1);
+            }
+            return tok;
+        }
+    }
+
+    /**
+     * move on to the next content stream, if there is one
+     * @return false if the last stream has been parsed
+     */
+    private boolean nextStream() {
+        if (streamIndex + 1 >= streams.length) {
+            return false;
         }
+        stream = streams[++streamIndex];
+        loc = 0;
+        return true;
     }
 
     /**
      * read a name (sequence of non-PDF-delimiting characters) from the
-     * stream.
+     * stream.  A name made of ASCII characters that has been read before
+     * is returned as the same String, without making a new one.
      */
     private String readName() {
         final byte[] stream_ = this.stream;
 
         int start = loc;
+        int hash = 0;
+        boolean ascii = true;
         while (loc < stream_.length && PDFFile.isRegularCharacter(stream_[loc])) {
-            loc++;
+            int c = stream_[loc++];
+            hash = 31 * hash + c;
+            ascii &= c >= 0;
+        }
+        int len = loc - start;
+        if (!ascii) {
+            return new String(stream_, start, len);
+        }
+
+        int slot = (hash ^ (hash >>> 8)) & (NAME_CACHE_SIZE - 1);
+        String name = names[slot];
+        if (name != null && name.length() == len) {
+            int i = 0;
+            while (i < len && name.charAt(i) == stream_[start + i]) {
+                i++;
+            }
+            if (i == len) {
+                return name;
+            }
+        }
+        name = new String(stream_, start, len);
+        names[slot] = name;
+        return name;
+    }
+
+    /**
+     * get the operator starting at the current position, as its up to
+     * three characters packed into an int, without moving on.  Operators
+     * are compared as these ints, so they never need to be made into
+     * Strings.
+     * @return the packed operator, or -1 if it is longer than three
+     * characters
+     */
+    private int readOp() {
+        final byte[] stream_ = this.stream;
+
+        int op = 0;
+        for (int i = 0; i < 4; i++) {
+            int p = loc + i;
+            if (p >= stream_.length || !PDFFile.isRegularCharacter(stream_[p])) {
+                return op;
+            }
+            if (i == 3) {
+                break;
+            }
+            op |= (stream_[p] & 0xff) << (i << 3);
         }
-        return new String(stream_, start, loc - start);
+        return -1;
     }
 
     /**
@@ -483,10 +604,14 @@ public class PDFParser extends BaseWatchable {
      */
     @Override
     public void setup() {
-        stack = new Stack<Object>();
+        numbers = new double[16];
+        operands = new Object[16];
+        operandCount = 0;
         parserStates = new Stack<ParserState>();
         state = new ParserState();
-        path = new Path();
+        path = new PDFPath();
+        streamIndex = 0;
+        stream = streams[0];
         loc = 0;
         clip = 0;
 
@@ -525,7 +650,14 @@ public class PDFParser extends BaseWatchable {
             return Watchable.STOPPED;
         }
 
-        Object obj = parseObject();
+        final Tok t = nextToken();
+        if (t.type == Tok.NUM) {
+            // the common case: an operand that needs no object at all
+            pushNumber(t.value);
+            cmds = null;
+            return Watchable.RUNNING;
+        }
+        Object obj = parseObject(t);
 
         // if there's nothing left to parse, we're done
         if (obj == null) {
@@ -536,16 +668,17 @@ public class PDFParser extends BaseWatchable {
             // it's a command.  figure out what to do.
             // (if not, the token will be "pushed" onto the stack)
             String cmd = ((Tok) obj).name;
+            int op = ((Tok) obj).op;
             if (!RELEASE) {
                 cmdCnt += 1;
                 if (!(((cmdCnt >= PDF_CMDS_RANGE1_MIN) && (cmdCnt <= PDF_CMDS_RANGE1_MAX)) || ((cmdCnt >= PDF_CMDS_RANGE2_MIN) && (cmdCnt <= PDF_CMDS_RANGE2_MAX)) || ((cmdCnt >= PDF_CMDS_RANGE3_MIN) && (cmdCnt <= PDF_CMDS_RANGE3_MAX)))) {
-                    stack.setSize(0);
+                    clearOperands();
                     return Watchable.RUNNING;
                 }
-                debug("Command [" + cmdCnt + "]: " + cmd + " (stack size is " + stack.size() + ":" + dump(stack) + ")", 0);
+                debug("Command [" + cmdCnt + "]: " + cmd + " (stack size is " + operandCount + ":" + dumpOperands() + ")", 0);
             }
             try {
-                switch ((cmd.length() > 0 ? cmd.charAt(0) : 0) + (cmd.length() > 1 ? cmd.charAt(1) << 8 : 0) + (cmd.length() > 2 ? cmd.charAt(2) << 16 : 0)) {
+                switch (op) {
                     case 'q':
                         // push the parser state
                         parserStates.push((ParserState) state.clone());
@@ -558,7 +691,7 @@ public class PDFParser extends BaseWatchable {
                         break;
                     case 'c' + ('m' << 8): {
                         // set transform to array of values
-                        float[] elts = popFloat(6);
+                        float[] elts = popFloatTemp(6);
                         Matrix xform = new Matrix();
                         Utils.setMatValues(xform, elts);
                         cmds.addXform(xform);
@@ -614,13 +747,13 @@ public class PDFParser extends BaseWatchable {
                     }
                     case 'c': {
                         // path curve to
-                        float a[] = popFloat(6);
+                        float a[] = popFloatTemp(6);
                         path.cubicTo(a[0], a[1], a[2], a[3], a[4], a[5]);
                         break;
                     }
                     case 'v': {
                         // path curve; first control point= start
-                        float a[] = popFloat(4);
+                        float a[] = popFloatTemp(4);
                         // TODO: remember last point
                         path.quadTo(a[0], a[1], a[2], a[3]);
 //                PointF cp = path.getCurrentPoint();
@@ -630,7 +763,7 @@ public class PDFParser extends BaseWatchable {
                     }
                     case 'y': {
                         // path curve; last control point= end
-                        float a[] = popFloat(4);
+                        float a[] = popFloatTemp(4);
                         path.cubicTo(a[0], a[1], a[2], a[3], a[2], a[3]);
                         break;
                     }
@@ -640,7 +773,7 @@ public class PDFParser extends BaseWatchable {
                         break;
                     case 'r' + ('e' << 8): {
                         // path add rectangle
-                        float a[] = popFloat(4);
+                        float a[] = popFloatTemp(4);
                         path.moveTo(a[0], a[1]);
                         path.lineTo(a[0] + a[2], a[1]);
                         path.lineTo(a[0] + a[2], a[1] + a[3]);
@@ -652,14 +785,14 @@ public class PDFParser extends BaseWatchable {
                         // stroke the path
                         cmds.addPath(path, PDFShapeCmd.STROKE | clip);
                         clip = 0;
-                        path = new Path();
+                        path = new PDFPath();
                         break;
                     case 's':
                         // close and stroke the path
                         path.close();
                         cmds.addPath(path, PDFShapeCmd.STROKE | clip);
                         clip = 0;
-                        path = new Path();
+                        path = new PDFPath();
                         break;
                     case 'f':
                     // the fall-through is intended!
@@ -667,34 +800,34 @@ public class PDFParser extends BaseWatchable {
                         // fill the path (close/not close identical)
                         cmds.addPath(path, PDFShapeCmd.FILL | clip);
                         clip = 0;
-                        path = new Path();
+                        path = new PDFPath();
                         break;
                     case 'f' + ('*' << 8):
                         // fill the path using even/odd rule
                         path.setFillType(FillType.EVEN_ODD);
                         cmds.addPath(path, PDFShapeCmd.FILL | clip);
                         clip = 0;
-                        path = new Path();
+                        path = new PDFPath();
                         break;
                     case 'B':
                         // fill and stroke the path
                         cmds.addPath(path, PDFShapeCmd.BOTH | clip);
                         clip = 0;
-                        path = new Path();
+                        path = new PDFPath();
                         break;
                     case 'B' + ('*' << 8):
                         // fill path using even/odd rule and stroke it
                         path.setFillType(FillType.EVEN_ODD);
                         cmds.addPath(path, PDFShapeCmd.BOTH | clip);
                         clip = 0;
-                        path = new Path();
+                        path = new PDFPath();
                         break;
                     case 'b':
                         // close the path, then fill and stroke it
                         path.close();
                         cmds.addPath(path, PDFShapeCmd.BOTH | clip);
                         clip = 0;
-                        path = new Path();
+                        path = new PDFPath();
                         break;
                     case 'b' + ('*' << 8):
                         // close path, fill using even/odd rule, then stroke it
@@ -702,7 +835,7 @@ public class PDFParser extends BaseWatchable {
                         path.setFillType(FillType.EVEN_ODD);
                         cmds.addPath(path, PDFShapeCmd.BOTH | clip);
                         clip = 0;
-                        path = new Path();
+                        path = new PDFPath();
                         break;
                     case 'n':
                         // clip with the path and discard it
@@ -710,7 +843,7 @@ public class PDFParser extends BaseWatchable {
                             cmds.addPath(path, clip);
                         }
                         clip = 0;
-                        path = new Path();
+                        path = new PDFPath();
                         break;
                     case 'W':
                         // mark this path for clipping!
@@ -735,12 +868,12 @@ public class PDFParser extends BaseWatchable {
                     case 'C' + ('S' << 8):
                         // TODO [FHe]: ignoring color space
                         // set the stroke color space
-                        state.strokeCS = parseColorSpace(new PDFObject(stack.pop()));
+                        state.strokeCS = parseColorSpace(new PDFObject(pop()));
                         break;
                     case 'c' + ('s' << 8):
                         // TODO [FHe]: ignoring color space
                         // set the fill color space
-                        state.fillCS = parseColorSpace(new PDFObject(stack.pop()));
+                        state.fillCS = parseColorSpace(new PDFObject(pop()));
                         break;
                     case 'S' + ('C' << 8): {
                         // TODO [FHe]: stroke color
@@ -873,7 +1006,7 @@ public class PDFParser extends BaseWatchable {
                     }
                     case 'T' + ('m' << 8):
                         // set text matrix
-                        state.textFormat.setMatrix(popFloat(6));
+                        state.textFormat.setMatrix(popFloatTemp(6));
                         break;
                     case 'T' + ('*' << 8):
                         // go to next line
@@ -920,7 +1053,7 @@ public class PDFParser extends BaseWatchable {
                     case 'D' + ('P' << 8): {
                         // mark point with dictionary (role, ref)
                         // ref is either inline dict or name in "Properties" rsrc
-                        Object ref = stack.pop();
+                        Object ref = pop();
                         popString();
                         break;
                     }
@@ -931,7 +1064,7 @@ public class PDFParser extends BaseWatchable {
                     case 'B' + ('D' << 8) + ('C' << 16): {
                         // begin marked content with dict (role, ref)
                         // ref is either inline dict or name in "Properties" rsrc
-                        Object ref = stack.pop();
+                        Object ref = pop();
                         popString();
                         break;
                     }
@@ -940,11 +1073,11 @@ public class PDFParser extends BaseWatchable {
                         break;
                     case 'd' + ('0' << 8):
                         // character width in type3 fonts
-                        popFloat(2);
+                        popFloatTemp(2);
                         break;
                     case 'd' + ('1' << 8):
                         // character width in type3 fonts
-                        popFloat(6);
+                        popFloatTemp(6);
                         break;
                     case 'Q' + ('B' << 8) + ('T' << 16):
                         processQCmd();
@@ -970,14 +1103,14 @@ public class PDFParser extends BaseWatchable {
             } catch (Exception e) {
                 Log.e(TAG, "cmd='" + cmd + ":" + e.getMessage(), e);
             }
-            if (stack.size() != 0) {
+            if (operandCount != 0) {
                 if (!RELEASE) {
-                    debug("**** WARNING! Stack not zero! (cmd=" + cmd + ", size=" + stack.size() + ") *************************", 4);
+                    debug("**** WARNING! Stack not zero! (cmd=" + cmd + ", size=" + operandCount + ") *************************", 4);
                 }
-                stack.setSize(0);
+                clearOperands();
             }
         } else {
-            stack.push(obj);
+            push(obj);
         }
 
         // release or reference to the page object, so that it can be
@@ -1007,6 +1140,18 @@ public class PDFParser extends BaseWatchable {
         state.textFormat.reset();
     }
 
+    /**
+     * Hand what was parsed in this slice to the renderers, rather than
+     * waiting for a whole batch, so they can draw it before the next frame
+     */
+    @Override
+    protected void sliceEnded() {
+        PDFPage page = (PDFPage) pageRef.get();
+        if (page != null) {
+            page.flushCommands();
+        }
+    }
+
     /**
      * Cleanup when iteration is done
      */
@@ -1017,9 +1162,20 @@ public class PDFParser extends BaseWatchable {
         }
         if (cmds != null) {
             cmds.finish();
+            if (listCache != null && getStatus() == Watchable.COMPLETED &&
+                    cmds.getDisplayList() != null) {
+                try {
+                    listCache.write(pagenum, cmds.getDisplayList());
+                } catch (IOException e) {
+                    System.out.println("Could not keep the display list of page " +
+                            pagenum + ": " + e);
+                }
+            }
         }
 
-        stack = null;
+        numbers = null;
+        operands = null;
+        operandCount = 0;
         parserStates = null;
         state = null;
         path = null;
@@ -1119,52 +1275,14 @@ public class PDFParser extends BaseWatchable {
     }
 
     /**
-     * Inject a stream of PDF commands onto the page.  Optimized to cache
-     * a parsed stream of commands, so that each Form object only needs
-     * to be parsed once.
+     * Draw a form XObject on the page.  Each form is only parsed once,
+     * perhaps on another thread, into commands of its own that the page
+     * refers to.
      * @param obj a stream containing the PDF commands, a transformation
      * matrix, bounding box, and resources.
      */
     private void doForm(PDFObject obj) throws IOException {
-        // check to see if we've already parsed this sucker
-        PDFPage formCmds = (PDFPage) obj.getCache();
-        if (formCmds == null) {
-            // rats.  parse it.
-            Matrix at;
-            RectF bbox;
-            PDFObject matrix = obj.getDictRef("Matrix");
-            if (matrix == null) {
-                at = new Matrix();
-            } else {
-                float elts[] = new float[6];
-                for (int i = 0; i < elts.length; i++) {
-                    elts[i] = ((PDFObject) matrix.getAt(i)).getFloatValue();
-                }
-                at = new Matrix();
-                Utils.setMatValues(at, elts);
-            }
-            PDFObject bobj = obj.getDictRef("BBox");
-            bbox = new RectF(bobj.getAt(0).getFloatValue(),
-                    bobj.getAt(1).getFloatValue(),
-                    bobj.getAt(2).getFloatValue(),
-                    bobj.getAt(3).getFloatValue());
-            formCmds = new PDFPage(bbox, 0);
-            formCmds.addXform(at);
-
-            HashMap<String, PDFObject> r = new HashMap<String, PDFObject>(resources);
-            PDFObject rsrc = obj.getDictRef("Resources");
-            if (rsrc != null) {
-                r.putAll(rsrc.getDictionary());
-            }
-
-            PDFParser form = new PDFParser(formCmds, obj.getStream(), r);
-            form.go(true);
-
-            obj.setCache(formCmds);
-        }
-        cmds.addPush();
-        cmds.addCommands(formCmds);
-        cmds.addPop();
+        cmds.addCommand(new PDFFormCmd(PDFForm.getCommands(obj, resources), obj));
     }
 
 //    /**
@@ -1192,8 +1310,13 @@ public class PDFParser extends BaseWatchable {
      * a Tok containing a PDF command.
      */
     private Object parseObject() throws PDFParseException {
-        final Tok t = nextToken();
+        return parseObject(nextToken());
+    }
 
+    /**
+     * Parse the object that starts with a token just read.
+     */
+    private Object parseObject(Tok t) throws PDFParseException {
         switch (t.type) {
             case Tok.NUM:
                 return new Double(tok.value);
@@ -1221,6 +1344,10 @@ public class PDFParser extends BaseWatchable {
                 // build an array
                 final ArrayList<Object> ary = new ArrayList<Object>();
                 for (Object obj = null; (obj = parseObject()) != null;) {
+                    if (obj == tok) {
+                        // the token will be reused, so keep its value
+                        obj = keywordValue(tok);
+                    }
                     ary.add(obj);
                 }
                 if (tok.type != Tok.ARYE) {
@@ -1237,6 +1364,19 @@ public class PDFParser extends BaseWatchable {
         return null;
     }
 
+    /**
+     * get the value of a keyword in an array: true and false are booleans,
+     * and anything else is a name, as PDFObject would make them
+     */
+    private static Object keywordValue(Tok t) {
+        if (t.name.equals("true")) {
+            return Boolean.TRUE;
+        } else if (t.name.equals("false")) {
+            return Boolean.FALSE;
+        }
+        return t.name;
+    }
+
     /**
      * Parse an inline image.  An inline image starts with BI (already
      * read, contains a dictionary until ID, and then image data until
@@ -1406,6 +1546,79 @@ public class PDFParser extends BaseWatchable {
         return PDFColorSpace.getColorSpace(csobj, resources);
     }
 
+    /**
+     * push a number onto the operand stack
+     */
+    private void pushNumber(double value) {
+        if (operandCount == numbers.length) {
+            growOperands();
+        }
+        numbers[operandCount] = value;
+        operands[operandCount++] = null;
+    }
+
+    /**
+     * push a name, string, array or dictionary onto the operand stack.
+     * A Double is pushed as a number.
+     */
+    private void push(Object obj) {
+        if (obj instanceof Double) {
+            pushNumber(((Double) obj).doubleValue());
+            return;
+        }
+        if (operandCount == numbers.length) {
+            growOperands();
+        }
+        operands[operandCount++] = obj;
+    }
+
+    private void growOperands() {
+        int size = numbers.length * 2;
+        double[] nnumbers = new double[size];
+        System.arraycopy(numbers, 0, nnumbers, 0, operandCount);
+        numbers = nnumbers;
+        Object[] noperands = new Object[size];
+        System.arraycopy(operands, 0, noperands, 0, operandCount);
+        operands = noperands;
+    }
+
+    /**
+     * empty the operand stack
+     */
+    private void clearOperands() {
+        for (int i = 0; i < operandCount; i++) {
+            operands[i] = null;
+        }
+        operandCount = 0;
+    }
+
+    /**
+     * take the top operand off the stack.  The slot stays valid until the
+     * next push.
+     * @return the index of the slot the operand was in
+     * @throws PDFParseException if the stack is empty
+     */
+    private int popSlot() throws PDFParseException {
+        if (operandCount == 0) {
+            throw new PDFParseException("Expected an operand here.");
+        }
+        return --operandCount;
+    }
+
+    /**
+     * pop the top operand off the stack, whatever it is.  A number comes
+     * back as a Double.
+     */
+    private Object pop() throws PDFParseException {
+        int slot = popSlot();
+        Object obj = operands[slot];
+        if (obj == null) {
+            return Double.valueOf(numbers[slot]);
+        }
+        operands[slot] = null;
+        return obj;
+    }
+
     /**
      * pop a single float value off the stack.
      * @return the float value of the top of the stack
@@ -1413,12 +1626,30 @@ public class PDFParser extends BaseWatchable {
      * isn't a number
      */
     private float popFloat() throws PDFParseException {
-        Object obj = stack.pop();
-        if (obj instanceof Double) {
-            return ((Double) obj).floatValue();
-        } else {
+        int slot = popSlot();
+        if (operands[slot] != null) {
+            operands[slot] = null;
             throw new PDFParseException("Expected a number here.");
         }
+        return (float) numbers[slot];
+    }
+
+    /**
+     * pop an array of float values off the stack, into an array that is
+     * reused by the next call.  For commands that are done with the
+     * values before they pop any more, such as path construction.
+     * @param count the number of numbers to pop off the stack, at most 6
+     * @return the shared array, holding the values in its first
+     * <tt>count</tt> elements
+     * @throws PDFParseException if any of the values popped off the
+     * stack are not numbers.
+     */
+    private float[] popFloatTemp(int count) throws PDFParseException {
+        float[] ary = floatTemp;
+        for (int i = count - 1; i >= 0; i--) {
+            ary[i] = popFloat();
+        }
+        return ary;
     }
 
     /**
@@ -1444,12 +1675,12 @@ public class PDFParser extends BaseWatchable {
      * @throws PDFParseException if the top of the stack isn't a number.
      */
     private int popInt() throws PDFParseException {
-        Object obj = stack.pop();
-        if (obj instanceof Double) {
-            return ((Double) obj).intValue();
-        } else {
+        int slot = popSlot();
+        if (operands[slot] != null) {
+            operands[slot] = null;
             throw new PDFParseException("Expected a number here.");
         }
+        return (int) numbers[slot];
     }
 
     /**
@@ -1462,7 +1693,7 @@ public class PDFParser extends BaseWatchable {
      * stack are not numbers.
      */
     private float[] popFloatArray() throws PDFParseException {
-        Object obj = stack.pop();
+        Object obj = pop();
         if (!(obj instanceof Object[])) {
             throw new PDFParseException("Expected an [array] here.");
         }
@@ -1485,7 +1716,7 @@ public class PDFParser extends BaseWatchable {
      * or STR.
      */
     private String popString() throws PDFParseException {
-        Object obj = stack.pop();
+        Object obj = pop();
         if (!(obj instanceof String)) {
             throw new PDFParseException("Expected string here: " + obj.toString());
         } else {
@@ -1500,7 +1731,7 @@ public class PDFParser extends BaseWatchable {
      * a PDFObject.
      */
     private PDFObject popObject() throws PDFParseException {
-        Object obj = stack.pop();
+        Object obj = pop();
         if (!(obj instanceof PDFObject)) {
             throw new PDFParseException("Expected a reference here: " + obj.toString());
         }
@@ -1514,7 +1745,7 @@ public class PDFParser extends BaseWatchable {
      * contain an array.
      */
     private Object[] popArray() throws PDFParseException {
-        Object obj = stack.pop();
+        Object obj = pop();
         if (!(obj instanceof Object[])) {
             throw new PDFParseException("Expected an [array] here: " + obj.toString());
         }
@@ -1554,17 +1785,18 @@ public class PDFParser extends BaseWatchable {
         }
     }
 
-    private String dump(Stack<Object> stk) {
-        if (stk == null) {
+    private String dumpOperands() {
+        if (operands == null) {
             return "<null>";
         }
-        if (stk.size() == 0) {
+        if (operandCount == 0) {
             return "[]";
         }
         String result = "";
         String delimiter = "[";
-        for (Object obj : stk) {
-            result += delimiter + dumpObj(obj);
+        for (int i = 0; i < operandCount; i++) {
+            Object obj = operands[i];
+            result += delimiter + (obj == null ? String.valueOf(numbers[i]) : dumpObj(obj));
             delimiter = ",";
         }
         result += "]";
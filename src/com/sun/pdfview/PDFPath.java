@@ -0,0 +1,309 @@
+/*
+ * Copyright 2004 Sun Microsystems, Inc., 4150 Network Circle,
+ * Santa Clara, California 95054, U.S.A. All rights reserved.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package com.sun.pdfview;
+
+import android.graphics.Matrix;
+import android.graphics.Path;
+
+/**
+ * A Path that also remembers its segments, as verbs and packed
+ * coordinates, so that it can be stored in a PDFDisplayList without
+ * keeping the Path itself.  Android gives no way to read the segments
+ * back out of a Path, so they have to be caught on the way in.
+ * <p>
+ * Only the methods overridden here are recorded.  Adding another PDFPath
+ * or transforming the path keeps the record; adding a plain Path, or a
+ * perspective transform, leaves the path unrecorded, and it must then be
+ * kept as a Path.  A PDFPath must not be built with addRect() and the
+ * like, which are not caught at all.
+ */
+public class PDFPath extends Path {
+
+    /** a moveTo segment, with 2 coordinates */
+    public static final byte MOVE = 0;
+    /** a lineTo segment, with 2 coordinates */
+    public static final byte LINE = 1;
+    /** a quadTo segment, with 4 coordinates */
+    public static final byte QUAD = 2;
+    /** a cubicTo segment, with 6 coordinates */
+    public static final byte CUBIC = 3;
+    /** a close segment, with no coordinates */
+    public static final byte CLOSE = 4;
+
+    /** the verb of each segment */
+    private byte[] verbs = new byte[16];
+    private int verbCount;
+    /** the coordinates of all the segments, one after the other */
+    private float[] coords = new float[32];
+    private int coordCount;
+    /** the fill type, remembered since it is set more than it is read */
+    private FillType fillType = FillType.WINDING;
+    /** whether the verbs and coordinates describe the whole path */
+    private boolean recorded = true;
+
+    /**
+     * Create a new, empty path
+     */
+    public PDFPath() {
+        super();
+    }
+
+    /**
+     * Create a copy of a path
+     */
+    public PDFPath(Path src) {
+        super(src);
+        if (src instanceof PDFPath) {
+            PDFPath p = (PDFPath) src;
+            verbs = p.verbs.clone();
+            verbCount = p.verbCount;
+            coords = p.coords.clone();
+            coordCount = p.coordCount;
+            fillType = p.fillType;
+            recorded = p.recorded;
+        } else {
+            recorded = false;
+        }
+    }
+
+    @Override
+    public void moveTo(float x, float y) {
+        super.moveTo(x, y);
+        addVerb(MOVE);
+        addCoords(x, y);
+    }
+
+    @Override
+    public void lineTo(float x, float y) {
+        super.lineTo(x, y);
+        addVerb(LINE);
+        addCoords(x, y);
+    }
+
+    @Override
+    public void quadTo(float x1, float y1, float x2, float y2) {
+        super.quadTo(x1, y1, x2, y2);
+        addVerb(QUAD);
+        addCoords(x1, y1);
+        addCoords(x2, y2);
+    }
+
+    @Override
+    public void cubicTo(float x1, float y1, float x2, float y2,
+            float x3, float y3) {
+        super.cubicTo(x1, y1, x2, y2, x3, y3);
+        addVerb(CUBIC);
+        addCoords(x1, y1);
+        addCoords(x2, y2);
+        addCoords(x3, y3);
+    }
+
+    @Override
+    public void close() {
+        super.close();
+        addVerb(CLOSE);
+    }
+
+    @Override
+    public void reset() {
+        super.reset();
+        verbCount = 0;
+        coordCount = 0;
+        fillType = FillType.WINDING;
+        recorded = true;
+    }
+
+    @Override
+    public void rewind() {
+        super.rewind();
+        verbCount = 0;
+        coordCount = 0;
+        recorded = true;
+    }
+
+    @Override
+    public void addPath(Path src) {
+        super.addPath(src);
+        append(src, null);
+    }
+
+    @Override
+    public void addPath(Path src, Matrix matrix) {
+        super.addPath(src, matrix);
+        append(src, matrix);
+    }
+
+    @Override
+    public void transform(Matrix matrix) {
+        super.transform(matrix);
+        recorded &= transformCoords(coords, 0, coordCount, matrix);
+    }
+
+    @Override
+    public void transform(Matrix matrix, Path dst) {
+        super.transform(matrix, dst);
+        if (dst == null || dst == this) {
+            recorded &= transformCoords(coords, 0, coordCount, matrix);
+        } else if (dst instanceof PDFPath) {
+            PDFPath p = (PDFPath) dst;
+            p.verbs = verbs.clone();
+            p.verbCount = verbCount;
+            p.coords = coords.clone();
+            p.coordCount = coordCount;
+            p.fillType = fillType;
+            p.recorded = recorded &&
+                    transformCoords(p.coords, 0, coordCount, matrix);
+        }
+    }
+
+    /**
+     * record the segments of another path at the end of this one
+     */
+    private void append(Path src, Matrix matrix) {
+        if (!(src instanceof PDFPath)) {
+            recorded = false;
+            return;
+        }
+
+        PDFPath p = (PDFPath) src;
+        int start = coordCount;
+        for (int i = 0; i < p.verbCount; i++) {
+            addVerb(p.verbs[i]);
+        }
+        for (int i = 0; i < p.coordCount; i += 2) {
+            addCoords(p.coords[i], p.coords[i + 1]);
+        }
+        recorded &= p.recorded;
+        if (matrix != null) {
+            recorded &= transformCoords(coords, start, coordCount, matrix);
+        }
+    }
+
+    /**
+     * apply an affine transform to some coordinates
+     * @return false if the transform isn't affine, and the coordinates
+     * were left alone
+     */
+    private static boolean transformCoords(float[] coords, int start,
+            int end, Matrix matrix) {
+        float[] v = new float[9];
+        matrix.getValues(v);
+        if (v[Matrix.MPERSP_0] != 0 || v[Matrix.MPERSP_1] != 0 ||
+                v[Matrix.MPERSP_2] != 1) {
+            return false;
+        }
+
+        for (int i = start; i < end; i += 2) {
+            float x = coords[i];
+            float y = coords[i + 1];
+            coords[i] = v[Matrix.MSCALE_X] * x + v[Matrix.MSKEW_X] * y +
+                    v[Matrix.MTRANS_X];
+            coords[i + 1] = v[Matrix.MSKEW_Y] * x + v[Matrix.MSCALE_Y] * y +
+                    v[Matrix.MTRANS_Y];
+        }
+        return true;
+    }
+
+    @Override
+    public void setFillType(FillType ft) {
+        super.setFillType(ft);
+        fillType = ft;
+    }
+
+    private void addVerb(byte verb) {
+        if (verbCount == verbs.length) {
+            byte[] nverbs = new byte[verbCount * 2];
+            System.arraycopy(verbs, 0, nverbs, 0, verbCount);
+            verbs = nverbs;
+        }
+        verbs[verbCount++] = verb;
+    }
+
+    private void addCoords(float x, float y) {
+        if (coordCount + 2 > coords.length) {
+            float[] ncoords = new float[coords.length * 2];
+            System.arraycopy(coords, 0, ncoords, 0, coordCount);
+            coords = ncoords;
+        }
+        coords[coordCount++] = x;
+        coords[coordCount++] = y;
+    }
+
+    /**
+     * Get the number of coordinates a segment verb takes
+     */
+    public static int getCoordCount(byte verb) {
+        switch (verb) {
+            case MOVE:
+            case LINE:
+                return 2;
+            case QUAD:
+                return 4;
+            case CUBIC:
+                return 6;
+            default:
+                return 0;
+        }
+    }
+
+    /**
+     * Get whether the recorded segments describe the whole path.  If not,
+     * the path can only be kept as a Path.
+     */
+    public boolean isRecorded() {
+        return recorded;
+    }
+
+    /**
+     * Get the number of segments in this path
+     */
+    public int getVerbCount() {
+        return verbCount;
+    }
+
+    /**
+     * Get the verbs of the segments.  Only the first getVerbCount() are
+     * valid.
+     */
+    public byte[] getVerbs() {
+        return verbs;
+    }
+
+    /**
+     * Get the number of coordinates in this path
+     */
+    public int getCoordCount() {
+        return coordCount;
+    }
+
+    /**
+     * Get the coordinates of the segments.  Only the first
+     * getCoordCount() are valid.
+     */
+    public float[] getCoords() {
+        return coords;
+    }
+
+    /**
+     * Get the fill type last set on this path
+     */
+    public FillType getRecordedFillType() {
+        return fillType;
+    }
+}
@@ -0,0 +1,568 @@
+/*
+ * Copyright 2004 Sun Microsystems, Inc., 4150 Network Circle,
+ * Santa Clara, California 95054, U.S.A. All rights reserved.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package com.sun.pdfview;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Color;
+import android.graphics.RectF;
+import android.graphics.Bitmap.Config;
+
+/**
+ * Renders pages of a PDFFile one at a time, most urgent first, for a
+ * viewer that shows one page and wants the pages around it ready before
+ * the user turns to them.
+ * <p>
+ * showPage() asks for the page being shown, with the highest priority, and
+ * for the pages next to it, with lower priorities the further away they
+ * are.  Requests for any other page, or at another zoom, are stale and
+ * are cancelled.  A request being rendered when a more urgent one arrives
+ * is stopped between two steps of its renderer, and carries on from where
+ * it was once nothing more urgent is left; a cancelled one is stopped the
+ * same way, and dropped.
+ * <p>
+ * The scheduler counts the requests it completed, cancelled and stopped
+ * for more urgent ones, and the time it spent rendering requests that
+ * were then cancelled, which was wasted.
+ * <p>
+ * With a frame deadline, pages are parsed and rendered in slices that end
+ * by the deadline, and the listener is told about each slice, so what
+ * has been drawn of the page shown can be shown long before it is done.
+ */
+public class PDFRenderScheduler {
+
+    /** the priority of the page being shown.  Lower priorities go first. */
+    public static final int VISIBLE = 0;
+    /** the priority of the pages next to the one shown */
+    public static final int PREFETCH = 1;
+
+    /** the states of a request */
+    private static final int QUEUED = 0;
+    private static final int RUNNING = 1;
+    private static final int DONE = 2;
+    private static final int CANCELLED = 3;
+
+    /**
+     * Told about each request once its page is rendered
+     */
+    public interface RenderListener {
+
+        /**
+         * A page has been rendered.  Called on the scheduler's thread.
+         */
+        void pageRendered(Request request);
+
+        /**
+         * Some more of a page has been drawn, and may be shown through
+         * getImageSoFar().  Called on the scheduler's thread, at the end
+         * of each slice if there is a frame deadline, or else every now
+         * and then.
+         */
+        void pageUpdated(Request request);
+    }
+
+    /**
+     * A request to render a page at a zoom
+     */
+    public class Request {
+
+        /** the number of the page, starting at 1 */
+        private final int pagenum;
+        /** the zoom, in pixels per point */
+        private final float zoom;
+        /** the priority, VISIBLE or above */
+        private int priority;
+        /** the order the request was made in, among equal priorities */
+        private final long sequence;
+        /** QUEUED, RUNNING, DONE or CANCELLED */
+        private int state = QUEUED;
+        /** the page, once the request has started */
+        private PDFPage page;
+        /** the image drawn into, once the request has started */
+        private Bitmap image;
+        /** the renderer drawing the image, once the request has started */
+        private PDFRenderer renderer;
+        /** whether the scheduler has stopped the renderer */
+        private boolean stopping;
+        /** how long the request has spent rendering, in milliseconds */
+        private long millis;
+
+        private Request(int pagenum, float zoom, int priority) {
+            this.pagenum = pagenum;
+            this.zoom = zoom;
+            this.priority = priority;
+            this.sequence = nextSequence++;
+        }
+
+        /**
+         * Get the number of the page, starting at 1
+         */
+        public int getPageNumber() {
+            return pagenum;
+        }
+
+        /**
+         * Get the zoom the page is rendered at
+         */
+        public float getZoom() {
+            return zoom;
+        }
+
+        /**
+         * Get the rendered image, or null if it isn't rendered yet, or
+         * the request was cancelled
+         */
+        public Bitmap getImage() {
+            synchronized (PDFRenderScheduler.this) {
+                return (state == DONE) ? image : null;
+            }
+        }
+
+        /**
+         * Get the image as far as it has been drawn, or null if nothing has
+         * been drawn yet, or the request was cancelled.  The image goes on
+         * being drawn into until the request is done.
+         */
+        public Bitmap getImageSoFar() {
+            synchronized (PDFRenderScheduler.this) {
+                return (state == CANCELLED) ? null : image;
+            }
+        }
+
+        /**
+         * Get whether the page is rendered
+         */
+        public boolean isDone() {
+            synchronized (PDFRenderScheduler.this) {
+                return state == DONE;
+            }
+        }
+
+        /**
+         * Get whether the request was cancelled
+         */
+        public boolean isCancelled() {
+            synchronized (PDFRenderScheduler.this) {
+                return state == CANCELLED;
+            }
+        }
+
+        /**
+         * Get how long the request has spent rendering, in milliseconds
+         */
+        public long getRenderTime() {
+            synchronized (PDFRenderScheduler.this) {
+                return millis;
+            }
+        }
+
+        /**
+         * Wait until the page is rendered, or the request is cancelled
+         *
+         * @return the image, or null if the request was cancelled
+         */
+        public Bitmap waitForImage() throws InterruptedException {
+            synchronized (PDFRenderScheduler.this) {
+                while (state == QUEUED || state == RUNNING) {
+                    PDFRenderScheduler.this.wait();
+                }
+                return (state == DONE) ? image : null;
+            }
+        }
+
+        /**
+         * get the page and the renderer, if they aren't yet, and render
+         * until the page is done or the renderer is stopped
+         */
+        private void render() {
+            if (page == null) {
+                PDFPage p = file.getPage(pagenum, false);
+                if (p == null) {
+                    return;
+                }
+                page = p;
+            }
+
+            synchronized (PDFRenderScheduler.this) {
+                // stopped or cancelled while the page was being read
+                if (stopping || state != RUNNING) {
+                    return;
+                }
+                if (renderer == null) {
+                    // the request holds the image, and cancels the
+                    // renderer itself, so the renderer needn't watch for
+                    // the image going away
+                    int width = (int) (page.getWidth() * zoom);
+                    int height = (int) (page.getHeight() * zoom);
+                    image = Bitmap.createBitmap(width, height, Config.RGB_565);
+                    renderer = new PDFRenderer(page, new Canvas(image),
+                            new RectF(0, 0, width, height), null, Color.WHITE);
+                    renderer.setUpdateListener(new PDFRenderer.UpdateListener() {
+                        public void imageUpdated(PDFRenderer renderer, boolean finished) {
+                            updated(Request.this);
+                        }
+                    });
+                }
+                renderer.setFrameDeadline(frameDeadline);
+
+                // the parser slices by the same deadline, so the renderer
+                // gets what it parses in time to draw it
+                PDFParser parser = file.cache.getPageParser(Integer.valueOf(pagenum));
+                if (parser != null) {
+                    parser.setFrameDeadline(frameDeadline);
+                }
+
+                // a renderer stopped before is let go on, but only here:
+                // a stop that comes once the lock is let go is kept
+                renderer.revive();
+            }
+
+            renderer.resume(true);
+        }
+    }
+
+    /** the file to render pages of */
+    private final PDFFile file;
+    /** the listener to tell about each rendered page, or null */
+    private RenderListener listener;
+    /** the frame deadline to render in slices for, or 0 */
+    private long frameDeadline;
+
+    /** the requests waiting to be rendered, most urgent first */
+    private final PriorityQueue<Request> queue = new PriorityQueue<Request>(11,
+            new Comparator<Request>() {
+                public int compare(Request a, Request b) {
+                    if (a.priority != b.priority) {
+                        return (a.priority < b.priority) ? -1 : 1;
+                    }
+                    return (a.sequence < b.sequence) ? -1 :
+                            (a.sequence == b.sequence ? 0 : 1);
+                }
+            });
+    /** every request that isn't cancelled: queued, running or done */
+    private final List<Request> requests = new ArrayList<Request>();
+    /** the request being rendered, or null */
+    private Request current;
+    /** whether the worker is running */
+    private boolean working;
+    /** the sequence number of the next request */
+    private long nextSequence;
+
+    /** how many requests were rendered */
+    private int completed;
+    /** how many requests were cancelled */
+    private int cancelled;
+    /** how many times a request was stopped for a more urgent one */
+    private int preempted;
+    /** how long was spent rendering requests that were rendered */
+    private long usefulMillis;
+    /** how long was spent rendering requests that were then cancelled */
+    private long wastedMillis;
+
+    /** renders the requests, most urgent first, until none are left */
+    private final Runnable worker = new Runnable() {
+        public void run() {
+            while (true) {
+                Request r;
+                synchronized (PDFRenderScheduler.this) {
+                    r = queue.poll();
+                    if (r == null) {
+                        working = false;
+                        return;
+                    }
+                    r.state = RUNNING;
+                    current = r;
+                }
+
+                long start = System.currentTimeMillis();
+                boolean failed = false;
+                try {
+                    r.render();
+                } catch (RuntimeException e) {
+                    System.out.println("Could not render page " + r.pagenum + ": " + e);
+                    failed = true;
+                }
+                finished(r, System.currentTimeMillis() - start, failed);
+            }
+        }
+    };
+
+    /**
+     * Create a scheduler for the pages of a file
+     */
+    public PDFRenderScheduler(PDFFile file) {
+        this.file = file;
+    }
+
+    /**
+     * Set the listener to tell about each rendered page
+     */
+    public synchronized void setRenderListener(RenderListener listener) {
+        this.listener = listener;
+    }
+
+    /**
+     * Set the frame deadline pages are parsed and rendered in slices for.
+     * Takes effect from the next request started or resumed.
+     *
+     * @param millis how long a slice should take, in milliseconds, or 0
+     * to render without slices
+     */
+    public synchronized void setFrameDeadline(long millis) {
+        if (millis < 0) {
+            throw new IllegalArgumentException("Frame deadline must not be negative: " + millis);
+        }
+        this.frameDeadline = millis;
+    }
+
+    /**
+     * Show a page: render it before anything else, then render the pages
+     * next to it, and cancel everything else.
+     *
+     * @param pagenum the number of the page shown, starting at 1
+     * @param zoom the zoom, in pixels per point
+     * @param prefetch how many pages on each side of it to render too
+     * @return the request for the page shown
+     */
+    public synchronized Request showPage(int pagenum, float zoom, int prefetch) {
+        // anything else is stale
+        for (int i = requests.size() - 1; i >= 0; i--) {
+            Request r = requests.get(i);
+            if (r.zoom != zoom || Math.abs(r.pagenum - pagenum) > prefetch) {
+                cancel(r);
+            }
+        }
+
+        Request shown = request(pagenum, zoom, VISIBLE);
+        int numPages = file.getNumPages();
+        for (int d = 1; d <= prefetch; d++) {
+            if (pagenum + d <= numPages) {
+                request(pagenum + d, zoom, PREFETCH + d - 1);
+            }
+            if (pagenum - d >= 1) {
+                request(pagenum - d, zoom, PREFETCH + d - 1);
+            }
+        }
+        return shown;
+    }
+
+    /**
+     * Ask for a page to be rendered.  If it has been asked for already,
+     * at the same zoom, the same request is given the new priority.
+     *
+     * @param pagenum the number of the page, starting at 1
+     * @param zoom the zoom, in pixels per point
+     * @param priority VISIBLE, PREFETCH, or a higher number for less
+     * urgent requests
+     * @return the request
+     */
+    public synchronized Request request(int pagenum, float zoom, int priority) {
+        Request r = find(pagenum, zoom);
+        if (r == null) {
+            r = new Request(pagenum, zoom, priority);
+            requests.add(r);
+            queue.add(r);
+        } else if (r.priority != priority) {
+            // the queue only orders a request as it is added
+            if (queue.remove(r)) {
+                r.priority = priority;
+                queue.add(r);
+            } else {
+                r.priority = priority;
+            }
+        }
+
+        if (!working) {
+            working = true;
+            BaseWatchable.getDefaultExecutor().execute(worker);
+        } else if (current != null && !queue.isEmpty() &&
+                queue.peek().priority < current.priority) {
+            // the renderer stops between two steps, and the worker puts
+            // the request back in the queue
+            stopRenderer(current);
+        }
+        return r;
+    }
+
+    /**
+     * Cancel a request, stopping it if it is being rendered.  A request
+     * already rendered is just forgotten.
+     */
+    public synchronized void cancel(Request r) {
+        if (!requests.remove(r)) {
+            return;
+        }
+
+        if (r.state == DONE) {
+            // nothing wasted: it was rendered
+            r.image = null;
+            r.state = CANCELLED;
+            return;
+        }
+
+        int state = r.state;
+        r.state = CANCELLED;
+        r.image = null;
+        cancelled++;
+        queue.remove(r);
+        if (state == RUNNING) {
+            // the worker adds the time it spent to the waste once the
+            // renderer stops
+            stopRenderer(r);
+        } else {
+            wastedMillis += r.millis;
+        }
+
+        // the page's parser need not go on either, unless the page is
+        // wanted at another zoom.  A parser that is stopped carries on
+        // from where it was if the page is asked for again.
+        if (find(r.pagenum, -1) == null) {
+            file.stop(r.pagenum);
+        }
+        notifyAll();
+    }
+
+    /**
+     * Cancel every request
+     */
+    public synchronized void cancelAll() {
+        for (int i = requests.size() - 1; i >= 0; i--) {
+            cancel(requests.get(i));
+        }
+    }
+
+    /**
+     * Get how many requests were rendered
+     */
+    public synchronized int getCompletedCount() {
+        return completed;
+    }
+
+    /**
+     * Get how many requests were cancelled before they were rendered
+     */
+    public synchronized int getCancelledCount() {
+        return cancelled;
+    }
+
+    /**
+     * Get how many times a request was stopped for a more urgent one
+     */
+    public synchronized int getPreemptedCount() {
+        return preempted;
+    }
+
+    /**
+     * Get how long was spent rendering requests that were rendered, in
+     * milliseconds
+     */
+    public synchronized long getUsefulTime() {
+        return usefulMillis;
+    }
+
+    /**
+     * Get how long was spent rendering requests that were then cancelled,
+     * in milliseconds
+     */
+    public synchronized long getWastedTime() {
+        return wastedMillis;
+    }
+
+    /**
+     * find the live request for a page
+     * @param zoom the zoom, or -1 for any zoom
+     */
+    private Request find(int pagenum, float zoom) {
+        for (int i = 0; i < requests.size(); i++) {
+            Request r = requests.get(i);
+            if (r.pagenum == pagenum && (zoom < 0 || r.zoom == zoom)) {
+                return r;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * stop the renderer of a request being rendered, if it has one yet.
+     * If it hasn't, the request sees it isn't running before it makes one.
+     */
+    private void stopRenderer(Request r) {
+        r.stopping = true;
+        if (r.renderer != null) {
+            r.renderer.stop();
+        }
+    }
+
+    /**
+     * some more of a request has been drawn
+     */
+    private void updated(Request r) {
+        RenderListener l;
+        synchronized (this) {
+            if (r.state != RUNNING) {
+                return;
+            }
+            l = listener;
+        }
+
+        if (l != null) {
+            l.pageUpdated(r);
+        }
+    }
+
+    /**
+     * the worker has stopped rendering a request, because it is done,
+     * stopped or cancelled
+     * @param failed whether rendering the request threw an exception
+     */
+    private void finished(Request r, long millis, boolean failed) {
+        RenderListener l = null;
+        synchronized (this) {
+            current = null;
+            r.millis += millis;
+            if (r.state == CANCELLED) {
+                wastedMillis += r.millis;
+            } else if (failed || !r.stopping || r.page == null ||
+                    (r.renderer != null && r.renderer.isFinished())) {
+                // finished, or stopped by something other than us.  A
+                // page that can't be read or drawn is done too, with
+                // whatever image it has
+                r.state = DONE;
+                completed++;
+                usefulMillis += r.millis;
+                l = listener;
+            } else {
+                preempted++;
+                r.stopping = false;
+                r.state = QUEUED;
+                queue.add(r);
+            }
+            notifyAll();
+        }
+
+        if (l != null) {
+            l.pageRendered(r);
+        }
+    }
+}
@@ -22,6 +22,8 @@ package com.sun.pdfview;
 
 import net.sf.andpdf.refs.WeakReference;
 
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Stack;
 
 import net.sf.andpdf.utils.BiCa;
@@ -56,12 +58,37 @@ import android.util.Log;
  */
 public class PDFRenderer extends BaseWatchable implements Runnable {
 
+    /**
+     * Told when part of the image has been drawn, so it can be shown
+     */
+    public interface UpdateListener {
+
+        /**
+         * Some more of the image has been drawn.  Called on the rendering
+         * thread, which waits for it to return, so anything that takes
+         * long, like drawing the image on the screen, should be posted
+         * elsewhere.
+         *
+         * @param renderer the renderer drawing the image
+         * @param finished whether the whole page has been drawn
+         */
+        void imageUpdated(PDFRenderer renderer, boolean finished);
+    }
+
     private static final String TAG = "APV.PDFRenderer";
     private int cmdCnt;
     /** the page we were generate from */
     private PDFPage page;
     /** where we are in the page's command list */
     private int currentCommand;
+    /** where we are in the page's display list, if it has one */
+    private PDFDisplayList.Cursor cursor;
+    /** the commands handed over by the page may be drawn up to here */
+    private int available;
+    /** the batches of commands the page hands over as they are parsed */
+    private final PDFCommandRing batches = new PDFCommandRing(BATCH_RING_SIZE);
+    /** the forms being drawn, outermost first */
+    final List<PDFPage> drawingForms = new ArrayList<PDFPage>();
     /** a weak reference to the image we render into.  For the image
      * to remain available, some other code must retain a strong reference to it.
      */
@@ -85,8 +112,19 @@ public class PDFRenderer extends BaseWatchable implements Runnable {
     private long then = 0;
     /** the sum of all the individual dirty regions since the last update */
     private RectF unupdatedRegion;
-    /** how long (in milliseconds) to wait between image updates */
+    /** whether any command has been drawn since the last update */
+    private boolean unupdated;
+    /** whether the last update was for the finished image */
+    private boolean updatedFinished;
+    /**
+     * how long (in milliseconds) to wait between image updates, unless
+     * there is a frame deadline
+     */
     public static final long UPDATE_DURATION = 200;
+    /** the listener to tell about image updates, or null */
+    private volatile UpdateListener listener;
+    /** the number of batches of commands that can wait to be drawn */
+    private static final int BATCH_RING_SIZE = 64;
     public static final float NOPHASE = -1000;
     public static final float NOWIDTH = -1000;
     public static final float NOLIMIT = -1000;
@@ -173,6 +211,8 @@ public class PDFRenderer extends BaseWatchable implements Runnable {
 
         // initialize the current command
         currentCommand = 0;
+        cursor = new PDFDisplayList.Cursor();
+        available = page.addConsumer(this);
     }
 
     /**
@@ -617,7 +657,8 @@ public class PDFRenderer extends BaseWatchable implements Runnable {
     /**
      * Draws the next command in the PDFPage to the buffered image.
      * The image will be notified about changes no less than every
-     * UPDATE_DURATION milliseconds.
+     * UPDATE_DURATION milliseconds, or at the end of every slice if
+     * there is a frame deadline.
      *
      * @return <ul><li>Watchable.RUNNING when there are commands to be processed
      *             <li>Watchable.NEEDS_DATA when there are no commands to be
@@ -646,48 +687,70 @@ public class PDFRenderer extends BaseWatchable implements Runnable {
         }
 
         // check if there are any commands to parse.  If there aren't,
-        // just return, but check if we'return really finished or not
-        if (currentCommand >= page.getCommandCount()) {
-            if (page.isFinished()) {
-                return Watchable.COMPLETED;
-            } else {
-                return Watchable.NEEDS_DATA;
+        // just return, but check if we'return really finished or not.  The
+        // page is asked whether it is finished before the commands are
+        // taken, since it may finish in between, before its last batch
+        // is handed over
+        if (currentCommand >= available) {
+            boolean finished = page.isFinished();
+            if (!nextBatch()) {
+                if (finished) {
+                    return Watchable.COMPLETED;
+                } else {
+                    return Watchable.NEEDS_DATA;
+                }
             }
         }
 
         // TODO [FHe]: display currentCommand / page.commandCount
 
         // find the current command
-        final PDFCmd cmd = page.getCommand(currentCommand++);
-        if (cmd == null) {
-            // uh oh.  Synchronization problem!
-            throw new PDFParseException("Command not found!");
-        }
-
-        if (!PDFParser.RELEASE) {
-            cmdCnt += 1;
-            Log.i(TAG, "CMD[" + cmdCnt + "]: " + cmd.toString() + ": " + cmd.getDetails());
-        }
         RectF dirtyRegion = null;
-        // execute the command
-        try {
-            dirtyRegion = cmd.execute(this);
-        } catch (Exception e) {
-            // TODO [FHe] remove if all commands are supported, now catch image not yet supp. excp.
-            Log.e(TAG, e.getMessage(), e);
+        final PDFDisplayList displayList = page.getDisplayList();
+        if (displayList != null) {
+            // replay the next compiled command
+            currentCommand++;
+            try {
+                dirtyRegion = displayList.execute(cursor, this);
+            } catch (PDFParseException e) {
+                throw e;
+            } catch (Exception e) {
+                Log.e(TAG, e.getMessage(), e);
+            }
+        } else {
+            final PDFCmd cmd = page.getCommand(currentCommand++);
+            if (cmd == null) {
+                // uh oh.  Synchronization problem!
+                throw new PDFParseException("Command not found!");
+            }
+
+            if (!PDFParser.RELEASE) {
+                cmdCnt += 1;
+                Log.i(TAG, "CMD[" + cmdCnt + "]: " + cmd.toString() + ": " + cmd.getDetails());
+            }
+            // execute the command
+            try {
+                dirtyRegion = cmd.execute(this);
+            } catch (Exception e) {
+                // TODO [FHe] remove if all commands are supported, now catch image not yet supp. excp.
+                Log.e(TAG, e.getMessage(), e);
 //	throw new PDFParseException(e.getMessage());
+            }
         }
 
         // append to the global dirty region
         globalDirtyRegion = addDirtyRegion(dirtyRegion, globalDirtyRegion);
         unupdatedRegion = addDirtyRegion(dirtyRegion, unupdatedRegion);
-
-        final long now = System.currentTimeMillis();
-        if (now > then || rendererFinished()) {
-            // now tell any observers, so they can repaint
-//            notifyObservers(bi, unupdatedRegion);
-            unupdatedRegion = null;
-            then = now + UPDATE_DURATION;
+        unupdated = true;
+
+        if (getFrameDeadline() == 0) {
+            final long now = System.currentTimeMillis();
+            if (now > then || rendererFinished()) {
+                // now tell any observers, so they can repaint
+//                notifyObservers(bi, unupdatedRegion);
+                publishUpdate();
+                then = now + UPDATE_DURATION;
+            }
         }
 
         // if we are based on a reference to a graphics, don't hold on to it
@@ -701,14 +764,93 @@ public class PDFRenderer extends BaseWatchable implements Runnable {
         return Watchable.RUNNING;
     }
 
+    /**
+     * Show what has been drawn in this slice
+     */
+    @Override
+    protected void sliceEnded() {
+        // the page may have been finished after the last command was drawn
+        if (unupdated || (!updatedFinished && rendererFinished())) {
+            publishUpdate();
+        }
+    }
+
+    /**
+     * tell the listener about what has been drawn since it was last told
+     */
+    private void publishUpdate() {
+        unupdatedRegion = null;
+        unupdated = false;
+        updatedFinished = rendererFinished();
+        UpdateListener l = listener;
+        if (l != null) {
+            l.imageUpdated(this, updatedFinished);
+        }
+    }
+
+    /**
+     * Set the listener to tell when part of the image has been drawn.
+     * Without a frame deadline it is told at most every UPDATE_DURATION
+     * milliseconds; with one, at the end of every slice that drew
+     * anything.
+     *
+     * @param listener the listener, or null for none
+     */
+    public void setUpdateListener(UpdateListener listener) {
+        this.listener = listener;
+    }
+
+    /**
+     * take the next batch of commands the page has handed over
+     * @return true if there are more commands to draw
+     */
+    private boolean nextBatch() {
+        int end;
+        while ((end = batches.poll()) >= 0) {
+            if (end > currentCommand) {
+                available = end;
+                return true;
+            }
+        }
+
+        // the page has more than the ring could hold, or is finished and
+        // hands nothing more over
+        if (batches.takeOverflow() || page.isFinished()) {
+            end = page.getCommandCount();
+            if (end > currentCommand) {
+                available = end;
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Hand a batch of commands over from the page, as it is parsed
+     * @param end the number of commands the page now has
+     */
+    void commandsAdded(int end) {
+        batches.offer(end);
+        dataAvailable();
+    }
+
+    @Override
+    protected boolean hasData() {
+        return batches.hasData();
+    }
+
     /**
      * Called when iteration has stopped
      */
     @Override
     public void cleanup() {
+        if (page != null) {
+            page.removeConsumer(this);
+        }
         page = null;
         state = null;
         stack = null;
+        cursor = null;
         globalDirtyRegion = null;
         lastShape = null;
 
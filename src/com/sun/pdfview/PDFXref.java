@@ -20,8 +20,6 @@
  */
 package com.sun.pdfview;
 
-import net.sf.andpdf.refs.SoftReference;
-
 /**
  * a cross reference representing a line in the PDF cross referencing
  * table.
@@ -32,14 +30,11 @@ import net.sf.andpdf.refs.SoftReference;
  * table.  The id will range from 0 to the size of the cross reference
  * table.
  * <p>
- * The second form is used in the Java representation of the cross reference
- * table.  In this form, the id is the file position of the start of the
- * object in the PDF file.  See the use of both of these in the 
- * PDFFile.dereference() method, which takes a PDFXref of the first form,
- * and uses (internally) a PDFXref of the second form.
- * <p>
- * This is an unhappy state of affairs, and should be fixed.  Fortunatly,
- * the two uses have already been factored out as two different methods.
+ * The second form describes a line of the cross reference table itself.
+ * In this form, the id is the file position of the start of the
+ * object in the PDF file.  PDFFile no longer keeps PDFXrefs of this form:
+ * its table is a PDFXrefTable, which stores the same fields in primitive
+ * arrays.  The constructors are kept for code that reads xref lines.
  *
  * @author Mike Wessler
  */
@@ -48,9 +43,6 @@ public class PDFXref {
     private int id;
     private int generation;
     private boolean compressed;
-    
-    // this field is only used in PDFFile.objIdx
-    private SoftReference<PDFObject> reference = null;
 
     /**
      * create a new PDFXref, given a parsed id and generation.
@@ -119,25 +111,4 @@ public class PDFXref {
     public boolean getCompressed() {
         return compressed;
     }
-
-
-    /**
-     * Get the object this reference refers to, or null if it hasn't been
-     * set.
-     * @return the object if it exists, or null if not
-     */
-    public PDFObject getObject() {
-        if (reference != null) {
-            return (PDFObject) reference.get();
-        }
-
-        return null;
-    }
-
-    /**
-     * Set the object this reference refers to.
-     */
-    public void setObject(PDFObject obj) {
-        this.reference = new SoftReference<PDFObject>(obj);
-    }
 }
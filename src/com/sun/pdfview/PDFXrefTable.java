@@ -0,0 +1,234 @@
+/*
+ * Copyright 2004 Sun Microsystems, Inc., 4150 Network Circle,
+ * Santa Clara, California 95054, U.S.A. All rights reserved.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package com.sun.pdfview;
+
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import net.sf.andpdf.refs.SoftReference;
+
+/**
+ * The cross reference table of a PDF file, indexed by object number.
+ * <p>
+ * Rather than one PDFXref object per entry, the table keeps its entries in
+ * a few parallel primitive arrays, laid out the same way as the fields of
+ * a cross reference stream: a type, a position and a generation.  For an
+ * object that lives directly in the file the position is the file offset
+ * of the object, and the generation is its generation number.  For an
+ * object compressed into an object stream, the position is the object
+ * number of the stream and the generation is the index of the object
+ * within that stream.
+ * <p>
+ * The parsed objects are kept in a separate array of soft references, so
+ * that resolving an object that has already been parsed is a single array
+ * read.  The arrays grow geometrically, so filling in a table one xref
+ * subsection at a time costs amortized constant time per entry.
+ * <p>
+ * A file opened with a lazy xref may still be adding older sections to the
+ * table while objects are being resolved, so the entries are only read
+ * and written holding the lock on the table.  The object slots need no
+ * lock, and may be read and written by any thread at any time.
+ */
+class PDFXrefTable {
+
+    /** an object number with no entry in any cross reference section */
+    public static final byte UNDEFINED = 0;
+    /** an entry for a free (deleted) object */
+    public static final byte FREE = 1;
+    /** an entry for an object stored directly in the file */
+    public static final byte IN_USE = 2;
+    /** an entry for an object stored in an object stream */
+    public static final byte COMPRESSED = 3;
+
+    /** the type of each entry */
+    private byte[] types;
+    /** the file offset, or the object stream number, of each entry */
+    private int[] positions;
+    /** the generation, or the index in the object stream, of each entry */
+    private int[] generations;
+    /** the parsed object for each entry, once it has been read */
+    private volatile AtomicReferenceArray<SoftReference<PDFObject>> objects;
+
+    /**
+     * Create a new, empty cross reference table
+     *
+     * @param capacity the number of entries to allocate space for
+     */
+    public PDFXrefTable(int capacity) {
+        if (capacity < 1) {
+            capacity = 1;
+        }
+
+        types = new byte[capacity];
+        positions = new int[capacity];
+        generations = new int[capacity];
+        objects = new AtomicReferenceArray<SoftReference<PDFObject>>(capacity);
+    }
+
+    /**
+     * Create a cross reference table from its arrays, as read back from a
+     * file.  The arrays must all be the same length, and are used as they
+     * are, not copied.
+     */
+    PDFXrefTable(byte[] types, int[] positions, int[] generations) {
+        this.types = types;
+        this.positions = positions;
+        this.generations = generations;
+        objects = new AtomicReferenceArray<SoftReference<PDFObject>>(types.length);
+    }
+
+    /**
+     * Get the number of object numbers this table has room for.  Every
+     * object number below this is either defined or UNDEFINED.
+     */
+    public int size() {
+        return types.length;
+    }
+
+    /**
+     * Make sure the table has room for the given number of entries,
+     * growing it by at least half its current size if it doesn't.  Holds
+     * the table's lock, like setObject(), so no object is set in the old
+     * arrays while they are copied.
+     */
+    public synchronized void ensureCapacity(int capacity) {
+        int size = types.length;
+        if (capacity <= size) {
+            return;
+        }
+
+        int newSize = size + (size >> 1);
+        if (newSize < capacity) {
+            newSize = capacity;
+        }
+
+        byte[] ntypes = new byte[newSize];
+        System.arraycopy(types, 0, ntypes, 0, size);
+        int[] npositions = new int[newSize];
+        System.arraycopy(positions, 0, npositions, 0, size);
+        int[] ngenerations = new int[newSize];
+        System.arraycopy(generations, 0, ngenerations, 0, size);
+        AtomicReferenceArray<SoftReference<PDFObject>> nobjects =
+                new AtomicReferenceArray<SoftReference<PDFObject>>(newSize);
+        for (int i = 0; i < size; i++) {
+            nobjects.set(i, objects.get(i));
+        }
+
+        types = ntypes;
+        positions = npositions;
+        generations = ngenerations;
+        objects = nobjects;
+    }
+
+    /**
+     * Get the type of the entry for an object number: one of UNDEFINED,
+     * FREE, IN_USE or COMPRESSED.
+     */
+    public byte getType(int id) {
+        if (id < 0 || id >= types.length) {
+            return UNDEFINED;
+        }
+        return types[id];
+    }
+
+    /**
+     * Get the file offset of an IN_USE object, or the object number of
+     * the stream holding a COMPRESSED object.
+     */
+    public int getPosition(int id) {
+        return positions[id];
+    }
+
+    /**
+     * Get the generation of an IN_USE object, or the index of a COMPRESSED
+     * object within its object stream.
+     */
+    public int getGeneration(int id) {
+        return generations[id];
+    }
+
+    /**
+     * Define an entry, unless the object number is already defined.  Cross
+     * reference sections are read newest first, so the first definition of
+     * an object number is the one that counts.
+     *
+     * @param id the object number
+     * @param type FREE, IN_USE or COMPRESSED
+     * @param position the file offset, or the object stream number
+     * @param generation the generation, or the index in the object stream
+     * @return true if the entry was defined, false if it already existed
+     */
+    public boolean define(int id, byte type, int position, int generation) {
+        ensureCapacity(id + 1);
+        if (types[id] != UNDEFINED) {
+            return false;
+        }
+
+        types[id] = type;
+        positions[id] = position;
+        generations[id] = generation;
+        return true;
+    }
+
+    /**
+     * Set an entry, replacing any earlier definition.  Used when the table
+     * of a damaged file is rebuilt by scanning it from start to end, where
+     * the last definition of an object number is the one that counts.
+     *
+     * @param id the object number
+     * @param type FREE, IN_USE or COMPRESSED
+     * @param position the file offset, or the object stream number
+     * @param generation the generation, or the index in the object stream
+     */
+    public void put(int id, byte type, int position, int generation) {
+        ensureCapacity(id + 1);
+        types[id] = type;
+        positions[id] = position;
+        generations[id] = generation;
+    }
+
+    /**
+     * Get the object parsed for an object number, or null if it hasn't
+     * been parsed (or has since been collected).
+     */
+    public PDFObject getObject(int id) {
+        AtomicReferenceArray<SoftReference<PDFObject>> objs = objects;
+        if (id < 0 || id >= objs.length()) {
+            return null;
+        }
+
+        SoftReference<PDFObject> ref = objs.get(id);
+        if (ref != null) {
+            return ref.get();
+        }
+        return null;
+    }
+
+    /**
+     * Set the object parsed for an object number.  Holds the table's lock,
+     * which ensureCapacity() holds while it copies the objects to a bigger
+     * array, so the object isn't set in the old one and lost.  Getting an
+     * object takes no lock.
+     */
+    public synchronized void setObject(int id, PDFObject obj) {
+        AtomicReferenceArray<SoftReference<PDFObject>> objs = objects;
+        if (id >= 0 && id < objs.length()) {
+            objs.set(id, new SoftReference<PDFObject>(obj));
+        }
+    }
+}
@@ -20,7 +20,8 @@
  */
 package com.sun.pdfview.decode;
 
-import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
 
 import net.sf.andpdf.nio.ByteBuffer;
 
@@ -30,125 +31,231 @@ import com.sun.pdfview.PDFParseException;
 
 /**
  * decode ASCII85 text into a byte array.
+ * <p>
+ * Characters are classified through a table rather than by comparing
+ * them.  A buffer is decoded straight from its array in two passes: the
+ * first finds the end and counts the digits and 'z's, so the output is
+ * allocated at exactly its size, and the second decodes into it.
  * 
  * @author Mike Wessler
  */
 public class ASCII85Decode {
 
-    private ByteBuffer buf;
+    /** what each character is: a digit from 0 to 84, or one of these */
+    private static final byte WHITESPACE = -1;
+    private static final byte ZEROS = -2;
+    private static final byte END = -3;
+    private static final byte BAD = -4;
+    private static final byte[] CLASSES = new byte[256];
 
-    /**
-     * initialize the decoder with byte buffer in ASCII85 format
-     */
-    private ASCII85Decode(ByteBuffer buf) {
-        this.buf = buf;
-    }
-
-    /**
-     * get the next character from the input.
-     * @return the next character, or -1 if at end of stream
-     */
-    private int nextChar() {
-        // skip whitespace
-        // returns next character, or -1 if end of stream
-        while (buf.remaining() > 0) {
-            char c = (char) buf.get();
-
-            if (!PDFFile.isWhiteSpace(c)) {
-                return c;
+    static {
+        for (int c = 0; c < 256; c++) {
+            if (c >= '!' && c <= 'u') {
+                CLASSES[c] = (byte) (c - '!');
+            } else if (PDFFile.isWhiteSpace(c)) {
+                CLASSES[c] = WHITESPACE;
+            } else if (c == 'z') {
+                CLASSES[c] = ZEROS;
+            } else if (c == '~') {
+                CLASSES[c] = END;
+            } else {
+                CLASSES[c] = BAD;
             }
         }
+    }
 
-        // EOF reached
-        return -1;
+    /** Not instantiable */
+    private ASCII85Decode() {
     }
 
     /**
-     * decode the next five ASCII85 characters into up to four decoded
-     * bytes.  Return false when finished, or true otherwise.
+     * decode an array of bytes in ASCII85 format.
+     * <p>
+     * In ASCII85 format, every 5 characters represents 4 decoded
+     * bytes in base 85.  The entire stream can contain whitespace,
+     * and ends in the characters '~&gt;'.
      *
-     * @param baos the ByteArrayOutputStream to write output to, set to the
-     *        correct position
-     * @return false when finished, or true otherwise.
+     * @param buf the encoded ASCII85 characters in a byte buffer
+     * @param params parameters to the decoder (ignored)
+     * @return the decoded bytes
      */
-    private boolean decode5(ByteArrayOutputStream baos)
+    public static ByteBuffer decode(ByteBuffer buf, PDFObject params)
             throws PDFParseException {
-        // stream ends in ~>
-        int[] five = new int[5];
+        // start from the beginning of the data
+        buf.rewind();
+
+        byte[] data;
+        int start;
+        int length = buf.remaining();
+        if (buf.hasArray()) {
+            data = buf.array();
+            start = buf.arrayOffset();
+        } else {
+            data = new byte[length];
+            buf.get(data);
+            start = 0;
+        }
+        int end = start + length;
+
+        // find the end, and count what comes before it
+        int digits = 0;
+        int zeros = 0;
         int i;
-        for (i = 0; i < 5; i++) {
-            five[i] = nextChar();
-            if (five[i] == '~') {
-                if (nextChar() == '>') {
-                    break;
-                } else {
-                    throw new PDFParseException("Bad character in ASCII85Decode: not ~>");
-                }
-            } else if (five[i] >= '!' && five[i] <= 'u') {
-                five[i] -= '!';
-            } else if (five[i] == 'z') {
-                if (i == 0) {
-                    five[i] = 0;
-                    i = 4;
-                } else {
+        for (i = start; i < end; i++) {
+            int c = data[i] & 0xff;
+            byte type = CLASSES[c];
+            if (type >= 0) {
+                digits++;
+            } else if (type == ZEROS) {
+                if (digits % 5 != 0) {
                     throw new PDFParseException("Inappropriate 'z' in ASCII85Decode");
                 }
-            } else {
-                throw new PDFParseException("Bad character in ASCII85Decode: " + five[i] + " (" + (char) five[i] + ")");
+                zeros++;
+            } else if (type == END) {
+                break;
+            } else if (type == BAD) {
+                throw new PDFParseException("Bad character in ASCII85Decode: " + c + " (" + (char) c + ")");
             }
         }
-
-        if (i > 0) {
-            i -= 1;
+        if (i == end) {
+            throw new PDFParseException("Short stream in ASCII85Decode: no ~>");
+        }
+        int j = i + 1;
+        while (j < end && CLASSES[data[j] & 0xff] == WHITESPACE) {
+            j++;
+        }
+        if (j == end || data[j] != '>') {
+            throw new PDFParseException("Bad character in ASCII85Decode: not ~>");
         }
 
-        int value =
-                five[0] * 85 * 85 * 85 * 85 +
-                five[1] * 85 * 85 * 85 +
-                five[2] * 85 * 85 +
-                five[3] * 85 +
-                five[4];
+        // a last group of n digits makes n - 1 bytes
+        int rest = digits % 5;
+        byte[] out = new byte[(digits / 5 + zeros) * 4 +
+                ((rest > 0) ? rest - 1 : 0)];
 
-        for (int j = 0; j < i; j++) {
-            int shift = 8 * (3 - j);
-            baos.write((byte) ((value >> shift) & 0xff));
+        int o = 0;
+        int value = 0;
+        int n = 0;
+        for (j = start; j < i; j++) {
+            byte type = CLASSES[data[j] & 0xff];
+            if (type >= 0) {
+                value = value * 85 + type;
+                if (++n == 5) {
+                    out[o++] = (byte) (value >> 24);
+                    out[o++] = (byte) (value >> 16);
+                    out[o++] = (byte) (value >> 8);
+                    out[o++] = (byte) value;
+                    value = 0;
+                    n = 0;
+                }
+            } else if (type == ZEROS) {
+                // the output is zeros already
+                o += 4;
+            }
+        }
+        if (n > 0) {
+            // a short last group is padded with the highest digit
+            for (int k = n; k < 5; k++) {
+                value = value * 85 + 84;
+            }
+            for (int k = 0; k < n - 1; k++) {
+                out[o++] = (byte) (value >> (8 * (3 - k)));
+            }
         }
 
-        return (i == 4);
+        return ByteBuffer.wrap(out);
     }
 
     /**
-     * decode the bytes
-     * @return the decoded bytes
+     * decode a stream of bytes in ASCII85 format as it is read.
+     *
+     * @param in the encoded ASCII85 characters
+     * @param params parameters to the decoder (ignored)
+     * @return a stream of the decoded bytes
      */
-    private ByteBuffer decode() throws PDFParseException {
-        // start from the beginning of the data
-        buf.rewind();
+    public static InputStream decode(InputStream in, PDFObject params) {
+        return new Stream(in);
+    }
+
+    /**
+     * decodes ASCII85 as it is read, a group of five characters at a time
+     */
+    private static class Stream extends DecodeInputStream {
+
+        /** how many bytes are decoded at once, a multiple of four */
+        private static final int OUTPUT_SIZE = 1024;
 
-        // allocate the output buffer
-        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        /** whether the end characters have been read */
+        private boolean ended;
 
-        // decode the bytes 
-        while (decode5(baos)) {
+        Stream(InputStream in) {
+            super(in, OUTPUT_SIZE);
         }
 
-        return ByteBuffer.wrap(baos.toByteArray());
-    }
+        @Override
+        protected boolean fill() throws IOException {
+            while (!ended && outCount < out.length) {
+                decode5();
+            }
+            return !ended;
+        }
 
-    /**
-     * decode an array of bytes in ASCII85 format.
-     * <p>
-     * In ASCII85 format, every 5 characters represents 4 decoded
-     * bytes in base 85.  The entire stream can contain whitespace,
-     * and ends in the characters '~&gt;'.
-     *
-     * @param buf the encoded ASCII85 characters in a byte buffer
-     * @param params parameters to the decoder (ignored)
-     * @return the decoded bytes
-     */
-    public static ByteBuffer decode(ByteBuffer buf, PDFObject params)
-            throws PDFParseException {
-        ASCII85Decode me = new ASCII85Decode(buf);
-        return me.decode();
+        /**
+         * decode the next five characters into four bytes, or a last
+         * group of fewer characters into one byte fewer than it has
+         */
+        private void decode5() throws IOException {
+            int value = 0;
+            int i;
+            for (i = 0; i < 5; i++) {
+                int c = nextChar();
+                byte type = (c < 0) ? BAD : CLASSES[c];
+                if (type >= 0) {
+                    value = value * 85 + type;
+                } else if (type == END) {
+                    if (nextChar() != '>') {
+                        throw new PDFParseException("Bad character in ASCII85Decode: not ~>");
+                    }
+                    ended = true;
+                    break;
+                } else if (type == ZEROS && i == 0) {
+                    // four zeros
+                    out[outCount++] = 0;
+                    out[outCount++] = 0;
+                    out[outCount++] = 0;
+                    out[outCount++] = 0;
+                    return;
+                } else if (type == ZEROS) {
+                    throw new PDFParseException("Inappropriate 'z' in ASCII85Decode");
+                } else {
+                    throw new PDFParseException("Bad character in ASCII85Decode: " + c + " (" + (char) c + ")");
+                }
+            }
+
+            if (i == 0) {
+                return;
+            }
+            // a short last group is padded with the highest digit
+            for (int j = i; j < 5; j++) {
+                value = value * 85 + 84;
+            }
+            for (int j = 0; j < i - 1; j++) {
+                out[outCount++] = (byte) (value >> (8 * (3 - j)));
+            }
+        }
+
+        /**
+         * get the next character that isn't whitespace
+         * @return the character, or -1 at the end of the stream
+         */
+        private int nextChar() throws IOException {
+            int c;
+            while ((c = nextIn()) >= 0) {
+                if (CLASSES[c] != WHITESPACE) {
+                    return c;
+                }
+            }
+            return -1;
+        }
     }
 }
@@ -21,7 +21,8 @@
 
 package com.sun.pdfview.decode;
 
-import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
 
 import net.sf.andpdf.nio.ByteBuffer;
 
@@ -31,80 +32,42 @@ import com.sun.pdfview.PDFFile;
 
 /**
  * decode an array of hex nybbles into a byte array
+ * <p>
+ * Characters are classified through a table rather than by comparing
+ * them.  A buffer is decoded straight from its array in two passes: the
+ * first finds the end and counts the digits, so the output is allocated
+ * at exactly its size, and the second decodes into it.
  *
  * @author Mike Wessler
  */
 public class ASCIIHexDecode {
-    private ByteBuffer buf;
-    
-    /**
-     * initialize the decoder with an array of bytes in ASCIIHex format
-     */
-    private ASCIIHexDecode(ByteBuffer buf) {
-	this.buf = buf;
-    }
 
-    /**
-     * get the next character from the input
-     * @return a number from 0-15, or -1 for the end character
-     */
-    private int readHexDigit() throws PDFParseException {    
-        // read until we hit a non-whitespace character or the
-        // end of the stream
-        while (buf.remaining() > 0) {
-            int c = (int) buf.get();
-        
-            // see if we found a useful character
-            if (!PDFFile.isWhiteSpace((char) c)) {
-                if (c >= '0' && c <= '9') {
-                    c -= '0';
-                } else if (c >= 'a' && c <= 'f') {
-                    c -= 'a' - 10;
-                } else if (c >= 'A' && c <= 'F') {
-                    c -= 'A' - 10;
-                } else if (c == '>') {
-                    c = -1;
-                } else {
-                    // unknown character
-                    throw new PDFParseException("Bad character " + c + 
-                                                "in ASCIIHex decode");
-                }
-                
-                // return the useful character
-                return c;
+    /** what each character is: a digit from 0 to 15, or one of these */
+    private static final byte WHITESPACE = -1;
+    private static final byte END = -2;
+    private static final byte BAD = -3;
+    private static final byte[] CLASSES = new byte[256];
+
+    static {
+        for (int c = 0; c < 256; c++) {
+            if (c >= '0' && c <= '9') {
+                CLASSES[c] = (byte) (c - '0');
+            } else if (c >= 'a' && c <= 'f') {
+                CLASSES[c] = (byte) (c - 'a' + 10);
+            } else if (c >= 'A' && c <= 'F') {
+                CLASSES[c] = (byte) (c - 'A' + 10);
+            } else if (PDFFile.isWhiteSpace(c)) {
+                CLASSES[c] = WHITESPACE;
+            } else if (c == '>') {
+                CLASSES[c] = END;
+            } else {
+                CLASSES[c] = BAD;
             }
         }
-        
-        // end of stream reached
-	throw new PDFParseException("Short stream in ASCIIHex decode");
     }
 
-    /**
-     * decode the array
-     * @return the decoded bytes
-     */
-    private ByteBuffer decode() throws PDFParseException {
-        // start at the beginning of the buffer
-        buf.rewind();
-        
-        // allocate the output buffer
-        ByteArrayOutputStream baos = new ByteArrayOutputStream();
-        
-        while (true) {
-	    int first = readHexDigit();
-	    int second = readHexDigit();
-	    
-            if (first == -1) {
-                break;
-	    } else if (second == -1) {
-		baos.write((byte) (first << 4));
-		break;
-	    } else {
-                baos.write((byte) ((first << 4) + second));
-	    }
-	}
-        
-        return ByteBuffer.wrap(baos.toByteArray());
+    /** Not instantiable */
+    private ASCIIHexDecode() {
     }
 
     /**
@@ -122,7 +85,126 @@ public class ASCIIHexDecode {
     public static ByteBuffer decode(ByteBuffer buf, PDFObject params)
 	throws PDFParseException 
     {
-	ASCIIHexDecode me = new ASCIIHexDecode(buf);
-	return me.decode();
+        // start at the beginning of the buffer
+        buf.rewind();
+
+        byte[] data;
+        int start;
+        int length = buf.remaining();
+        if (buf.hasArray()) {
+            data = buf.array();
+            start = buf.arrayOffset();
+        } else {
+            data = new byte[length];
+            buf.get(data);
+            start = 0;
+        }
+        int end = start + length;
+
+        // find the end, and count the digits before it
+        int digits = 0;
+        int i;
+        for (i = start; i < end; i++) {
+            int c = data[i] & 0xff;
+            byte type = CLASSES[c];
+            if (type >= 0) {
+                digits++;
+            } else if (type == END) {
+                break;
+            } else if (type == BAD) {
+                throw new PDFParseException("Bad character " + c +
+                                            "in ASCIIHex decode");
+            }
+        }
+        if (i == end) {
+            throw new PDFParseException("Short stream in ASCIIHex decode");
+        }
+
+        // an odd last digit is followed by a 0
+        byte[] out = new byte[(digits + 1) / 2];
+        int o = 0;
+        int high = -1;
+        for (int j = start; j < i; j++) {
+            byte type = CLASSES[data[j] & 0xff];
+            if (type < 0) {
+                continue;
+            } else if (high < 0) {
+                high = type << 4;
+            } else {
+                out[o++] = (byte) (high | type);
+                high = -1;
+            }
+        }
+        if (high >= 0) {
+            out[o] = (byte) high;
+        }
+
+        return ByteBuffer.wrap(out);
+    }
+
+    /**
+     * decode a stream of bytes in ASCIIHex format as it is read.
+     *
+     * @param in the encoded ASCIIHex characters
+     * @param params parameters to the decoder (ignored)
+     * @return a stream of the decoded bytes
+     */
+    public static InputStream decode(InputStream in, PDFObject params) {
+        return new Stream(in);
+    }
+
+    /**
+     * decodes ASCIIHex as it is read
+     */
+    private static class Stream extends DecodeInputStream {
+
+        /** how many bytes are decoded at once */
+        private static final int OUTPUT_SIZE = 1024;
+
+        /** whether the end character has been read */
+        private boolean ended;
+
+        Stream(InputStream in) {
+            super(in, OUTPUT_SIZE);
+        }
+
+        @Override
+        protected boolean fill() throws IOException {
+            while (!ended && outCount < out.length) {
+                int first = readHexDigit();
+                if (first == -1) {
+                    ended = true;
+                    break;
+                }
+                int second = readHexDigit();
+                if (second == -1) {
+                    out[outCount++] = (byte) (first << 4);
+                    ended = true;
+                    break;
+                }
+                out[outCount++] = (byte) ((first << 4) + second);
+            }
+            return !ended;
+        }
+
+        /**
+         * get the next character from the input
+         * @return a number from 0-15, or -1 for the end character
+         */
+        private int readHexDigit() throws IOException {
+            int c;
+            while ((c = nextIn()) >= 0) {
+                byte type = CLASSES[c];
+                if (type >= 0) {
+                    return type;
+                } else if (type == END) {
+                    return -1;
+                } else if (type == BAD) {
+                    throw new PDFParseException("Bad character " + c +
+                            "in ASCIIHex decode");
+                }
+            }
+            throw new PDFParseException("Short stream in ASCIIHex decode");
+        }
     }
 }
@@ -0,0 +1,138 @@
+/*
+ * Copyright 2004 Sun Microsystems, Inc., 4150 Network Circle,
+ * Santa Clara, California 95054, U.S.A. All rights reserved.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package com.sun.pdfview.decode;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * A decoder that pulls its input from another stream as it is read, so a
+ * chain of filters decodes through a small buffer for each filter instead
+ * of a whole buffer.  Subclasses decode a little more into the output
+ * buffer each time it runs dry.
+ */
+abstract class DecodeInputStream extends InputStream {
+
+    /** how much input is read from the source at once */
+    private static final int INPUT_SIZE = 4096;
+
+    /** the source of the encoded bytes */
+    private final InputStream in;
+    /** the encoded bytes read from the source, but not yet decoded */
+    private final byte[] inBuf = new byte[INPUT_SIZE];
+    private int inPos;
+    private int inCount;
+    /** whether the source has no more bytes */
+    private boolean inEnded;
+
+    /** the decoded bytes, from outPos to outCount not yet read */
+    protected final byte[] out;
+    protected int outPos;
+    protected int outCount;
+    /** whether there is nothing more to decode */
+    private boolean finished;
+
+    /**
+     * @param in the source of the encoded bytes
+     * @param outSize the size of the output buffer
+     */
+    protected DecodeInputStream(InputStream in, int outSize) {
+        this.in = in;
+        this.out = new byte[outSize];
+    }
+
+    /**
+     * Decode some more bytes into the output buffer, which is empty, from
+     * outCount = 0.
+     *
+     * @return false if there is nothing more to decode
+     */
+    protected abstract boolean fill() throws IOException;
+
+    /**
+     * Get the next encoded byte
+     *
+     * @return the byte, from 0 to 255, or -1 at the end of the source
+     */
+    protected final int nextIn() throws IOException {
+        if (inPos == inCount) {
+            if (inEnded) {
+                return -1;
+            }
+            inPos = 0;
+            inCount = in.read(inBuf, 0, inBuf.length);
+            if (inCount <= 0) {
+                inCount = 0;
+                inEnded = true;
+                return -1;
+            }
+        }
+        return inBuf[inPos++] & 0xff;
+    }
+
+    @Override
+    public int read() throws IOException {
+        if (outPos == outCount && !refill()) {
+            return -1;
+        }
+        return out[outPos++] & 0xff;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (len == 0) {
+            return 0;
+        }
+        if (outPos == outCount && !refill()) {
+            return -1;
+        }
+        int n = Math.min(len, outCount - outPos);
+        System.arraycopy(out, outPos, b, off, n);
+        outPos += n;
+        return n;
+    }
+
+    @Override
+    public int available() {
+        return outCount - outPos;
+    }
+
+    @Override
+    public void close() throws IOException {
+        in.close();
+    }
+
+    /**
+     * decode until there are bytes to read, or nothing is left
+     * @return true if there are bytes to read
+     */
+    private boolean refill() throws IOException {
+        while (!finished) {
+            outPos = 0;
+            outCount = 0;
+            if (!fill()) {
+                finished = true;
+            }
+            if (outCount > 0) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
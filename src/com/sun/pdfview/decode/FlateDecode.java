@@ -20,8 +20,8 @@
  */
 package com.sun.pdfview.decode;
 
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.util.zip.DataFormatException;
 import java.util.zip.Inflater;
 
@@ -32,25 +32,48 @@ import com.sun.pdfview.PDFParseException;
 
 /**
  * decode a deFlated byte array
+ * <p>
+ * Each thread keeps one Inflater, reset between streams, rather than
+ * making one per stream.  A stream decoded as it is read takes the
+ * thread's Inflater until it is closed, or makes its own if another
+ * stream has it.  The output goes straight into an array sized
+ * from what the stream's dictionary says it decodes to: /DL, or the size
+ * of the image for an image.  When the dictionary doesn't say, the size
+ * is guessed from the compressed length, and the array grows as needed.
  *
  * @author Mike Wessler
  * @author Joerg Jahnke (joerg.jahnke@users.sourceforge.net)
  */
 public class FlateDecode {
 
+    /** how many times its compressed length a stream is guessed to grow */
+    private static final int GUESSED_RATIO = 4;
+    /** the smallest output array to start with */
+    private static final int MIN_SIZE = 1024;
+    /** the most a Flate stream can grow, 1032 times */
+    private static final int MAX_RATIO = 1032;
+
+    /** how much compressed input a stream reads at once */
+    private static final int INPUT_SIZE = 4096;
+
+    /** an Inflater for each thread, kept between streams, or null */
+    private static final ThreadLocal<Inflater> inflaters =
+            new ThreadLocal<Inflater>();
+
     /**
      * decode a byte buffer in Flate format.
      * <p>
      * Flate is a built-in Java algorithm.  It's part of the java.util.zip
      * package.
      *
+     * @param dict the dictionary of the stream, for the size it decodes to
      * @param buf the deflated input buffer
      * @param params parameters to the decoder (unused)
      * @return the decoded (inflated) bytes
      */
     public static ByteBuffer decode(PDFObject dict, ByteBuffer buf,
             PDFObject params) throws IOException {
-        Inflater inf = new Inflater(false);
+        Inflater inf = takeInflater();
 
         int bufSize = buf.remaining();
 
@@ -69,19 +92,24 @@ public class FlateDecode {
             inf.setInput(data);
         }
 
-
-        // output to a byte-array output stream, since we don't
-        // know how big the output will be
-        ByteArrayOutputStream baos = new ByteArrayOutputStream();
-        byte[] decomp = new byte[bufSize];
-        int read = 0;
+        // inflate straight into the output, which only needs copying if
+        // its size was guessed wrong
+        byte[] decomp = new byte[getSizeHint(dict, params, bufSize)];
+        int size = 0;
 
         try {
             while (!inf.finished()) {
-                read = inf.inflate(decomp);
+                if (size == decomp.length) {
+                    byte[] grown = new byte[decomp.length * 2];
+                    System.arraycopy(decomp, 0, grown, 0, size);
+                    decomp = grown;
+                }
+
+                int read = inf.inflate(decomp, size, decomp.length - size);
                 if (read <= 0) {
-//		    System.out.println("Read = " + read + "! Params: " + params);
-                    if (inf.needsDictionary()) {
+                    if (inf.finished()) {
+                        break;
+                    } else if (inf.needsDictionary()) {
                         throw new PDFParseException("Don't know how to ask for a dictionary in FlateDecode");
                     } else {
 //			System.out.println("Inflate data length=" + buf.remaining());
@@ -89,14 +117,22 @@ public class FlateDecode {
                         //			throw new PDFParseException("Inflater wants more data... but it's already here!");
                     }
                 }
-                baos.write(decomp, 0, read);
+                size += read;
             }
         } catch (DataFormatException dfe) {
             throw new PDFParseException("Data format exception:" + dfe.getMessage());
+        } finally {
+            giveInflater(inf);
         }
 
-        // return the output as a byte buffer
-        ByteBuffer outBytes = ByteBuffer.wrap(baos.toByteArray());
+        // return the output as a byte buffer, as big as what it holds, so
+        // it needn't be copied again to get at its array
+        if (size != decomp.length) {
+            byte[] exact = new byte[size];
+            System.arraycopy(decomp, 0, exact, 0, size);
+            decomp = exact;
+        }
+        ByteBuffer outBytes = ByteBuffer.wrap(decomp);
 
         // undo a predictor algorithm, if any was used
         if (params != null && params.getDictionary().containsKey("Predictor")) {
@@ -108,4 +144,292 @@ public class FlateDecode {
 
         return outBytes;
     }
+
+    /**
+     * decode a stream of bytes in Flate format as it is read.  If the
+     * stream ends before the compressed data does, the decoded stream
+     * ends there too.
+     *
+     * @param in the deflated input
+     * @param params parameters to the decoder, for the predictor
+     * @return a stream of the decoded (inflated) bytes
+     */
+    public static InputStream decode(InputStream in, PDFObject params)
+            throws IOException {
+        InputStream out = new Stream(in);
+
+        // undo a predictor algorithm, if any was used
+        if (params != null && params.getDictionary().containsKey("Predictor")) {
+            Predictor predictor = Predictor.getPredictor(params);
+            if (predictor != null) {
+                out = predictor.unpredict(out);
+            }
+        }
+
+        return out;
+    }
+
+    /**
+     * take this thread's Inflater, or make one if it is taken
+     */
+    private static Inflater takeInflater() {
+        Inflater inf = inflaters.get();
+        if (inf == null) {
+            return new Inflater(false);
+        }
+        inflaters.set(null);
+        return inf;
+    }
+
+    /**
+     * give an Inflater back, to be kept by this thread if it hasn't one
+     */
+    private static void giveInflater(Inflater inf) {
+        // let go of the input
+        inf.reset();
+        if (inflaters.get() == null) {
+            inflaters.set(inf);
+        } else {
+            inf.end();
+        }
+    }
+
+    /**
+     * inflates as it is read
+     */
+    private static class Stream extends InputStream {
+
+        /** the deflated input */
+        private final InputStream in;
+        /** the input given to the inflater */
+        private final byte[] inBuf = new byte[INPUT_SIZE];
+        /** the inflater, or null once the stream is done */
+        private Inflater inf = takeInflater();
+
+        Stream(InputStream in) {
+            this.in = in;
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] b = new byte[1];
+            return (read(b, 0, 1) == -1) ? -1 : b[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) {
+                return 0;
+            }
+            while (inf != null) {
+                int read;
+                try {
+                    read = inf.inflate(b, off, len);
+                } catch (DataFormatException dfe) {
+                    done();
+                    throw new PDFParseException("Data format exception:" + dfe.getMessage());
+                }
+                if (read > 0) {
+                    return read;
+                } else if (inf.finished()) {
+                    done();
+                } else if (inf.needsDictionary()) {
+                    done();
+                    throw new PDFParseException("Don't know how to ask for a dictionary in FlateDecode");
+                } else {
+                    int count = in.read(inBuf, 0, inBuf.length);
+                    if (count <= 0) {
+                        // short of the end of the compressed data
+                        done();
+                    } else {
+                        inf.setInput(inBuf, 0, count);
+                    }
+                }
+            }
+            return -1;
+        }
+
+        @Override
+        public void close() throws IOException {
+            done();
+            in.close();
+        }
+
+        /**
+         * give the inflater back
+         */
+        private void done() {
+            if (inf != null) {
+                giveInflater(inf);
+                inf = null;
+            }
+        }
+    }
+
+    /**
+     * guess how big a stream is once inflated
+     * @param dict the dictionary of the stream
+     * @param params parameters to the decoder, or null
+     * @param compressed the length of the stream
+     */
+    static int getSizeHint(PDFObject dict, PDFObject params,
+            int compressed) throws IOException {
+        int guess = (int) Math.min((long) compressed * GUESSED_RATIO,
+                Integer.MAX_VALUE / 2);
+        guess = Math.max(guess, MIN_SIZE);
+
+        // what the dictionary says is the size at the end of all the
+        // filters, which is only ours if we are the last
+        if (dict == null || !isLastFilter(dict)) {
+            return guess;
+        }
+
+        int size = 0;
+        PDFObject dl = dict.getDictRef("DL");
+        if (dl != null && dl.getType() == PDFObject.NUMBER) {
+            // the size once the predictor is undone; the PNG predictors
+            // put a byte in front of every row before that
+            long dlSize = dl.getIntValue();
+            int rowSize = getPngRowSize(params);
+            if (dlSize > 0 && rowSize > 0) {
+                dlSize += (dlSize + rowSize - 1) / rowSize;
+            }
+            size = (dlSize < Integer.MAX_VALUE) ? (int) dlSize : 0;
+        } else {
+            size = getImageSize(dict, params);
+        }
+
+        // a size the stream can't inflate to is no use
+        if (size <= 0 || (long) size > (long) compressed * MAX_RATIO) {
+            return guess;
+        }
+        return size;
+    }
+
+    /**
+     * get whether FlateDecode is the last filter of a stream
+     */
+    private static boolean isLastFilter(PDFObject dict) throws IOException {
+        PDFObject filter = dict.getDictRef("Filter");
+        if (filter == null) {
+            return false;
+        }
+        if (filter.getType() == PDFObject.ARRAY) {
+            PDFObject[] ary = filter.getArray();
+            if (ary.length == 0) {
+                return false;
+            }
+            filter = ary[ary.length - 1];
+        }
+        String name = filter.getStringValue();
+        return "FlateDecode".equals(name) || "Fl".equals(name);
+    }
+
+    /**
+     * get the size of a row of a PNG predictor, without the byte in front
+     * of it
+     * @return the size in bytes, or 0 if there is no PNG predictor
+     */
+    private static int getPngRowSize(PDFObject params) throws IOException {
+        if (params == null) {
+            return 0;
+        }
+        PDFObject predictor = params.getDictRef("Predictor");
+        if (predictor == null || predictor.getIntValue() < 10) {
+            return 0;
+        }
+
+        PDFObject columnsObj = params.getDictRef("Columns");
+        PDFObject colorsObj = params.getDictRef("Colors");
+        PDFObject bpcObj = params.getDictRef("BitsPerComponent");
+        long columns = (columnsObj == null) ? 1 : columnsObj.getIntValue();
+        long colors = (colorsObj == null) ? 1 : colorsObj.getIntValue();
+        long bpc = (bpcObj == null) ? 8 : bpcObj.getIntValue();
+        long rowSize = (columns * colors * bpc + 7) / 8;
+        return (rowSize > 0 && rowSize < Integer.MAX_VALUE) ? (int) rowSize : 0;
+    }
+
+    /**
+     * get the size of the samples of an image, before any predictor is
+     * undone
+     * @return the size in bytes, or 0 if the stream isn't an image, or
+     * its size can't be told
+     */
+    private static int getImageSize(PDFObject dict, PDFObject params)
+            throws IOException {
+        PDFObject subtype = dict.getDictRef("Subtype");
+        PDFObject widthObj = dict.getDictRef("Width");
+        PDFObject heightObj = dict.getDictRef("Height");
+        if (subtype == null || !"Image".equals(subtype.getStringValue()) ||
+                widthObj == null || heightObj == null) {
+            return 0;
+        }
+
+        int components;
+        int bpc;
+        PDFObject mask = dict.getDictRef("ImageMask");
+        if (mask != null && mask.getBooleanValue()) {
+            components = 1;
+            bpc = 1;
+        } else {
+            components = getComponents(dict.getDictRef("ColorSpace"));
+            PDFObject bpcObj = dict.getDictRef("BitsPerComponent");
+            bpc = (bpcObj == null) ? 8 : bpcObj.getIntValue();
+        }
+        if (components <= 0 || bpc <= 0) {
+            return 0;
+        }
+
+        long width = widthObj.getIntValue();
+        long height = heightObj.getIntValue();
+        long rowSize = (width * components * bpc + 7) / 8;
+        // the PNG predictors put a byte in front of every row
+        if (params != null) {
+            PDFObject predictor = params.getDictRef("Predictor");
+            if (predictor != null && predictor.getIntValue() >= 10) {
+                rowSize++;
+            }
+        }
+        long size = rowSize * height;
+        return (size > 0 && size < Integer.MAX_VALUE) ? (int) size : 0;
+    }
+
+    /**
+     * get the number of components of a colour space
+     * @return the number, or 0 if it can't be told
+     */
+    private static int getComponents(PDFObject cs) throws IOException {
+        if (cs == null) {
+            return 0;
+        }
+        String name;
+        if (cs.getType() == PDFObject.ARRAY) {
+            PDFObject[] ary = cs.getArray();
+            if (ary.length == 0) {
+                return 0;
+            }
+            name = ary[0].getStringValue();
+            if ("ICCBased".equals(name) && ary.length > 1) {
+                PDFObject n = ary[1].getDictRef("N");
+                return (n == null) ? 0 : n.getIntValue();
+            }
+        } else if (cs.getType() == PDFObject.NAME) {
+            name = cs.getStringValue();
+        } else {
+            return 0;
+        }
+
+        if ("DeviceGray".equals(name) || "G".equals(name) ||
+                "CalGray".equals(name) || "Indexed".equals(name) ||
+                "I".equals(name) || "Separation".equals(name)) {
+            return 1;
+        } else if ("DeviceRGB".equals(name) || "RGB".equals(name) ||
+                "CalRGB".equals(name) || "Lab".equals(name)) {
+            return 3;
+        } else if ("DeviceCMYK".equals(name) || "CMYK".equals(name)) {
+            return 4;
+        }
+        // a named colour space in the resources, or a DeviceN
+        return 0;
+    }
 }
@@ -20,7 +20,6 @@
  */
 package com.sun.pdfview.decode;
 
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 
 import net.sf.andpdf.nio.ByteBuffer;
@@ -70,64 +69,100 @@ import com.sun.pdfview.PDFParseException;
  */
 public class LZWDecode {
 
-    ByteBuffer buf;
-    int bytepos;
-    int bitpos;
-    byte[] dict[] = new byte[4096][];
-    int dictlen = 0;
-    int bitspercode = 9;
     static int STOP = 257;
     static int CLEARDICT = 256;
+    /** the first code added to the dictionary */
+    private static final int FIRST_CODE = 258;
+    /** the most codes the dictionary holds, with 12 bit codes */
+    private static final int MAX_CODES = 4096;
+    /** how many times its encoded length the output is guessed to be */
+    private static final int GUESSED_RATIO = 3;
+    /** the smallest output array to start with */
+    private static final int MIN_SIZE = 1024;
+    /** strings shorter than this are copied a byte at a time */
+    private static final int SHORT_STRING = 16;
+
+    /** the encoded bytes */
+    private final byte[] data;
+    /** where the next byte to read is in data, and where they end */
+    private int bytepos;
+    private final int end;
+    /** bits read from data but not yet taken, the last nbits of them */
+    private long bits;
+    private int nbits;
+    /** the number of bits in a code */
+    private int bitspercode = 9;
+    /** 1 if the code length goes up one code early, as usual, or 0 */
+    private final int earlyChange;
+
+    /**
+     * the dictionary.  The string of every code added is somewhere in the
+     * output already: the string of the code before it, followed by the
+     * first byte of what came next.  So a code is just where its string is
+     * in the output, and how long it is, and writing it is a copy from
+     * earlier in the output.  Codes below 256 are their own byte.
+     */
+    private final int[] offset = new int[MAX_CODES];
+    private final int[] length = new int[MAX_CODES];
+    private int dictlen;
+
+    /** the decoded bytes, up to size */
+    private byte[] out;
+    private int size;
 
     /**
      * initialize this decoder with an array of encoded bytes
      * @param buf the buffer of bytes
+     * @param earlyChange 1 if the code length goes up one code early, or 0
      */
-    private LZWDecode(ByteBuffer buf) throws PDFParseException {
+    private LZWDecode(ByteBuffer buf, int earlyChange) {
+        int len = buf.remaining();
+        if (buf.hasArray()) {
+            data = buf.array();
+            bytepos = buf.arrayOffset() + buf.position();
+            buf.position(buf.position() + len);
+        } else {
+            data = new byte[len];
+            buf.get(data);
+            bytepos = 0;
+        }
+        end = bytepos + len;
+        this.earlyChange = earlyChange;
+
         for (int i = 0; i < 256; i++) {
-            dict[i] = new byte[1];
-            dict[i][0] = (byte) i;
+            length[i] = 1;
         }
-        dictlen = 258;
-        bitspercode = 9;
-        this.buf = buf;
-        bytepos = 0;
-        bitpos = 0;
+        resetDict();
+
+        out = new byte[(int) Math.max(Math.min((long) len * GUESSED_RATIO,
+                Integer.MAX_VALUE / 2), MIN_SIZE)];
     }
 
     /**
      * reset the dictionary to the initial 258 entries
      */
     private void resetDict() {
-        dictlen = 258;
+        dictlen = FIRST_CODE;
         bitspercode = 9;
     }
 
     /**
      * get the next code from the input stream
+     * @return the code, or -1 if there are too few bits left for one
      */
     private int nextCode() {
-        int fillbits = bitspercode;
-        int value = 0;
-        if (bytepos >= buf.limit() - 1) {
-            return -1;
-        }
-        while (fillbits > 0) {
-            int nextbits = buf.get(bytepos);  // bitsource
-            int bitsfromhere = 8 - bitpos;  // how many bits can we take?
-            if (bitsfromhere > fillbits) { // don't take more than we need
-                bitsfromhere = fillbits;
+        if (nbits < bitspercode) {
+            // top up the reservoir with as many whole bytes as fit
+            while (nbits <= 56 && bytepos < end) {
+                bits = (bits << 8) | (data[bytepos++] & 0xff);
+                nbits += 8;
             }
-            value |= ((nextbits >> (8 - bitpos - bitsfromhere)) &
-                    (0xff >> (8 - bitsfromhere))) << (fillbits - bitsfromhere);
-            fillbits -= bitsfromhere;
-            bitpos += bitsfromhere;
-            if (bitpos >= 8) {
-                bitpos = 0;
-                bytepos++;
+            if (nbits < bitspercode) {
+                return -1;
             }
         }
-        return value;
+        nbits -= bitspercode;
+        return (int) (bits >>> nbits) & ((1 << bitspercode) - 1);
     }
 
     /**
@@ -138,57 +173,133 @@ public class LZWDecode {
         // algorithm derived from:
         // http://www.rasip.fer.hr/research/compress/algorithms/fund/lz/lzw.html
         // and the PDFReference
-        int cW = CLEARDICT;
-        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        int pW = CLEARDICT;
+        // where the string of pW was written
+        int pOffset = 0;
         while (true) {
-            int pW = cW;
-            cW = nextCode();
-            if (cW == -1) {
-                throw new PDFParseException("Missed the stop code in LZWDecode!");
-            }
-            if (cW == STOP) {
+            int cW = nextCode();
+            if (cW == -1 || cW == STOP) {
+                // a stream that just ends, without the stop code, is
+                // taken to end there
                 break;
-            } else if (cW == CLEARDICT) {
+            }
+
+            int cOffset = size;
+            if (cW == CLEARDICT) {
                 resetDict();
-            //		pW= -1;
             } else if (pW == CLEARDICT) {
-                baos.write(dict[cW], 0, dict[cW].length);
-            } else {
-                if (cW < dictlen) {  // it's a code in the dictionary
-                    baos.write(dict[cW], 0, dict[cW].length);
-                    byte[] p = new byte[dict[pW].length + 1];
-                    System.arraycopy(dict[pW], 0, p, 0, dict[pW].length);
-                    p[dict[pW].length] = dict[cW][0];
-                    dict[dictlen++] = p;
-                } else {  // not in the dictionary (should==dictlen)
-                    //		    if (cW!=dictlen) {
-                    //			System.out.println("Got a bouncy code: "+cW+" (dictlen="+dictlen+")");
-                    //		    }
-                    byte[] p = new byte[dict[pW].length + 1];
-                    System.arraycopy(dict[pW], 0, p, 0, dict[pW].length);
-                    p[dict[pW].length] = p[0];
-                    baos.write(p, 0, p.length);
-                    dict[dictlen++] = p;
-                }
-                if (dictlen >= (1 << bitspercode) - 1 && bitspercode < 12) {
-                    bitspercode++;
+                if (cW >= FIRST_CODE) {
+                    throw new PDFParseException("Bad code in LZWDecode: " + cW);
                 }
+                write(cW);
+            } else if (cW < dictlen) {  // it's a code in the dictionary
+                write(cW);
+                addCode(pOffset, length[pW] + 1);
+            } else if (cW == dictlen) {
+                // not in the dictionary yet: the code about to be added,
+                // which is pW's string followed by its own first byte
+                int len = length[pW];
+                reserve(len + 1);
+                copy(pOffset, len);
+                out[size++] = out[pOffset];
+                addCode(pOffset, len + 1);
+            } else {
+                throw new PDFParseException("Bad code in LZWDecode: " + cW);
             }
+            pW = cW;
+            pOffset = cOffset;
+        }
+        return ByteBuffer.wrap(trim());
+    }
+
+    /**
+     * add a code to the dictionary, unless it is full
+     * @param off where the new code's string is in the output
+     * @param len the length of the string
+     */
+    private void addCode(int off, int len) {
+        if (dictlen < MAX_CODES) {
+            offset[dictlen] = off;
+            length[dictlen] = len;
+            dictlen++;
+        }
+
+        if (dictlen >= (1 << bitspercode) - earlyChange && bitspercode < 12) {
+            bitspercode++;
         }
-        return ByteBuffer.wrap(baos.toByteArray());
+    }
+
+    /**
+     * write the string of a code to the output
+     */
+    private void write(int code) {
+        if (code < 256) {
+            reserve(1);
+            out[size++] = (byte) code;
+        } else {
+            int len = length[code];
+            reserve(len);
+            copy(offset[code], len);
+        }
+    }
+
+    /**
+     * copy a string from earlier in the output to the end of it
+     */
+    private void copy(int from, int len) {
+        if (len < SHORT_STRING) {
+            for (int i = 0; i < len; i++) {
+                out[size++] = out[from + i];
+            }
+        } else {
+            System.arraycopy(out, from, out, size, len);
+            size += len;
+        }
+    }
+
+    /**
+     * make room for some more bytes of output
+     */
+    private void reserve(int len) {
+        if (size + len > out.length) {
+            byte[] grown = new byte[Math.max(out.length * 2, size + len)];
+            System.arraycopy(out, 0, grown, 0, size);
+            out = grown;
+        }
+    }
+
+    /**
+     * get the output, copied to the size it holds if it isn't already
+     */
+    private byte[] trim() {
+        if (size == out.length) {
+            return out;
+        }
+        byte[] exact = new byte[size];
+        System.arraycopy(out, 0, exact, 0, size);
+        return exact;
     }
 
     /**
      * decode an array of LZW-encoded bytes to a byte array.
      *
      * @param buf the buffer of encoded bytes
-     * @param params parameters for the decoder (unused)
+     * @param params parameters for the decoder, for /EarlyChange and the
+     * predictor
      * @return the decoded uncompressed bytes
      */
     public static ByteBuffer decode(ByteBuffer buf, PDFObject params)
             throws IOException {
+        int earlyChange = 1;
+        if (params != null) {
+            PDFObject earlyChangeObj = params.getDictRef("EarlyChange");
+            if (earlyChangeObj != null) {
+                earlyChange = (earlyChangeObj.getIntValue() == 0) ? 0 : 1;
+            }
+        }
+
         // decode the array
-        LZWDecode me = new LZWDecode(buf);
+        LZWDecode me = new LZWDecode(buf, earlyChange);
         ByteBuffer outBytes = me.decode();
 
         // undo a predictor algorithm, if any was used
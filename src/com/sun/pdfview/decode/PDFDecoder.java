@@ -21,6 +21,7 @@
 package com.sun.pdfview.decode;
 
 import java.io.IOException;
+import java.io.InputStream;
 
 import net.sf.andpdf.nio.ByteBuffer;
 
@@ -34,9 +35,18 @@ import com.sun.pdfview.decrypt.PDFDecrypterFactory;
  * <p>
  * You should use the decodeStream() method of this object rather than using
  * any of the decoders directly.
+ * <p>
+ * When a stream has more than one filter, each filter pulls its input from
+ * the one before as it is read, so only the output of the last is ever
+ * whole.  openStream() decodes a stream that way right through, for a
+ * reader that can start on it before it is all decoded.  A filter that
+ * can't decode as it is read reads all its input first.
  */
 public class PDFDecoder {
 
+    /** the smallest array readAll() starts with */
+    private static final int MIN_SIZE = 1024;
+
     /** Creates a new instance of PDFDecoder */
     private PDFDecoder() {
     }
@@ -54,69 +64,261 @@ public class PDFDecoder {
         if (filter == null) {
             // just apply default decryption
             return dict.getDecrypter().decryptBuffer(null, dict, streamBuf);
-        } else {
-            // apply filters
-            PDFObject ary[];
-            PDFObject params[];
-	    if (filter.getType() == PDFObject.NAME) {
-                ary = new PDFObject[1];
-                ary[0] = filter;
-                params = new PDFObject[1];
-                params[0] = dict.getDictRef("DecodeParms");
-            } else {
-                ary = filter.getArray();
-                PDFObject parmsobj = dict.getDictRef("DecodeParms");
-                if (parmsobj != null) {
-                    params = parmsobj.getArray();
-                } else {
-                    params = new PDFObject[ary.length];
-                }
+        }
+
+        // apply filters
+        PDFObject ary[] = getFilters(filter);
+        PDFObject params[] = getParams(dict, filter, ary.length);
+        streamBuf = decrypt(dict, ary, streamBuf);
+
+        int first = 0;
+        if (ary.length > 1) {
+            // pull the stream through all but the last filter
+            int last = ary.length - 1;
+            InputStream in = new ByteBufferInputStream(streamBuf);
+            for (int i = 0; i < last; i++) {
+                in = openFilter(dict, in, ary[i], params[i]);
             }
 
-            // determine whether default encryption applies or if there's a
-            // specific Crypt filter; it must be the first filter according to
-            // the errata for PDF1.7
-            boolean specificCryptFilter =
-                    ary.length != 0 && ary[0].getStringValue().equals("Crypt");
-            if (!specificCryptFilter) {
-                // No Crypt filter, so should apply default decryption (if
-                // present!)
-                streamBuf = dict.getDecrypter().decryptBuffer(
-                        null, dict, streamBuf);
+            if (isStreamed(ary[last])) {
+                int sizeHint = isFlate(ary[last]) ?
+                        FlateDecode.getSizeHint(dict, params[last], streamBuf.remaining()) :
+                        streamBuf.remaining();
+                return readAll(openFilter(dict, in, ary[last], params[last]),
+                        sizeHint);
             }
+            // the last filter wants all its input at once
+            streamBuf = readAll(in, streamBuf.remaining());
+            first = last;
+        }
+
+        for (int i = first; i < ary.length; i++) {
+            streamBuf = decodeFilter(dict, streamBuf, ary[i], params[i]);
+        }
+        return streamBuf;
+    }
 
-            for (int i = 0; i < ary.length; i++) {
-                String enctype = ary[i].getStringValue();
-                if (enctype == null) {
-                } else if (enctype.equals("FlateDecode") || enctype.equals("Fl")) {
-                    streamBuf = FlateDecode.decode(dict, streamBuf, params[i]);
-                } else if (enctype.equals("LZWDecode") || enctype.equals("LZW")) {
-                    streamBuf = LZWDecode.decode(streamBuf, params[i]);
-                } else if (enctype.equals("ASCII85Decode") || enctype.equals("A85")) {
-                    streamBuf = ASCII85Decode.decode(streamBuf, params[i]);
-                } else if (enctype.equals("ASCIIHexDecode") || enctype.equals("AHx")) {
-                    streamBuf = ASCIIHexDecode.decode(streamBuf, params[i]);
-                } else if (enctype.equals("RunLengthDecode") || enctype.equals("RL")) {
-                    streamBuf = RunLengthDecode.decode(streamBuf, params[i]);
-                } else if (enctype.equals("DCTDecode") || enctype.equals("DCT")) {
-                    streamBuf = DCTDecode.decode(dict, streamBuf, params[i]);
-                } else if (enctype.equals("CCITTFaxDecode") || enctype.equals("CCF")) {
-                    streamBuf = CCITTFaxDecode.decode(dict, streamBuf, params[i]);
-                } else if (enctype.equals("Crypt")) {
-                    String cfName = PDFDecrypterFactory.CF_IDENTITY;
-                    if (params[i] != null) {
-                        final PDFObject nameObj = params[i].getDictRef("Name");
-                        if (nameObj != null && nameObj.getType() == PDFObject.NAME) {
-                            cfName = nameObj.getStringValue();
-                        }
+    /**
+     * Decode a stream using the filters specified in the object's
+     * dictionary, as it is read.  Nothing is decoded until the stream
+     * returned is read, and then only as much as is read, but for filters
+     * that can't decode as they are read.
+     *
+     * @param dict the dictionary associated with the stream
+     * @param streamBuf the data in the stream, as a byte buffer
+     * @return a stream of the decoded data
+     */
+    public static InputStream openStream(PDFObject dict, ByteBuffer streamBuf)
+            throws IOException {
+
+        PDFObject filter = dict.getDictRef("Filter");
+        if (filter == null) {
+            // just apply default decryption
+            return new ByteBufferInputStream(
+                    dict.getDecrypter().decryptBuffer(null, dict, streamBuf));
+        }
+
+        PDFObject ary[] = getFilters(filter);
+        PDFObject params[] = getParams(dict, filter, ary.length);
+        streamBuf = decrypt(dict, ary, streamBuf);
+
+        InputStream in = new ByteBufferInputStream(streamBuf);
+        for (int i = 0; i < ary.length; i++) {
+            in = openFilter(dict, in, ary[i], params[i]);
+        }
+        return in;
+    }
+
+    /**
+     * Get whether every filter of a stream decodes as it is read, so that
+     * openStream() hands out the start of the data before the rest is
+     * decoded.
+     *
+     * @param dict the dictionary associated with the stream
+     */
+    public static boolean isDecodedAsRead(PDFObject dict) throws IOException {
+        PDFObject filter = dict.getDictRef("Filter");
+        if (filter == null) {
+            return true;
+        }
+
+        PDFObject ary[] = getFilters(filter);
+        for (int i = 0; i < ary.length; i++) {
+            if (!isStreamed(ary[i])) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Read all of a stream into a buffer, and close it.
+     *
+     * @param in the stream
+     * @param sizeHint how big the stream is likely to be, or 0 if that
+     * isn't known.  The buffer only needs copying if this is wrong.
+     * @return a buffer that holds just what was read, and has an array
+     */
+    static ByteBuffer readAll(InputStream in, int sizeHint)
+            throws IOException {
+        byte[] data = new byte[Math.max(sizeHint, MIN_SIZE)];
+        int size = 0;
+        try {
+            while (true) {
+                if (size == data.length) {
+                    // see whether there's more before growing
+                    int b = in.read();
+                    if (b == -1) {
+                        break;
                     }
-                    streamBuf = dict.getDecrypter().decryptBuffer(cfName, null, streamBuf);
-                } else {
-                    throw new PDFParseException("Unknown coding method:" + ary[i].getStringValue());
+                    byte[] grown = new byte[data.length * 2];
+                    System.arraycopy(data, 0, grown, 0, size);
+                    data = grown;
+                    data[size++] = (byte) b;
                 }
+
+                int read = in.read(data, size, data.length - size);
+                if (read == -1) {
+                    break;
+                }
+                size += read;
             }
+        } finally {
+            in.close();
+        }
+
+        if (size != data.length) {
+            byte[] exact = new byte[size];
+            System.arraycopy(data, 0, exact, 0, size);
+            data = exact;
+        }
+        return ByteBuffer.wrap(data);
+    }
+
+    /**
+     * get the filters of a stream
+     */
+    private static PDFObject[] getFilters(PDFObject filter) throws IOException {
+        if (filter.getType() == PDFObject.NAME) {
+            return new PDFObject[] { filter };
+        }
+        return filter.getArray();
+    }
+
+    /**
+     * get the parameters of each filter of a stream
+     */
+    private static PDFObject[] getParams(PDFObject dict, PDFObject filter,
+            int count) throws IOException {
+        PDFObject params[];
+        if (filter.getType() == PDFObject.NAME) {
+            params = new PDFObject[1];
+            params[0] = dict.getDictRef("DecodeParms");
+        } else {
+            PDFObject parmsobj = dict.getDictRef("DecodeParms");
+            if (parmsobj != null) {
+                params = parmsobj.getArray();
+            } else {
+                params = new PDFObject[count];
+            }
+        }
+        return params;
+    }
+
+    /**
+     * apply the default decryption to a stream, unless its filters
+     * decrypt it themselves
+     */
+    private static ByteBuffer decrypt(PDFObject dict, PDFObject[] ary,
+            ByteBuffer streamBuf) throws IOException {
+        // determine whether default encryption applies or if there's a
+        // specific Crypt filter; it must be the first filter according to
+        // the errata for PDF1.7
+        boolean specificCryptFilter =
+                ary.length != 0 && ary[0].getStringValue().equals("Crypt");
+        if (!specificCryptFilter) {
+            // No Crypt filter, so should apply default decryption (if
+            // present!)
+            streamBuf = dict.getDecrypter().decryptBuffer(
+                    null, dict, streamBuf);
         }
+        return streamBuf;
+    }
+
+    /**
+     * get whether a filter can decode as it is read
+     */
+    private static boolean isStreamed(PDFObject filter) throws IOException {
+        String enctype = filter.getStringValue();
+        return isFlate(filter) ||
+                "ASCII85Decode".equals(enctype) || "A85".equals(enctype) ||
+                "ASCIIHexDecode".equals(enctype) || "AHx".equals(enctype) ||
+                "RunLengthDecode".equals(enctype) || "RL".equals(enctype);
+    }
 
+    /**
+     * get whether a filter is FlateDecode
+     */
+    private static boolean isFlate(PDFObject filter) throws IOException {
+        String enctype = filter.getStringValue();
+        return "FlateDecode".equals(enctype) || "Fl".equals(enctype);
+    }
+
+    /**
+     * put a filter on a stream, to decode it as it is read if the filter
+     * can, or else once it is all read
+     */
+    private static InputStream openFilter(PDFObject dict, InputStream in,
+            PDFObject filter, PDFObject params) throws IOException {
+        String enctype = filter.getStringValue();
+        if (enctype == null) {
+            return in;
+        } else if (isFlate(filter)) {
+            return FlateDecode.decode(in, params);
+        } else if (enctype.equals("ASCII85Decode") || enctype.equals("A85")) {
+            return ASCII85Decode.decode(in, params);
+        } else if (enctype.equals("ASCIIHexDecode") || enctype.equals("AHx")) {
+            return ASCIIHexDecode.decode(in, params);
+        } else if (enctype.equals("RunLengthDecode") || enctype.equals("RL")) {
+            return RunLengthDecode.decode(in, params);
+        }
+        return new ByteBufferInputStream(
+                decodeFilter(dict, readAll(in, 0), filter, params));
+    }
+
+    /**
+     * decode a whole buffer with a filter
+     */
+    private static ByteBuffer decodeFilter(PDFObject dict, ByteBuffer streamBuf,
+            PDFObject filter, PDFObject params) throws IOException {
+        String enctype = filter.getStringValue();
+        if (enctype == null) {
+        } else if (enctype.equals("FlateDecode") || enctype.equals("Fl")) {
+            streamBuf = FlateDecode.decode(dict, streamBuf, params);
+        } else if (enctype.equals("LZWDecode") || enctype.equals("LZW")) {
+            streamBuf = LZWDecode.decode(streamBuf, params);
+        } else if (enctype.equals("ASCII85Decode") || enctype.equals("A85")) {
+            streamBuf = ASCII85Decode.decode(streamBuf, params);
+        } else if (enctype.equals("ASCIIHexDecode") || enctype.equals("AHx")) {
+            streamBuf = ASCIIHexDecode.decode(streamBuf, params);
+        } else if (enctype.equals("RunLengthDecode") || enctype.equals("RL")) {
+            streamBuf = RunLengthDecode.decode(streamBuf, params);
+        } else if (enctype.equals("DCTDecode") || enctype.equals("DCT")) {
+            streamBuf = DCTDecode.decode(dict, streamBuf, params);
+        } else if (enctype.equals("CCITTFaxDecode") || enctype.equals("CCF")) {
+            streamBuf = CCITTFaxDecode.decode(dict, streamBuf, params);
+        } else if (enctype.equals("Crypt")) {
+            String cfName = PDFDecrypterFactory.CF_IDENTITY;
+            if (params != null) {
+                final PDFObject nameObj = params.getDictRef("Name");
+                if (nameObj != null && nameObj.getType() == PDFObject.NAME) {
+                    cfName = nameObj.getStringValue();
+                }
+            }
+            streamBuf = dict.getDecrypter().decryptBuffer(cfName, null, streamBuf);
+        } else {
+            throw new PDFParseException("Unknown coding method:" + filter.getStringValue());
+        }
         return streamBuf;
     }
 }
@@ -22,15 +22,17 @@
 package com.sun.pdfview.decode;
 
 import java.io.IOException;
-
-import java.util.ArrayList;
-import java.util.Iterator;
-import java.util.List;
+import java.io.InputStream;
 
 import net.sf.andpdf.nio.ByteBuffer;
 
 /**
  * Undo prediction based on the PNG algorithm.
+ * <p>
+ * Each row is undone in place, against the row before it.  Undoing a
+ * buffer writes the rows straight into the output, and reads the row
+ * before from there; undoing a stream keeps just the row being read and
+ * the one before it.
  */
 public class PNGPredictor extends Predictor {
     /** Creates a new instance of PNGPredictor */
@@ -44,58 +46,89 @@ public class PNGPredictor extends Predictor {
     public ByteBuffer unpredict(ByteBuffer imageData)
         throws IOException
     {
-        List<byte[]> rows = new ArrayList<byte[]>();
-        
-        byte[] curLine = null;
-        byte[] prevLine = null;
-        
         // get the number of bytes per row
-        int rowSize = getColumns() * getColors() * getBitsPerComponent();
-        rowSize = (int) Math.ceil(rowSize / 8.0);
+        int rowSize = getRowSize();
+        int bpp = getBytesPerPixel();
         
-        while(imageData.remaining() >= rowSize + 1) {
+        // each row comes with a byte for its algorithm, and any partial
+        // row at the end is left out
+        int rows = imageData.remaining() / (rowSize + 1);
+        byte[] out = new byte[rows * rowSize];
+        
+        int prev = -1;
+        for (int cur = 0; cur < out.length; cur += rowSize) {
             // the first byte determines the algorithm
             int algorithm = (int) (imageData.get() & 0xff);
             
             // read the rest of the line
-            curLine = new byte[rowSize];
-            imageData.get(curLine);
+            imageData.get(out, cur, rowSize);
             
             // use the algorithm, Luke
-            switch (algorithm) {
-                case 0:
-                    // none
-                    break;
-                case 1:
-                    doSubLine(curLine);
-                    break;
-                case 2:
-                    doUpLine(curLine, prevLine);
-                    break;
-                case 3:
-                    doAverageLine(curLine, prevLine);
-                    break;
-                case 4:
-                    doPaethLine(curLine, prevLine);
-                    break;
-            }
-            
-            rows.add(curLine);
-            prevLine = curLine;
+            unfilter(algorithm, out, cur, out, prev, rowSize, bpp);
+            prev = cur;
         }
         
-        // turn into byte array
-        ByteBuffer outBuf = ByteBuffer.allocate(rows.size() * rowSize);
-        for (Iterator i = rows.iterator(); i.hasNext();) {
-            outBuf.put((byte[]) i.next());
-        }
-        
-        // reset start pointer
-        outBuf.flip();
-        
         // return
-        return outBuf;
-        
+        return ByteBuffer.wrap(out);
+    }
+
+    /**
+     * Undo data based on the png algorithm as it is read, a row at a time
+     */
+    @Override
+    public InputStream unpredict(InputStream imageData)
+        throws IOException
+    {
+        return new RowStream(imageData, getRowSize(), getBytesPerPixel());
+    }
+    
+    /**
+     * get the number of bytes in a row, not counting the algorithm byte
+     */
+    private int getRowSize() {
+        int rowSize = getColumns() * getColors() * getBitsPerComponent();
+        return (int) Math.ceil(rowSize / 8.0);
+    }
+    
+    /**
+     * get the number of bytes per sample, at least one
+     */
+    private int getBytesPerPixel() {
+        return (int) Math.ceil((getBitsPerComponent() * getColors()) / 8.0);
+    }
+    
+    /**
+     * undo an algorithm on a row, in place
+     * @param algorithm the algorithm, from the byte before the row
+     * @param cur the array the row is in
+     * @param curOff where the row starts in it
+     * @param prev the array the row before is in
+     * @param prevOff where the row before starts in it, or -1 if this is
+     * the first row
+     * @param rowSize the number of bytes in a row
+     * @param bpp the number of bytes per sample
+     */
+    private static void unfilter(int algorithm, byte[] cur, int curOff,
+            byte[] prev, int prevOff, int rowSize, int bpp) {
+        switch (algorithm) {
+            case 0:
+                // none
+                break;
+            case 1:
+                doSub(cur, curOff, rowSize, bpp);
+                break;
+            case 2:
+                if (prevOff >= 0) {
+                    doUp(cur, curOff, prev, prevOff, rowSize);
+                }
+                break;
+            case 3:
+                doAverage(cur, curOff, prev, prevOff, rowSize, bpp);
+                break;
+            case 4:
+                doPaeth(cur, curOff, prev, prevOff, rowSize, bpp);
+                break;
+        }
     }
     
     /**
@@ -103,15 +136,7 @@ public class PNGPredictor extends Predictor {
      * the previous byte of the same color on this line).
      */
     protected void doSubLine(byte[] curLine) {
-        // get the number of bytes per sample
-        int sub = (int) Math.ceil((getBitsPerComponent() * getColors()) / 8.0); 
-        
-        for (int i = 0; i < curLine.length; i++) {
-            int prevIdx = i - sub;
-            if (prevIdx >= 0) {
-                curLine[i] += curLine[prevIdx];
-            }
-        }
+        doSub(curLine, 0, curLine.length, getBytesPerPixel());
     }
     
     /**
@@ -123,10 +148,7 @@ public class PNGPredictor extends Predictor {
             // do nothing if this is the first line
             return;
         }
-        
-        for (int i = 0; i < curLine.length; i++) {
-            curLine[i] += prevLine[i];
-        }
+        doUp(curLine, 0, prevLine, 0, curLine.length);
     }
     
     /**
@@ -135,67 +157,96 @@ public class PNGPredictor extends Predictor {
      * the same byte on the previous line)
      */
     protected void doAverageLine(byte[] curLine, byte[] prevLine) {
-         // get the number of bytes per sample
-        int sub = (int) Math.ceil((getBitsPerComponent() * getColors()) / 8.0); 
-        
-        for (int i = 0; i < curLine.length; i++) {
-            int raw = 0;
-            int prior = 0;
-            
+        doAverage(curLine, 0, prevLine, (prevLine == null) ? -1 : 0,
+                curLine.length, getBytesPerPixel());
+    }
+    
+     /**
+     * Return the value of the paeth algorithm on the line (compare
+     * bytes to the previous byte of the same color, the same byte on the
+     * previous line, and the byte before that)
+     */
+    protected void doPaethLine(byte[] curLine, byte[] prevLine) {
+        doPaeth(curLine, 0, prevLine, (prevLine == null) ? -1 : 0,
+                curLine.length, getBytesPerPixel());
+    }
+    
+    /**
+     * the Sub algorithm, on a row in an array
+     */
+    private static void doSub(byte[] cur, int off, int len, int sub) {
+        for (int i = off + sub; i < off + len; i++) {
+            cur[i] += cur[i - sub];
+        }
+    }
+    
+    /**
+     * the Up algorithm, on a row in an array, given the row before
+     */
+    private static void doUp(byte[] cur, int off, byte[] prev, int prevOff,
+            int len) {
+        for (int i = 0; i < len; i++) {
+            cur[off + i] += prev[prevOff + i];
+        }
+    }
+    
+    /**
+     * the Average algorithm, on a row in an array
+     * @param prevOff where the row before starts, or -1 for none
+     */
+    private static void doAverage(byte[] cur, int off, byte[] prev,
+            int prevOff, int len, int sub) {
+        for (int i = 0; i < len; i++) {
             // get the last value of this color
-            int prevIdx = i - sub;
-            if (prevIdx >= 0) {
-                raw = curLine[prevIdx] & 0xff;
-            }
+            int raw = (i >= sub) ? cur[off + i - sub] & 0xff : 0;
             
             // get the value on the previous line
-            if (prevLine != null) {
-                prior = prevLine[i] & 0xff;
-            }
+            int prior = (prevOff >= 0) ? prev[prevOff + i] & 0xff : 0;
             
             // add the average
-            curLine[i] += (byte) Math.floor((raw + prior) / 2);
-        }      
+            cur[off + i] += (byte) ((raw + prior) >> 1);
+        }
     }
     
-     /**
-     * Return the value of the average algorithm on the line (compare
-     * bytes to the average of the previous byte of the same color and 
-     * the same byte on the previous line)
+    /**
+     * the Paeth algorithm, on a row in an array
+     * @param prevOff where the row before starts, or -1 for none
      */
-    protected void doPaethLine(byte[] curLine, byte[] prevLine) {
-         // get the number of bytes per sample
-        int sub = (int) Math.ceil((getBitsPerComponent() * getColors()) / 8.0); 
-        
-        for (int i = 0; i < curLine.length; i++) {
+    private static void doPaeth(byte[] cur, int off, byte[] prev,
+            int prevOff, int len, int sub) {
+        for (int i = 0; i < len; i++) {
             int left = 0;
             int up = 0;
             int upLeft = 0;
             
             // get the last value of this color
-            int prevIdx = i - sub;
-            if (prevIdx >= 0) {
-                left = curLine[prevIdx] & 0xff;
-            }
-            
-            // get the value on the previous line
-            if (prevLine != null) {
-                up = prevLine[i] & 0xff;
+            if (i >= sub) {
+                left = cur[off + i - sub] & 0xff;
             }
             
-            if (prevIdx > 0 && prevLine != null) {
-                upLeft = prevLine[prevIdx] & 0xff;
+            // get the value on the previous line, and the one before it
+            if (prevOff >= 0) {
+                up = prev[prevOff + i] & 0xff;
+                if (i >= sub) {
+                    upLeft = prev[prevOff + i - sub] & 0xff;
+                }
             }
             
-            // add the average
-            curLine[i] += (byte) paeth(left, up, upLeft);
-        }      
+            cur[off + i] += (byte) choose(left, up, upLeft);
+        }
     }
     
     /**
      * The paeth algorithm
      */
     protected int paeth(int left, int up, int upLeft) {
+        return choose(left, up, upLeft);
+    }
+    
+    /**
+     * choose the neighbour the paeth algorithm predicts from
+     */
+    private static int choose(int left, int up, int upLeft) {
         int p = left + up - upLeft;
         int pa = Math.abs(p - left);
         int pb = Math.abs(p - up);
@@ -210,4 +261,92 @@ public class PNGPredictor extends Predictor {
         }
     }
     
+    /**
+     * undoes prediction as it is read, with the row being read and the one
+     * before it
+     */
+    private static class RowStream extends InputStream {
+        
+        /** the predicted data */
+        private final InputStream in;
+        private final int rowSize;
+        private final int bpp;
+        /** the row being read, with its algorithm byte in front */
+        private byte[] cur;
+        /** the row before, with its algorithm byte in front */
+        private byte[] prev;
+        /** whether there is a row before */
+        private boolean havePrev;
+        /** where reading is in the current row, after its algorithm byte */
+        private int pos;
+        /** whether the last whole row has been read */
+        private boolean ended;
+        
+        RowStream(InputStream in, int rowSize, int bpp) {
+            this.in = in;
+            this.rowSize = rowSize;
+            this.bpp = bpp;
+            cur = new byte[rowSize + 1];
+            prev = new byte[rowSize + 1];
+            pos = rowSize + 1;
+        }
+        
+        @Override
+        public int read() throws IOException {
+            if (pos > rowSize && !nextRow()) {
+                return -1;
+            }
+            return cur[pos++] & 0xff;
+        }
+        
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) {
+                return 0;
+            }
+            if (pos > rowSize && !nextRow()) {
+                return -1;
+            }
+            int n = Math.min(len, rowSize + 1 - pos);
+            System.arraycopy(cur, pos, b, off, n);
+            pos += n;
+            return n;
+        }
+        
+        @Override
+        public void close() throws IOException {
+            in.close();
+        }
+        
+        /**
+         * read and undo the next row
+         * @return false if there is no whole row left
+         */
+        private boolean nextRow() throws IOException {
+            if (ended) {
+                return false;
+            }
+            
+            // the current row becomes the one before
+            byte[] tmp = prev;
+            prev = cur;
+            cur = tmp;
+            
+            int got = 0;
+            while (got < cur.length) {
+                int n = in.read(cur, got, cur.length - got);
+                if (n < 0) {
+                    ended = true;
+                    return false;
+                }
+                got += n;
+            }
+            
+            unfilter(cur[0] & 0xff, cur, 1, prev, havePrev ? 1 : -1,
+                    rowSize, bpp);
+            havePrev = true;
+            pos = 1;
+            return true;
+        }
+    }
 }
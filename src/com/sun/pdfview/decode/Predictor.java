@@ -22,6 +22,7 @@
 package com.sun.pdfview.decode;
 
 import java.io.IOException;
+import java.io.InputStream;
 
 import net.sf.andpdf.nio.ByteBuffer;
 
@@ -63,6 +64,21 @@ public abstract class Predictor {
      */
     public abstract ByteBuffer unpredict(ByteBuffer imageData)
         throws IOException;
+
+    /**
+     * Perform this algorithm on decoded image data as it is read.
+     * Subclasses that can work a row at a time should override this
+     * method; this one reads all the data first.
+     *
+     * @param imageData a stream of the decoded image data
+     * @return a stream of the data with the prediction undone
+     */
+    public InputStream unpredict(InputStream imageData)
+        throws IOException
+    {
+        return new ByteBufferInputStream(
+                unpredict(PDFDecoder.readAll(imageData, 0)));
+    }
     
     /**
      * Get an instance of a predictor
@@ -21,6 +21,8 @@
 package com.sun.pdfview.decode;
 
 import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
 
 import net.sf.andpdf.nio.ByteBuffer;
 
@@ -96,4 +98,57 @@ public class RunLengthDecode {
         RunLengthDecode me = new RunLengthDecode(buf);
         return me.decode();
     }
+
+    /**
+     * decode a stream of bytes in RunLength format as it is read.
+     *
+     * @param in the RunLength encoded bytes
+     * @param params parameters to the decoder (ignored)
+     * @return a stream of the decoded bytes
+     */
+    public static InputStream decode(InputStream in, PDFObject params) {
+        return new Stream(in);
+    }
+
+    /**
+     * decodes RunLength as it is read, a run at a time
+     */
+    private static class Stream extends DecodeInputStream {
+
+        /** the longest run */
+        private static final int MAX_RUN = 128;
+
+        Stream(InputStream in) {
+            super(in, MAX_RUN);
+        }
+
+        @Override
+        protected boolean fill() throws IOException {
+            int length = nextIn();
+            if (length == -1 || length == RUN_LENGTH_EOD) {
+                return false;
+            }
+
+            if (length < RUN_LENGTH_EOD) {
+                // copy the next length + 1 bytes
+                for (int i = 0; i <= length; i++) {
+                    int b = nextIn();
+                    if (b == -1) {
+                        return false;
+                    }
+                    out[outCount++] = (byte) b;
+                }
+            } else {
+                // repeat the next byte 257 - length times
+                int b = nextIn();
+                if (b == -1) {
+                    return false;
+                }
+                for (int i = 0; i < 257 - length; i++) {
+                    out[outCount++] = (byte) b;
+                }
+            }
+            return true;
+        }
+    }
 }
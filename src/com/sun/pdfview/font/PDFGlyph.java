@@ -27,7 +27,7 @@ import android.graphics.Path;
 import android.graphics.PointF;
 
 import com.sun.pdfview.PDFPage;
-import com.sun.pdfview.PDFShapeCmd;
+import com.sun.pdfview.PDFPath;
 
 /**
  * A single glyph in a stream of PDF text, which knows how to write itself
@@ -89,9 +89,9 @@ public class PDFGlyph {
     /** Add commands for this glyph to a page */
     public PointF addCommands(PDFPage cmds, Matrix transform, int mode) {
         if (shape != null) {
-            Path outline= new Path();
+            Path outline = shape instanceof PDFPath ? new PDFPath() : new Path();
             shape.transform(transform, outline);
-            cmds.addCommand(new PDFShapeCmd(outline, mode));
+            cmds.addPath(outline, mode);
         } else if (page != null) {
             cmds.addCommands(page, transform);
         }
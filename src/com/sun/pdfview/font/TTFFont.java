@@ -29,6 +29,7 @@ import android.graphics.Matrix;
 import android.graphics.Path;
 
 import com.sun.pdfview.PDFObject;
+import com.sun.pdfview.PDFPath;
 import com.sun.pdfview.font.ttf.AdobeGlyphList;
 import com.sun.pdfview.font.ttf.CMap;
 import com.sun.pdfview.font.ttf.CmapTable;
@@ -180,7 +181,7 @@ public class TTFFont extends OutlineFont {
         } else if (g instanceof GlyfCompound) {
             gp = renderCompoundGlyph(glyf, (GlyfCompound) g);
         } else {
-            gp = new Path();
+            gp = new PDFPath();
         }
 
         // calculate the advance
@@ -211,7 +212,7 @@ public class TTFFont extends OutlineFont {
 
         // the render state
         RenderState rs = new RenderState();
-        rs.gp = new Path();
+        rs.gp = new PDFPath();
 
         for (int i = 0; i < g.getNumPoints(); i++) {
             PointRec rec = new PointRec(g, i);
@@ -299,7 +300,7 @@ public class TTFFont extends OutlineFont {
      * Render a compound glyf
      */
     protected Path renderCompoundGlyph(GlyfTable glyf, GlyfCompound g) {
-        Path gp = new Path();
+        Path gp = new PDFPath();
 
         for (int i = 0; i < g.getNumComponents(); i++) {
             // find and render the component glyf
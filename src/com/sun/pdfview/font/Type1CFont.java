@@ -28,6 +28,7 @@ import android.graphics.Matrix;
 import android.graphics.Path;
 
 import com.sun.pdfview.PDFObject;
+import com.sun.pdfview.PDFPath;
 
 
 /**
@@ -629,7 +630,7 @@ public class Type1CFont extends OutlineFont {
         Range r = getIndexEntry (base, offset);
 
         // create a path
-        Path gp = new Path ();
+        Path gp = new PDFPath ();
 
 
         // rember the start position (for recursive calls due to seac)
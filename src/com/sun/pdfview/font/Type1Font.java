@@ -33,6 +33,7 @@ import android.graphics.PointF;
 
 import com.sun.pdfview.PDFFile;
 import com.sun.pdfview.PDFObject;
+import com.sun.pdfview.PDFPath;
 
 
 /**
@@ -740,7 +741,7 @@ public class Type1Font extends OutlineFont {
         // get the outline of the accent
         Path pathAorig = getOutline(a, getWidth(a, null));
         // don't manipulate the original glyph
-        Path pathA = new Path(pathAorig);
+        Path pathA = new PDFPath(pathAorig);
 
         // undo the effect of the transform applied in read 
         Matrix xformA = new Matrix();
@@ -762,7 +763,7 @@ public class Type1Font extends OutlineFont {
 
         Path pathBorig = getOutline(b, getWidth(b, null));
         // don't manipulate the original glyph
-        Path pathB = (Path) new Path(pathBorig);
+        Path pathB = (Path) new PDFPath(pathBorig);
 
         Matrix xformB = new Matrix();
         if (at.invert(xformB)) {
@@ -817,7 +818,7 @@ public class Type1Font extends OutlineFont {
      */
     private synchronized Path parseGlyph(byte[] cs, FlPoint advance,
             Matrix at) {
-        Path gp = new Path();
+        Path gp = new PDFPath();
         FlPoint curpoint = new FlPoint();
 
         sloc = 0;
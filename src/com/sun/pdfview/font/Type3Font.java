@@ -34,6 +34,7 @@ import android.graphics.RectF;
 import com.sun.pdfview.PDFObject;
 import com.sun.pdfview.PDFPage;
 import com.sun.pdfview.PDFParser;
+import com.sun.pdfview.PDFPath;
 
 
 /**
@@ -159,7 +160,7 @@ public class Type3Font extends PDFFont {
         PDFObject pageObj = (PDFObject) charProcs.get(name);
         if (pageObj == null) {
             // glyph not found.  Return an empty glyph...
-            return new PDFGlyph(src, name, new Path(), new PointF(0, 0));
+            return new PDFGlyph(src, name, new PDFPath(), new PointF(0, 0));
         }
 
         try {
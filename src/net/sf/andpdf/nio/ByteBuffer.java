@@ -1,6 +1,8 @@
 package net.sf.andpdf.nio;
 
+import java.io.IOException;
 import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
 
 public abstract class ByteBuffer {
 
@@ -77,6 +79,9 @@ public abstract class ByteBuffer {
 	public static ByteBuffer NEW(MappedByteBuffer map) {
 		return new NioByteBuffer(map);
 	}
+	public static ByteBuffer NEW(FileChannel channel) throws IOException {
+		return new FileChannelByteBuffer(channel);
+	}
 	public static ByteBuffer NEW(byte[] buf) {
 		return new ArrayBackedByteBuffer(buf);
 	}
@@ -99,4 +104,4 @@ public abstract class ByteBuffer {
 			return ArrayBackedByteBuffer.allocate(i);
 	}
 
-}
\ No newline at end of file
+}
\ No newline at end of file
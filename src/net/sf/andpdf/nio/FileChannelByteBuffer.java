@@ -0,0 +1,376 @@
+package net.sf.andpdf.nio;
+
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ReadOnlyBufferException;
+import java.nio.channels.FileChannel;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A read-only ByteBuffer that reads a file through a FileChannel, a window
+ * at a time, instead of mapping or loading the whole file.
+ * <p>
+ * The file is read in fixed-size chunks, which are kept in a cache shared
+ * by this buffer and every slice and duplicate made from it.  When the
+ * cache is full the least recently used chunk is dropped, so the heap used
+ * stays bounded however large the file is.  Each buffer also remembers the
+ * chunk it read last, so reading sequentially only consults the cache once
+ * per chunk.
+ * <p>
+ * Positions are ints, like those of the other ByteBuffers, so files larger
+ * than 2GB can't be read past that point.  Interrupting a thread that is
+ * reading from a FileChannel closes the channel, so threads using this
+ * buffer should be stopped some other way.
+ */
+public final class FileChannelByteBuffer extends ByteBuffer {
+
+    /** the default size of a chunk, in bytes */
+    public static final int DEFAULT_CHUNK_SIZE = 64 * 1024;
+    /** the default number of chunks kept in memory */
+    public static final int DEFAULT_MAX_CHUNKS = 64;
+
+    /**
+     * the chunks of the file, shared by all buffers over the same channel
+     */
+    private final ChunkCache cache;
+    /**
+     * file position of the first byte of this buffer
+     */
+    private final long base;
+    /**
+     * current buffer position
+     */
+    private int pos;
+    /**
+     * buffer size
+     */
+    private int lim;
+    /**
+     * a marker inside the buffer
+     */
+    private int mrk = -1;
+    /**
+     * the chunk read last, and its number
+     */
+    private byte[] chunk;
+    private long chunkIndex = -1;
+
+    /**
+     * Create a new ByteBuffer over a file, with the default chunk size and
+     * number of chunks
+     *
+     * @param channel   the channel to read the file from
+     */
+    public FileChannelByteBuffer(final FileChannel channel) throws IOException {
+        this(channel, DEFAULT_CHUNK_SIZE, DEFAULT_MAX_CHUNKS);
+    }
+
+    /**
+     * Create a new ByteBuffer over a file
+     *
+     * @param channel   the channel to read the file from
+     * @param chunkSize the size of a chunk, rounded up to a power of two
+     * @param maxChunks the number of chunks to keep in memory
+     */
+    public FileChannelByteBuffer(final FileChannel channel, final int chunkSize, final int maxChunks) throws IOException {
+        this(new ChunkCache(channel, chunkSize, maxChunks), 0, 0,
+                (int) Math.min(channel.size(), Integer.MAX_VALUE));
+    }
+
+    private FileChannelByteBuffer(final ChunkCache cache, final long base, final int pos, final int lim) {
+        this.cache = cache;
+        this.base = base;
+        this.pos = pos;
+        this.lim = lim;
+    }
+
+    /**
+     * Get the number of times a chunk was found in the cache
+     */
+    public long getChunkHits() {
+        return cache.getHits();
+    }
+
+    /**
+     * Get the number of times a chunk had to be read from the file
+     */
+    public long getChunkMisses() {
+        return cache.getMisses();
+    }
+
+    /**
+     * read the byte at a file position, through the chunk read last if it
+     * holds the position
+     */
+    private byte byteAt(final long filePos) {
+        final long index = filePos >> cache.shift;
+        if (index != chunkIndex) {
+            chunk = cache.getChunk(index);
+            chunkIndex = index;
+        }
+        return chunk[(int) (filePos & cache.mask)];
+    }
+
+    public int position() {
+        return pos;
+    }
+
+    public void position(final int position) {
+        if (position < 0 || position > lim) {
+            throw new IllegalArgumentException();
+        }
+        pos = position;
+    }
+
+    public byte get() {
+        if (pos >= lim) {
+            throw new BufferUnderflowException();
+        }
+        return byteAt(base + pos++);
+    }
+
+    public int remaining() {
+        return lim - pos;
+    }
+
+    public byte get(final int position) {
+        if (position < 0 || position >= lim) {
+            throw new IndexOutOfBoundsException();
+        }
+        return byteAt(base + position);
+    }
+
+    public ByteBuffer slice() {
+        return new FileChannelByteBuffer(cache, base + pos, 0, lim - pos);
+    }
+
+    public void limit(final int length) {
+        lim = length;
+        if (pos > lim) {
+            pos = lim;
+        }
+        if (mrk > lim) {
+            mrk = -1;
+        }
+    }
+
+    public void get(final byte[] outBuf) {
+        get(outBuf, 0, outBuf.length);
+    }
+
+    public void get(final byte[] outBuf, final int outOffset, final int length) {
+        if (length > lim - pos) {
+            throw new BufferUnderflowException();
+        }
+
+        // copy a chunk at a time
+        int done = 0;
+        while (done < length) {
+            final long filePos = base + pos;
+            byteAt(filePos);
+            final int chunkOffset = (int) (filePos & cache.mask);
+            final int n = Math.min(length - done, chunk.length - chunkOffset);
+            System.arraycopy(chunk, chunkOffset, outBuf, outOffset + done, n);
+            done += n;
+            pos += n;
+        }
+    }
+
+    public void rewind() {
+        pos = 0;
+        mrk = -1;
+    }
+
+    public int limit() {
+        return lim;
+    }
+
+    public boolean hasArray() {
+        return false;
+    }
+
+    public int arrayOffset() {
+        throw new UnsupportedOperationException();
+    }
+
+    public byte[] array() {
+        throw new UnsupportedOperationException();
+    }
+
+    public void flip() {
+        lim = pos;
+        pos = 0;
+        mrk = -1;
+    }
+
+    public ByteBuffer duplicate() {
+        final FileChannelByteBuffer dup = new FileChannelByteBuffer(cache, base, pos, lim);
+        dup.mrk = mrk;
+        return dup;
+    }
+
+    public char getChar(final int position) {
+        int result = get(position) & 0xff;
+        result = (result << 8) + (get(position + 1) & 0xff);
+        return (char) result;
+    }
+
+    public int getInt() {
+        int result = get() & 0xff;
+        result = (result << 8) + (get() & 0xff);
+        result = (result << 8) + (get() & 0xff);
+        result = (result << 8) + (get() & 0xff);
+        return result;
+    }
+
+    public long getLong() {
+        long result = getInt() & 0xffffffffL;
+        result = (result << 32) + (getInt() & 0xffffffffL);
+        return result;
+    }
+
+    public char getChar() {
+        int result = get() & 0xff;
+        result = (result << 8) + (get() & 0xff);
+        return (char) result;
+    }
+
+    public short getShort() {
+        return (short) getChar();
+    }
+
+    public void put(final int index, final byte b) {
+        throw new ReadOnlyBufferException();
+    }
+
+    public void put(final byte b) {
+        throw new ReadOnlyBufferException();
+    }
+
+    public void putInt(final int i) {
+        throw new ReadOnlyBufferException();
+    }
+
+    public void putShort(final short s) {
+        throw new ReadOnlyBufferException();
+    }
+
+    public void mark() {
+        mrk = pos;
+    }
+
+    public void put(final ByteBuffer data) {
+        throw new ReadOnlyBufferException();
+    }
+
+    public void reset() {
+        if (mrk < 0) {
+            throw new java.nio.InvalidMarkException();
+        }
+        pos = mrk;
+    }
+
+    public void putInt(final int index, final int value) {
+        throw new ReadOnlyBufferException();
+    }
+
+    public void putLong(final long value) {
+        throw new ReadOnlyBufferException();
+    }
+
+    public void putChar(final char value) {
+        throw new ReadOnlyBufferException();
+    }
+
+    public void put(final byte[] data) {
+        throw new ReadOnlyBufferException();
+    }
+
+    /**
+     * Copy the remaining bytes into a new heap java.nio.ByteBuffer.  The
+     * position of this buffer is not changed.
+     */
+    public java.nio.ByteBuffer toNIO() {
+        final byte[] data = new byte[remaining()];
+        final int p = pos;
+        get(data);
+        pos = p;
+        return java.nio.ByteBuffer.wrap(data);
+    }
+
+    public boolean hasRemaining() {
+        return pos < lim;
+    }
+
+    /**
+     * The chunks of a file that are in memory, least recently used first.
+     */
+    private static final class ChunkCache {
+
+        private final FileChannel channel;
+        private final long size;
+        final int shift;
+        final long mask;
+        private final LinkedHashMap<Long, byte[]> chunks;
+        private long hits;
+        private long misses;
+
+        ChunkCache(final FileChannel channel, final int chunkSize, final int maxChunks) throws IOException {
+            this.channel = channel;
+            this.size = channel.size();
+
+            int s = 10;
+            while ((1 << s) < chunkSize && s < 30) {
+                s++;
+            }
+            this.shift = s;
+            this.mask = (1L << s) - 1;
+
+            final int max = Math.max(maxChunks, 1);
+            this.chunks = new LinkedHashMap<Long, byte[]>(max + 1, 0.75f, true) {
+                protected boolean removeEldestEntry(final Map.Entry<Long, byte[]> eldest) {
+                    return size() > max;
+                }
+            };
+        }
+
+        synchronized long getHits() {
+            return hits;
+        }
+
+        synchronized long getMisses() {
+            return misses;
+        }
+
+        /**
+         * Get a chunk of the file, reading it if it isn't in memory
+         */
+        synchronized byte[] getChunk(final long index) {
+            final Long key = Long.valueOf(index);
+            byte[] data = chunks.get(key);
+            if (data != null) {
+                hits++;
+                return data;
+            }
+
+            misses++;
+            final long start = index << shift;
+            final int len = (int) Math.min(mask + 1, size - start);
+            data = new byte[Math.max(len, 0)];
+            final java.nio.ByteBuffer dst = java.nio.ByteBuffer.wrap(data);
+            try {
+                while (dst.hasRemaining()) {
+                    if (channel.read(dst, start + dst.position()) < 0) {
+                        throw new IOException("Unexpected end of file at " + (start + dst.position()));
+                    }
+                }
+            } catch (IOException e) {
+                throw new IllegalStateException("Could not read the file", e);
+            }
+
+            chunks.put(key, data);
+            return data;
+        }
+    }
+}
@@ -0,0 +1,470 @@
+package net.sf.andpdf.nio;
+
+import java.nio.BufferUnderflowException;
+import java.nio.ReadOnlyBufferException;
+
+/**
+ * A read-only ByteBuffer over a file that is still arriving, for instance
+ * from a download or from slow storage.
+ * <p>
+ * The length of the file is known up front; its bytes are handed in, in
+ * any order, through {@link #addData(int, byte[], int, int)}.  Reading a
+ * byte that has not arrived yet blocks until it does, so a PDFFile can be
+ * opened and its first page parsed while the rest of the file is still
+ * coming in.  The ranges that are still missing can be asked for at any
+ * time, and a {@link Listener} is told which bytes a reader is waiting for,
+ * so whoever supplies the data can fetch those first.
+ * <p>
+ * All slices and duplicates share the data of the buffer they were made
+ * from.  Positions given to the methods that manage the data
+ * ({@link #addData(int, byte[], int, int)}, {@link #isAvailable(int, int)},
+ * {@link #getMissingRanges()}) are positions in the file, whichever view
+ * they are called on.
+ */
+public final class ProgressiveByteBuffer extends ByteBuffer {
+
+    /**
+     * Told when a reader has to wait for data that has not arrived yet.
+     * Called holding the lock of the buffer, so it must not block.
+     */
+    public interface Listener {
+
+        /**
+         * A reader is waiting for the bytes from start (inclusive) to end
+         * (exclusive) of the file.
+         */
+        public void dataNeeded(int start, int end);
+    }
+
+    /**
+     * the data, shared by all views of the file
+     */
+    private final Source src;
+    /**
+     * file position of the first byte of this buffer
+     */
+    private final int base;
+    /**
+     * current buffer position
+     */
+    private int pos;
+    /**
+     * buffer size
+     */
+    private int lim;
+    /**
+     * a marker inside the buffer
+     */
+    private int mrk = -1;
+    /**
+     * a range of the file known to be available, from the last time this
+     * buffer had to check.  Data only ever arrives, so it stays valid.  It
+     * is not handed on to slices and duplicates, which may be used by other
+     * threads: they must take the lock once before reading the data.
+     */
+    private int availStart;
+    private int availEnd;
+
+    /**
+     * Create a new, empty ByteBuffer for a file
+     *
+     * @param length    the length of the file
+     */
+    public ProgressiveByteBuffer(final int length) {
+        this(new Source(length), 0, 0, length);
+    }
+
+    private ProgressiveByteBuffer(final Source src, final int base, final int pos, final int lim) {
+        this.src = src;
+        this.base = base;
+        this.pos = pos;
+        this.lim = lim;
+    }
+
+    /**
+     * Hand in some of the data of the file, and wake up any reader waiting
+     * for it.
+     *
+     * @param offset     the position in the file of the first byte
+     * @param data       the array holding the bytes
+     * @param dataOffset the index of the first byte in data
+     * @param length     the number of bytes
+     */
+    public void addData(final int offset, final byte[] data, final int dataOffset, final int length) {
+        src.add(offset, data, dataOffset, length);
+    }
+
+    /**
+     * Set the listener to tell when a reader waits for missing data
+     */
+    public void setListener(final Listener listener) {
+        synchronized (src) {
+            src.listener = listener;
+        }
+    }
+
+    /**
+     * Give up on the rest of the file.  Any reader waiting for data, now or
+     * later, gets a BufferUnderflowException instead.
+     */
+    public void cancel() {
+        synchronized (src) {
+            src.cancelled = true;
+            src.notifyAll();
+        }
+    }
+
+    /**
+     * Is all of a range of the file available?
+     *
+     * @param start the position of the first byte in the file
+     * @param end   the position after the last byte
+     */
+    public boolean isAvailable(final int start, final int end) {
+        synchronized (src) {
+            return src.find(start, end) >= 0;
+        }
+    }
+
+    /**
+     * Has the whole file arrived?
+     */
+    public boolean isComplete() {
+        return isAvailable(0, src.data.length);
+    }
+
+    /**
+     * Get the ranges of the file that have not arrived yet, as pairs of
+     * start (inclusive) and end (exclusive) positions, in file order.
+     */
+    public int[] getMissingRanges() {
+        synchronized (src) {
+            return src.getMissingRanges();
+        }
+    }
+
+    /**
+     * make sure count bytes starting at a file position are available,
+     * waiting for them if they are not
+     */
+    private void ensure(final int filePos, final int count) {
+        final int end = filePos + count;
+        if (count <= 0 || (filePos >= availStart && end <= availEnd)) {
+            return;
+        }
+
+        synchronized (src) {
+            int range;
+            boolean told = false;
+            while ((range = src.find(filePos, end)) < 0) {
+                if (src.cancelled) {
+                    throw new BufferUnderflowException();
+                }
+                if (!told && src.listener != null) {
+                    src.listener.dataNeeded(filePos, end);
+                    told = true;
+                }
+                try {
+                    src.wait();
+                } catch (InterruptedException ie) {
+                    Thread.currentThread().interrupt();
+                    throw new BufferUnderflowException();
+                }
+            }
+            availStart = src.starts[range];
+            availEnd = src.ends[range];
+        }
+    }
+
+    public int position() {
+        return pos;
+    }
+
+    public void position(final int position) {
+        if (position < 0 || position > lim) {
+            throw new IllegalArgumentException();
+        }
+        pos = position;
+    }
+
+    public byte get() {
+        if (pos >= lim) {
+            throw new BufferUnderflowException();
+        }
+        final int filePos = base + pos++;
+        ensure(filePos, 1);
+        return src.data[filePos];
+    }
+
+    public int remaining() {
+        return lim - pos;
+    }
+
+    public byte get(final int position) {
+        if (position < 0 || position >= lim) {
+            throw new IndexOutOfBoundsException();
+        }
+        final int filePos = base + position;
+        ensure(filePos, 1);
+        return src.data[filePos];
+    }
+
+    public ByteBuffer slice() {
+        return new ProgressiveByteBuffer(src, base + pos, 0, lim - pos);
+    }
+
+    public void limit(final int length) {
+        lim = length;
+        if (pos > lim) {
+            pos = lim;
+        }
+        if (mrk > lim) {
+            mrk = -1;
+        }
+    }
+
+    public void get(final byte[] outBuf) {
+        get(outBuf, 0, outBuf.length);
+    }
+
+    public void get(final byte[] outBuf, final int outOffset, final int length) {
+        if (length > lim - pos) {
+            throw new BufferUnderflowException();
+        }
+        ensure(base + pos, length);
+        System.arraycopy(src.data, base + pos, outBuf, outOffset, length);
+        pos += length;
+    }
+
+    public void rewind() {
+        pos = 0;
+        mrk = -1;
+    }
+
+    public int limit() {
+        return lim;
+    }
+
+    public boolean hasArray() {
+        return false;
+    }
+
+    public int arrayOffset() {
+        throw new UnsupportedOperationException();
+    }
+
+    public byte[] array() {
+        throw new UnsupportedOperationException();
+    }
+
+    public void flip() {
+        lim = pos;
+        pos = 0;
+        mrk = -1;
+    }
+
+    public ByteBuffer duplicate() {
+        final ProgressiveByteBuffer dup = new ProgressiveByteBuffer(src, base, pos, lim);
+        dup.mrk = mrk;
+        return dup;
+    }
+
+    public char getChar(final int position) {
+        int result = get(position) & 0xff;
+        result = (result << 8) + (get(position + 1) & 0xff);
+        return (char) result;
+    }
+
+    public int getInt() {
+        int result = get() & 0xff;
+        result = (result << 8) + (get() & 0xff);
+        result = (result << 8) + (get() & 0xff);
+        result = (result << 8) + (get() & 0xff);
+        return result;
+    }
+
+    public long getLong() {
+        long result = getInt() & 0xffffffffL;
+        result = (result << 32) + (getInt() & 0xffffffffL);
+        return result;
+    }
+
+    public char getChar() {
+        int result = get() & 0xff;
+        result = (result << 8) + (get() & 0xff);
+        return (char) result;
+    }
+
+    public short getShort() {
+        return (short) getChar();
+    }
+
+    public void put(final int index, final byte b) {
+        throw new ReadOnlyBufferException();
+    }
+
+    public void put(final byte b) {
+        throw new ReadOnlyBufferException();
+    }
+
+    public void putInt(final int i) {
+        throw new ReadOnlyBufferException();
+    }
+
+    public void putShort(final short s) {
+        throw new ReadOnlyBufferException();
+    }
+
+    public void mark() {
+        mrk = pos;
+    }
+
+    public void put(final ByteBuffer data) {
+        throw new ReadOnlyBufferException();
+    }
+
+    public void reset() {
+        if (mrk < 0) {
+            throw new java.nio.InvalidMarkException();
+        }
+        pos = mrk;
+    }
+
+    public void putInt(final int index, final int value) {
+        throw new ReadOnlyBufferException();
+    }
+
+    public void putLong(final long value) {
+        throw new ReadOnlyBufferException();
+    }
+
+    public void putChar(final char value) {
+        throw new ReadOnlyBufferException();
+    }
+
+    public void put(final byte[] data) {
+        throw new ReadOnlyBufferException();
+    }
+
+    /**
+     * Copy the remaining bytes into a new heap java.nio.ByteBuffer.  The
+     * position of this buffer is not changed.
+     */
+    public java.nio.ByteBuffer toNIO() {
+        final byte[] data = new byte[remaining()];
+        final int p = pos;
+        get(data);
+        pos = p;
+        return java.nio.ByteBuffer.wrap(data);
+    }
+
+    public boolean hasRemaining() {
+        return pos < lim;
+    }
+
+    /**
+     * The bytes of the file, and the ranges of it that have arrived, kept
+     * sorted and merged so that each run of available bytes is one range.
+     * Guarded by its own lock.
+     */
+    private static final class Source {
+
+        final byte[] data;
+        int[] starts = new int[8];
+        int[] ends = new int[8];
+        int count;
+        Listener listener;
+        boolean cancelled;
+
+        Source(final int length) {
+            data = new byte[length];
+        }
+
+        /**
+         * find the range holding all of [start, end), or -1
+         */
+        int find(final int start, final int end) {
+            int lo = 0;
+            int hi = count - 1;
+            while (lo <= hi) {
+                final int mid = (lo + hi) >>> 1;
+                if (ends[mid] <= start) {
+                    lo = mid + 1;
+                } else if (starts[mid] > start) {
+                    hi = mid - 1;
+                } else {
+                    return end <= ends[mid] ? mid : -1;
+                }
+            }
+            return -1;
+        }
+
+        synchronized void add(final int offset, final byte[] bytes, final int bytesOffset, final int length) {
+            if (offset < 0 || length < 0 || offset + length > data.length) {
+                throw new IndexOutOfBoundsException();
+            }
+            if (length == 0) {
+                return;
+            }
+            System.arraycopy(bytes, bytesOffset, data, offset, length);
+
+            // merge [offset, offset + length) with any ranges it touches
+            int start = offset;
+            int end = offset + length;
+            int first = 0;
+            while (first < count && ends[first] < start) {
+                first++;
+            }
+            int last = first;
+            while (last < count && starts[last] <= end) {
+                start = Math.min(start, starts[last]);
+                end = Math.max(end, ends[last]);
+                last++;
+            }
+
+            final int removed = last - first;
+            if (removed == 0) {
+                if (count == starts.length) {
+                    final int[] nstarts = new int[count * 2];
+                    System.arraycopy(starts, 0, nstarts, 0, count);
+                    starts = nstarts;
+                    final int[] nends = new int[count * 2];
+                    System.arraycopy(ends, 0, nends, 0, count);
+                    ends = nends;
+                }
+                System.arraycopy(starts, first, starts, first + 1, count - first);
+                System.arraycopy(ends, first, ends, first + 1, count - first);
+                count++;
+            } else if (removed > 1) {
+                System.arraycopy(starts, last, starts, first + 1, count - last);
+                System.arraycopy(ends, last, ends, first + 1, count - last);
+                count -= removed - 1;
+            }
+            starts[first] = start;
+            ends[first] = end;
+
+            notifyAll();
+        }
+
+        int[] getMissingRanges() {
+            final int[] gaps = new int[(count + 1) * 2];
+            int n = 0;
+            int prev = 0;
+            for (int i = 0; i < count; i++) {
+                if (starts[i] > prev) {
+                    gaps[n++] = prev;
+                    gaps[n++] = starts[i];
+                }
+                prev = ends[i];
+            }
+            if (prev < data.length) {
+                gaps[n++] = prev;
+                gaps[n++] = data.length;
+            }
+
+            final int[] result = new int[n];
+            System.arraycopy(gaps, 0, result, 0, n);
+            return result;
+        }
+    }
+}
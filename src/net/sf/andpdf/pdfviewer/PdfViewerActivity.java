@@ -20,7 +20,6 @@ import android.content.DialogInterface;
 import android.content.Intent;
 import android.graphics.Bitmap;
 import android.graphics.Color;
-import android.graphics.RectF;
 import android.graphics.Bitmap.Config;
 import android.net.Uri;
 import android.os.Bundle;
@@ -42,10 +41,12 @@ import android.widget.ImageView;
 import android.widget.LinearLayout;
 import android.widget.TextView;
 
+import com.sun.pdfview.BaseWatchable;
 import com.sun.pdfview.PDFFile;
 import com.sun.pdfview.PDFImage;
 import com.sun.pdfview.PDFPage;
 import com.sun.pdfview.PDFPaint;
+import com.sun.pdfview.PDFRenderScheduler;
 import com.sun.pdfview.decrypt.PDFAuthenticationFailureException;
 import com.sun.pdfview.decrypt.PDFPassword;
 import com.sun.pdfview.font.PDFFont;
@@ -71,11 +72,13 @@ public abstract class PdfViewerActivity extends Activity {
     public static final String EXTRA_ANTIALIAS = "net.sf.andpdf.extra.ANTIALIAS";
     public static final String EXTRA_USEFONTSUBSTITUTION = "net.sf.andpdf.extra.USEFONTSUBSTITUTION";
     public static final String EXTRA_KEEPCACHES = "net.sf.andpdf.extra.KEEPCACHES";
+    public static final String EXTRA_COMPILEDISPLAYLISTS = "net.sf.andpdf.extra.COMPILEDISPLAYLISTS";
 	
 	public static final boolean DEFAULTSHOWIMAGES = true;
 	public static final boolean DEFAULTANTIALIAS = true;
 	public static final boolean DEFAULTUSEFONTSUBSTITUTION = false;
 	public static final boolean DEFAULTKEEPCACHES = false;
+	public static final boolean DEFAULTCOMPILEDISPLAYLISTS = true;
     
 	private final static int MENU_NEXT_PAGE = 1;
 	private final static int MENU_PREV_PAGE = 2;
@@ -91,6 +94,8 @@ public abstract class PdfViewerActivity extends Activity {
 	private GraphView mGraphView;
 	private String pdffilename;
 	private PDFFile mPdfFile;
+	private PDFRenderScheduler mRenderScheduler;
+	private volatile PDFRenderScheduler.Request mShownRequest;
 	private int mPage;
 	private float mZoom;
     private File mTmpFile;
@@ -103,7 +108,7 @@ public abstract class PdfViewerActivity extends Activity {
     
     private PDFPage mPdfPage; 
     
-    private Thread backgroundThread;
+    private Runnable backgroundTask;
     private Handler uiHandler;
 
 	
@@ -129,11 +134,15 @@ public abstract class PdfViewerActivity extends Activity {
 			mOldGraphView = inst.mGraphView;
 			mPage = inst.mPage;
 			mPdfFile = inst.mPdfFile;
+			mRenderScheduler = inst.mRenderScheduler;
+			if (mRenderScheduler != null) {
+				mRenderScheduler.setRenderListener(newRenderListener());
+			}
 			mPdfPage = inst.mPdfPage;
 			mTmpFile = inst.mTmpFile;
 			mZoom = inst.mZoom;
 			pdffilename = inst.pdffilename;
-			backgroundThread = inst.backgroundThread; 
+			backgroundTask = inst.backgroundTask; 
 			// mGraphView.invalidate();
 		}
 		return true;
@@ -193,6 +202,8 @@ public abstract class PdfViewerActivity extends Activity {
 	        PDFFont.sUseFontSubstitution= useFontSubstitution;
 	    	boolean keepCaches = getIntent().getBooleanExtra(PdfViewerActivity.EXTRA_KEEPCACHES, PdfViewerActivity.DEFAULTKEEPCACHES);
 	        HardReference.sKeepCaches= keepCaches;
+	    	boolean compileDisplayLists = getIntent().getBooleanExtra(PdfViewerActivity.EXTRA_COMPILEDISPLAYLISTS, PdfViewerActivity.DEFAULTCOMPILEDISPLAYLISTS);
+	        PDFPage.sCompileDisplayLists= compileDisplayLists;
 		        
 	        if (intent != null) {
 	        	if ("android.intent.action.VIEW".equals(intent.getAction())) {
@@ -241,12 +252,14 @@ public abstract class PdfViewerActivity extends Activity {
         }
 	}
 	private synchronized void startRenderThread(final int page, final float zoom) {
-		if (backgroundThread != null)
+		if (backgroundTask != null)
 			return;
 		
 		mGraphView.showText("reading page "+ page+", zoom:"+zoom);
 		//progress = ProgressDialog.show(PdfViewerActivity.this, "Loading", "Loading PDF Page");
-        backgroundThread = new Thread(new Runnable() {
+        // run on the pool the parsers and renderers share, rather than
+        // on a new thread for every page
+        backgroundTask = new Runnable() {
 			public void run() {
 				try {
 			        if (mPdfFile != null) {
@@ -266,17 +279,17 @@ public abstract class PdfViewerActivity extends Activity {
 				} catch (Exception e) {
 					Log.e(TAG, e.getMessage(), e);
 				}
-		        backgroundThread = null;
+		        backgroundTask = null;
 			}
-		});
+		};
         updateImageStatus();
-        backgroundThread.start();
+        BaseWatchable.getDefaultExecutor().execute(backgroundTask);
 	}
 
 
 	private void updateImageStatus() {
 //		Log.i(TAG, "updateImageStatus: " +  (System.currentTimeMillis()&0xffff));
-		if (backgroundThread == null) {
+		if (backgroundTask == null) {
 			mGraphView.updateUi();
 			
 			/*if (progress != null)
@@ -766,6 +779,23 @@ public abstract class PdfViewerActivity extends Activity {
 
 	
 	
+    /**
+     * a listener that shows the page being shown as it is drawn
+     */
+    private PDFRenderScheduler.RenderListener newRenderListener() {
+    	return new PDFRenderScheduler.RenderListener() {
+			public void pageRendered(PDFRenderScheduler.Request request) {
+				// showPage() shows it
+			}
+			public void pageUpdated(PDFRenderScheduler.Request request) {
+				if (request == mShownRequest) {
+					mGraphView.setPageBitmap(request.getImageSoFar());
+					mGraphView.updateImage();
+				}
+			}
+		};
+    }
+
     private void showPage(int page, float zoom) throws Exception {
         //long startTime = System.currentTimeMillis();
         //long middleTime = startTime;
@@ -776,7 +806,9 @@ public abstract class PdfViewerActivity extends Activity {
 	        
 	        // Only load the page if it's a different page (i.e. not just changing the zoom level) 
 	        if (mPdfPage == null || mPdfPage.getPageNumber() != page) {
-	        	mPdfPage = mPdfFile.getPage(page, true);
+	        	// parse in the background; the renderer below draws the
+	        	// commands as they are parsed
+	        	mPdfPage = mPdfFile.getPage(page, false);
 	        }
 	        //int num = mPdfPage.getPageNumber();
 	        //int maxNum = mPdfFile.getNumPages();
@@ -785,9 +817,11 @@ public abstract class PdfViewerActivity extends Activity {
 	        //String pageInfo= new File(pdffilename).getName() + " - " + num +"/"+maxNum+ ": " + width + "x" + height;
 	        //mGraphView.showText(pageInfo);
 	        //Log.i(TAG, pageInfo);
-	        RectF clip = null;
 	        //middleTime = System.currentTimeMillis();
-	        Bitmap bi = mPdfPage.getImage((int)(width*zoom), (int)(height*zoom), clip, true, true);
+	        // the page shown is rendered first, then the pages next to it,
+	        // so turning to them is quick.  Anything else is cancelled.
+	        mShownRequest = mRenderScheduler.showPage(page, zoom, 1);
+	        Bitmap bi = mShownRequest.waitForImage();
 	        mGraphView.setPageBitmap(bi);
 	        mGraphView.updateImage();
 	        
@@ -844,18 +878,66 @@ public abstract class PdfViewerActivity extends Activity {
         FileChannel channel = raf.getChannel();
 
         // now memory-map a byte-buffer
-        ByteBuffer bb =
-                ByteBuffer.NEW(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
-        // create a PDFFile from the data
+        ByteBuffer bb;
+        try {
+        	bb = ByteBuffer.NEW(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+        } catch (IOException e) {
+        	// not enough address space to map a file this big, so read
+        	// it through a window instead
+        	Log.w(TAG, "could not map " + file + ", reading it in chunks", e);
+        	bb = ByteBuffer.NEW(channel);
+        }
+        // create a PDFFile from the data, through the index kept for it in
+        // the cache directory.  Without an up to date index, older xref
+        // sections of incrementally saved files are read only when they
+        // are needed.
+        File indexFile = new File(getCacheDir(),
+        		"pdfindex-" + Integer.toHexString(file.getAbsolutePath().hashCode()));
         if (password == null)
-        	mPdfFile = new PDFFile(bb);
+        	mPdfFile = new PDFFile(bb, null, file, indexFile);
         else
-        	mPdfFile = new PDFFile(bb, new PDFPassword(password));
+        	mPdfFile = new PDFFile(bb, new PDFPassword(password), file, indexFile);
+        // keep the pages parsed in the cache directory too, so a page seen
+        // before shows without being parsed again
+        mPdfFile.setDisplayListCache(new File(getCacheDir(),
+        		"pdfpages-" + Integer.toHexString(file.getAbsolutePath().hashCode())));
+        if (!mPdfFile.isIndexed()) {
+        	startIndexThread(mPdfFile);
+        }
+        if (mRenderScheduler != null) {
+        	mRenderScheduler.cancelAll();
+        }
+        mRenderScheduler = new PDFRenderScheduler(mPdfFile);
+        // show the page as it is drawn, once a frame
+        mRenderScheduler.setFrameDeadline(BaseWatchable.FRAME_DEADLINE);
+        mRenderScheduler.setRenderListener(newRenderListener());
 	        
         mGraphView.showText("Anzahl Seiten:" + mPdfFile.getNumPages());
     }
     
      
+    /**
+     * write the index of a file in the background, so it opens quickly
+     * the next time.  It runs on the pool the parsers and renderers
+     * share, at the lowest priority until it is done.
+     */
+    private void startIndexThread(final PDFFile pdfFile) {
+    	BaseWatchable.getDefaultExecutor().execute(new Runnable() {
+    		public void run() {
+    			Thread thread = Thread.currentThread();
+    			int priority = thread.getPriority();
+    			thread.setPriority(Thread.MIN_PRIORITY);
+    			try {
+    				pdfFile.writeIndex();
+    			} catch (Throwable e) {
+    				Log.w(TAG, "could not write the index", e);
+    			} finally {
+    				thread.setPriority(priority);
+    			}
+    		}
+    	});
+    }
+    
     /*private byte[] readBytes(File srcFile) throws IOException {
     	long fileLength = srcFile.length();
     	int len = (int)fileLength;